@@ -0,0 +1,131 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+
+
+/**
+ * Asynchronous view of a Dao.  Each call is submitted to the executor of the Jsoda object
+ * and returns a Future right away.  The work done is the same as the corresponding Dao call,
+ * including the preStoreSteps, postLoadSteps, and the cache update.  A failed call throws
+ * ExecutionException from Future.get(), with the JsodaException as its cause.
+ * <pre>
+ * e.g.
+ *   Future&lt;Model1&gt; f1 = jsoda.dao(Model1.class).async().getAsync("abc");
+ *   Future&lt;Model2&gt; f2 = jsoda.dao(Model2.class).async().getAsync(123L);
+ *   Model1 obj1 = f1.get();
+ *   Model2 obj2 = f2.get();
+ * </pre>
+ */
+public class AsyncDao<T>
+{
+    private Dao<T>      dao;
+    private Jsoda       jsoda;
+
+
+    AsyncDao(Dao<T> dao, Jsoda jsoda) {
+        this.dao = dao;
+        this.jsoda = jsoda;
+    }
+
+    /** Return the synchronous Dao behind this async view. */
+    public Dao<T> sync() {
+        return dao;
+    }
+
+    public Future<T> getAsync(final Object id) {
+        return submit(new Callable<T>() {
+            public T call() throws Exception {
+                return dao.get(id);
+            }
+        });
+    }
+
+    public Future<T> getAsync(final Object hashKey, final Object rangeKey) {
+        return submit(new Callable<T>() {
+            public T call() throws Exception {
+                return dao.get(hashKey, rangeKey);
+            }
+        });
+    }
+
+    public Future<List<T>> batchGetAsync(final List idList) {
+        return submit(new Callable<List<T>>() {
+            public List<T> call() throws Exception {
+                return dao.batchGet(idList);
+            }
+        });
+    }
+
+    public Future<List<T>> batchGetAsync(final List hashKeyList, final List rangeKeyList) {
+        return submit(new Callable<List<T>>() {
+            public List<T> call() throws Exception {
+                return dao.batchGet(hashKeyList, rangeKeyList);
+            }
+        });
+    }
+
+    public Future<Void> putAsync(final T dataObj) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                dao.put(dataObj);
+                return null;
+            }
+        });
+    }
+
+    /** Support batch put on array of objects or varargs of objects */
+    @SuppressWarnings("unchecked")      // The array is only read into a List, as in Dao.batchPut().  No @SafeVarargs before Java 7.
+    public Future<Void> batchPutAsync(T... dataObjs) {
+        return batchPutAsync(Arrays.asList(dataObjs));
+    }
+
+    public Future<Void> batchPutAsync(final List<T> dataObjs) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                dao.batchPut(dataObjs);
+                return null;
+            }
+        });
+    }
+
+    public Future<Void> deleteAsync(final Object id) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                dao.delete(id);
+                return null;
+            }
+        });
+    }
+
+    public Future<Void> deleteAsync(final Object hashKey, final Object rangeKey) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                dao.delete(hashKey, rangeKey);
+                return null;
+            }
+        });
+    }
+
+    private <R> Future<R> submit(Callable<R> task) {
+        return jsoda.getExecutor().submit(task);
+    }
+
+}
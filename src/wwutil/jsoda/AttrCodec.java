@@ -0,0 +1,272 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.commons.beanutils.ConvertUtils;
+import com.amazonaws.services.simpledb.util.SimpleDBUtils;
+
+import wwutil.sys.TlsMap;
+
+
+/**
+ * Codec to encode a field value to its attribute string and decode it back.  The codec of a
+ * value type is resolved once and cached, and the model fields hold on to their codecs
+ * (see ModelAccessor), so marshalling doesn't go through the value type checks on every value.
+ *
+ * NOTE: Don't change encoding and padding once data have been created.  Different encoding will mess up sorting.
+ * The zero padding produces the same strings as SimpleDBUtils.encodeZeroPadding().
+ */
+abstract class AttrCodec
+{
+    private static final Map<Class, AttrCodec>  sCodecs = new ConcurrentHashMap<Class, AttrCodec>();
+
+    private static TlsMap.Factory<StringBuilder> sTlsStringBuilder = new TlsMap.Factory<StringBuilder>() {
+        public StringBuilder create(Object key) {
+            return new StringBuilder(64);
+        }
+    };
+
+
+    /** Return the codec of the value type. */
+    static AttrCodec forType(Class valueType) {
+        AttrCodec   codec = sCodecs.get(valueType);
+        if (codec == null) {
+            codec = createCodec(valueType);
+            sCodecs.put(valueType, codec);
+        }
+        return codec;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static AttrCodec createCodec(Class valueType) {
+        if (valueType == String.class)
+            return new StringCodec();
+
+        // Stringify basic type and encode them for sorting.
+        if (valueType == Byte.class || valueType == byte.class)
+            return new IntCodec(Byte.class, 3);                     // 0-Padded for sorting
+        if (valueType == Short.class || valueType == short.class)
+            return new IntCodec(Short.class, 5);                    // 0-Padded for sorting
+        if (valueType == Integer.class || valueType == int.class)
+            return new IntCodec(Integer.class, 10);                 // 0-Padded for sorting
+        if (valueType == Long.class || valueType == long.class)
+            return new IntCodec(Long.class, 19);                    // 0-Padded for sorting
+        if (valueType == Float.class || valueType == float.class)
+            return new FloatCodec();                                // 0-Padded for sorting
+        if (valueType == Double.class || valueType == double.class)
+            return new ToStringCodec(Double.class);                 // SimpleDBUtils has no padding for double.  Just convert it to String.
+        if (valueType == Boolean.class || valueType == boolean.class)
+            return new ToStringCodec(Boolean.class);
+        if (valueType == Character.class || valueType == char.class)
+            return new ToStringCodec(Character.class);
+        if (valueType == Date.class)
+            return new DateCodec();
+        if (valueType.isEnum())
+            return new EnumCodec(valueType);
+
+        // JSONify the rest.
+        return new JsonCodec(valueType);
+    }
+
+
+    /** Encode the value to its attribute string.  Return null for null value. */
+    String encode(Object value) {
+        if (value == null)
+            return null;                // Caller needs to handle null correctly, e.g. skip storing AttributeValue.
+
+        StringBuilder   sb = TlsMap.get("jsoda_codec_sb", sTlsStringBuilder);
+        sb.setLength(0);
+        encode(value, sb);
+        return sb.toString();
+    }
+
+    /** Decode the attribute string to the value.  Return null for null.  A non-String type having "" is treated as null. */
+    Object decode(String attrStr)
+        throws Exception
+    {
+        if (attrStr == null || attrStr.length() == 0)
+            return null;
+        return decodeStr(attrStr);
+    }
+
+    /** Whether the encoded value can be used as condition value in query. */
+    boolean isQueryable() {
+        return true;
+    }
+
+    /** Append the encoded non-null value to sb. */
+    abstract void encode(Object value, StringBuilder sb);
+
+    /** Decode the non-empty attribute string. */
+    abstract Object decodeStr(String attrStr) throws Exception;
+
+
+    /** Append the number with '0' padded in front up to maxNumDigits, in the same format as SimpleDBUtils.encodeZeroPadding(). */
+    static void appendZeroPadding(long number, int maxNumDigits, StringBuilder sb) {
+        int     numChars = number < 0 ? 2 : 1;
+        for (long n = number; n <= -10 || n >= 10; n /= 10)
+            numChars++;
+        for (int i = numChars; i < maxNumDigits; i++)
+            sb.append('0');
+        sb.append(number);
+    }
+
+
+    static class StringCodec extends AttrCodec {
+        String encode(Object value) {
+            return value == null ? null : value.toString();
+        }
+
+        Object decode(String attrStr) {
+            return attrStr;             // Return string type as it is, including "".
+        }
+
+        void encode(Object value, StringBuilder sb) {
+            sb.append(value.toString());
+        }
+
+        Object decodeStr(String attrStr) {
+            return attrStr;
+        }
+    }
+
+    /** Codec of the integral types, byte, short, int, and long. */
+    static class IntCodec extends AttrCodec {
+        private final Class boxedType;
+        private final int   maxNumDigits;
+
+        IntCodec(Class boxedType, int maxNumDigits) {
+            this.boxedType = boxedType;
+            this.maxNumDigits = maxNumDigits;
+        }
+
+        void encode(Object value, StringBuilder sb) {
+            // Convert the other value types as before.  The value of the field type needs no conversion.
+            Object  casted = value.getClass() == boxedType ? value : ConvertUtils.convert(value, boxedType);
+            appendZeroPadding(((Number)casted).longValue(), maxNumDigits, sb);
+        }
+
+        Object decodeStr(String attrStr) {
+            if (boxedType == Long.class)
+                return Long.valueOf(SimpleDBUtils.decodeZeroPaddingLong(attrStr));
+            int     intValue = SimpleDBUtils.decodeZeroPaddingInt(attrStr);
+            if (boxedType == Integer.class)
+                return Integer.valueOf(intValue);
+            if (boxedType == Short.class)
+                return Short.valueOf((short)intValue);
+            return Byte.valueOf((byte)intValue);
+        }
+    }
+
+    static class FloatCodec extends AttrCodec {
+        void encode(Object value, StringBuilder sb) {
+            Float   casted = value.getClass() == Float.class ? (Float)value : (Float)ConvertUtils.convert(value, Float.class);
+            String  floatStr = Float.toString(casted.floatValue());
+            int     numBeforeDecimal = floatStr.indexOf('.');
+            numBeforeDecimal = numBeforeDecimal >= 0 ? numBeforeDecimal : floatStr.length();
+            for (int i = numBeforeDecimal; i < 16; i++)
+                sb.append('0');
+            sb.append(floatStr);
+        }
+
+        Object decodeStr(String attrStr) {
+            return Float.valueOf(SimpleDBUtils.decodeZeroPaddingFloat(attrStr));
+        }
+    }
+
+    /** Codec of the types stored as their toString(), double, boolean, and char. */
+    static class ToStringCodec extends AttrCodec {
+        private final Class boxedType;
+
+        ToStringCodec(Class boxedType) {
+            this.boxedType = boxedType;
+        }
+
+        void encode(Object value, StringBuilder sb) {
+            sb.append(value.toString());
+        }
+
+        Object decodeStr(String attrStr) {
+            if (boxedType == Double.class)
+                return new Double(attrStr);
+            if (boxedType == Boolean.class)
+                return Boolean.valueOf(attrStr);
+            return Character.valueOf(attrStr.charAt(0));
+        }
+    }
+
+    static class DateCodec extends AttrCodec {
+        void encode(Object value, StringBuilder sb) {
+            sb.append(SimpleDBUtils.encodeDate((Date)value));
+        }
+
+        Object decodeStr(String attrStr)
+            throws Exception
+        {
+            return SimpleDBUtils.decodeDate(attrStr);
+        }
+    }
+
+    static class EnumCodec extends AttrCodec {
+        private final Class enumType;
+
+        EnumCodec(Class enumType) {
+            this.enumType = enumType;
+        }
+
+        void encode(Object value, StringBuilder sb) {
+            sb.append(((Enum)value).name());
+        }
+
+        @SuppressWarnings("unchecked")
+        Object decodeStr(String attrStr) {
+            return Enum.valueOf(enumType, attrStr);
+        }
+    }
+
+    static class JsonCodec extends AttrCodec {
+        private final Class valueType;
+
+        JsonCodec(Class valueType) {
+            this.valueType = valueType;
+        }
+
+        String encode(Object value) {
+            return value == null ? null : DataUtil.toJson(value);
+        }
+
+        void encode(Object value, StringBuilder sb) {
+            sb.append(DataUtil.toJson(value));
+        }
+
+        @SuppressWarnings("unchecked")
+        Object decodeStr(String attrStr)
+            throws Exception
+        {
+            return DataUtil.fromJson(attrStr, valueType);
+        }
+
+        /** JSON string value should not be used in query condition. */
+        boolean isQueryable() {
+            return false;
+        }
+    }
+
+}
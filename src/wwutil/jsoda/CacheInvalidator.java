@@ -0,0 +1,46 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.util.*;
+
+
+
+/**
+ * Transport of the cache invalidation messages among the Jsoda objects on different nodes sharing the same db.
+ * When an object is written or deleted via a Jsoda object, the cache keys of the object are published.
+ * The peers receiving the keys evict them from their caches, so that they don't serve stale objects.
+ * The transport can batch up and coalesce the keys.  It should not deliver the keys back to their publisher.
+ * See UdpCacheInvalidator for the built-in implementation.
+ */
+public interface CacheInvalidator {
+
+    /** Callback to receive the invalidated keys from the peers. */
+    public static interface Listener {
+        public void invalidate(Collection<String> keys);
+    }
+
+    /** Start the transport, with the keys received from the peers passed to the listener. */
+    public void start(Listener listener) throws Exception;
+
+    /** Publish the invalidated key to the peers. */
+    public void publish(String key);
+
+    /** Send out the pending keys and stop the transport. */
+    public void shutdown();
+
+}
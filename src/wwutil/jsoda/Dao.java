@@ -19,9 +19,13 @@ package wwutil.jsoda;
 import java.util.*;
 import java.io.*;
 import java.lang.reflect.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.commons.lang.ObjectUtils;
+import com.amazonaws.AmazonServiceException;
 
 import wwutil.sys.FnUtil;
 import wwutil.sys.FnUtil.*;
@@ -40,24 +44,93 @@ public class Dao<T>
 {
     private static Log  log = LogFactory.getLog(Dao.class);
 
+    public static final int     MAX_MODIFY_RETRIES = 10;        // Max retries of modify() on version conflict.
+    public static final int     MAX_CONFLICT_KEYS = 1000;       // Keys tracked for their conflict counts.
+
+    /** Callback of modify() to change the latest version of an object. */
+    public static interface Mutator<T> {
+        /** Change the object and return it for putting.  The object is null if not existed; a new object can be returned for it.
+         * Return null to skip the put.  Called again with a newer version of the object on conflict.
+         */
+        public T mutate(T obj) throws Exception;
+    }
+
     private Class<T>    modelClass;
     private String      modelName;
     private Jsoda       jsoda;
+    private AsyncDao<T> asyncDao;
+    private AtomicLong  notFoundCacheHits = new AtomicLong();
+    private AtomicLong  modifyConflicts = new AtomicLong();
+    private AtomicLong  modifyRetries = new AtomicLong();
+    private Map<String, Long>   conflictKeys = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_CONFLICT_KEYS;
+        }
+    };
+    private WriteBehindBuffer<T>    writeBehind;        // shared with the other Dao of the model, null if the model writes right away
 
 
     public Dao(Class<T> modelClass, Jsoda jsoda) {
         this.modelClass = modelClass;
         this.modelName = jsoda.getModelName(modelClass);
         this.jsoda = jsoda;
+        this.asyncDao = new AsyncDao<T>(this, jsoda);
+        this.writeBehind = jsoda.getWriteBehind(modelName);
+    }
+
+    /** Return the asynchronous view of this Dao.  Its calls run on the executor of the Jsoda object and return Future. */
+    public AsyncDao<T> async() {
+        return asyncDao;
+    }
+
+    String getModelName() {
+        return modelName;
+    }
+
+    /** Return the number of db reads avoided by the cached not-found results.  See CachePolicy.notFoundExpireInSeconds. */
+    public long getNotFoundCacheHits() {
+        return notFoundCacheHits.get();
+    }
+
+    /** Write out the queued objects of a write-behind model.  No-op for other models.  See Model.writeBehindMillis. */
+    public void flush()
+        throws JsodaException
+    {
+        if (writeBehind == null)
+            return;
+        try {
+            writeBehind.flush();
+        } catch(JsodaException je) {
+            throw je;
+        } catch(Exception e) {
+            throw new JsodaException("Failed to flush the write-behind objects", e);
+        }
+    }
+
+    /** Return the number of objects queued for writing in a write-behind model. */
+    public int getPendingWrites() {
+        return writeBehind == null ? 0 : writeBehind.size();
     }
 
     public void put(T dataObj)
         throws JsodaException
+    {
+        JsodaSession    session = jsoda.currentSession();
+        if (session != null)
+            session.put(dataObj);
+        else
+            putNow(dataObj);
+    }
+
+    void putNow(T dataObj)
+        throws JsodaException
     {
         try {
             Field   versionField = jsoda.getVersionField(modelName);
 
-            if (versionField == null) {
+            if (writeBehind != null) {
+                queuePut(dataObj);
+            } else if (versionField == null) {
                 putIf(dataObj, null, null, false);
             } else {
                 // Get old version as the expectedVersion before preStoreSteps() incrementing the version number.
@@ -77,10 +150,22 @@ public class Dao<T>
         throws JsodaException
     {
         try {
+            // The condition is checked against the db.  Write out the queued objects first.
+            if (writeBehind != null)
+                writeBehind.flush();
             jsoda.preStoreSteps(dataObj);
-            jsoda.getDb(modelName).putObj(modelClass, dataObj, expectedField, expectedValue, expectedExists);
+            IndexUpdateException    indexFailure = null;
+            try {
+                jsoda.getDb(modelName).putObj(modelClass, dataObj, expectedField, expectedValue, expectedExists);
+            } catch(IndexUpdateException iue) {
+                indexFailure = iue;     // The object is in the db.  Finish the put before reporting it.
+            } finally {
+                jsoda.getObjCacheMgr().modelChanged(modelName);
+            }
             jsoda.s3dao(modelClass).saveS3Fields(dataObj);
-            jsoda.getObjCacheMgr().cachePut(modelName, dataObj);
+            jsoda.getObjCacheMgr().cachePutWritten(modelName, dataObj);
+            if (indexFailure != null)
+                throw indexFailure;
         } catch(JsodaException je) {
             throw je;
         } catch(Exception e) {
@@ -88,6 +173,250 @@ public class Dao<T>
         }
     }
 
+    /** Update only the named fields of the object at the db, instead of rewriting all of its attributes.
+     * The fields changed by the storing steps, e.g. a ModifiedTime field or the VersionLocking field, are updated as well.
+     * A named S3Field is saved to S3; the other S3Fields are left untouched.  A null field has its attribute deleted.
+     * The object's cache entry is evicted since the object might not have the latest values of the other fields.
+     * <pre>
+     * e.g.
+     *   user.lastLogin = new Date();
+     *   dao.update(user, "lastLogin");
+     * </pre>
+     */
+    public void update(T dataObj, String... fieldNames)
+        throws JsodaException
+    {
+        if (fieldNames.length == 0)
+            throw new ValidationException("Missing the fields to update for " + modelName + ".");
+
+        try {
+            ModelAccessor       accessor = jsoda.getModelAccessor(modelName);
+            Map<String, Field>  s3Fields = jsoda.getS3Fields(modelName);
+            Set<String>         dbFieldNames = new HashSet<String>();
+            Set<String>         s3FieldNames = new HashSet<String>();
+
+            for (String fieldName : fieldNames) {
+                if (s3Fields.containsKey(fieldName)) {
+                    s3FieldNames.add(fieldName);
+                    continue;
+                }
+                ModelAccessor.FieldAccessor fa = accessor.getDbField(fieldName);
+                if (fa == null)
+                    throw new ValidationException("Field " + fieldName + " is not a db field or S3Field of " + modelName + ".");
+                if (fa.isId || fa.isRange)
+                    throw new ValidationException("Key field " + fieldName + " of " + modelName + " cannot be updated.");
+                dbFieldNames.add(fieldName);
+            }
+
+            // Get old version as the expectedVersion before preStoreSteps() incrementing the version number.
+            Field       versionField = jsoda.getVersionField(modelName);
+            Integer     expectedVersion = versionField == null ? null : (Integer)versionField.get(dataObj);
+            boolean     expectedExists = (expectedVersion != null && expectedVersion.intValue() > 0);
+            expectedVersion = (expectedExists ? expectedVersion : new Integer(0));
+
+            // Pick up the fields changed by the storing steps.
+            Object[]    oldValues = new Object[accessor.dbFields.length];
+            for (int i = 0; i < accessor.dbFields.length; i++)
+                oldValues[i] = accessor.dbFields[i].get(dataObj);
+            jsoda.preStoreSteps(dataObj);
+            for (int i = 0; i < accessor.dbFields.length; i++) {
+                ModelAccessor.FieldAccessor fa = accessor.dbFields[i];
+                if (!fa.isId && !fa.isRange && !ObjectUtils.equals(oldValues[i], fa.get(dataObj)))
+                    dbFieldNames.add(fa.fieldName);
+            }
+
+            // The queued full put would overwrite the update.  Write it out first.
+            if (writeBehind != null)
+                writeBehind.flush();
+
+            IndexUpdateException    indexFailure = null;
+            if (dbFieldNames.size() > 0) {
+                try {
+                    jsoda.getDb(modelName).updateObj(modelClass, dataObj, dbFieldNames,
+                                                     versionField == null ? null : versionField.getName(), expectedVersion, expectedExists);
+                } catch(IndexUpdateException iue) {
+                    indexFailure = iue;     // The object is updated in the db.  Finish the update before reporting it.
+                } finally {
+                    jsoda.getObjCacheMgr().modelChanged(modelName);
+                }
+            }
+            if (s3FieldNames.size() > 0)
+                jsoda.s3dao(modelClass).saveS3Fields(dataObj, s3FieldNames);
+
+            Object      id = accessor.idField.get(dataObj);
+            Object      rangeKey = accessor.rangeField == null ? null : accessor.rangeField.get(dataObj);
+            jsoda.getObjCacheMgr().cacheDeleteWritten(modelName, dataObj, id, rangeKey);
+            if (indexFailure != null)
+                throw indexFailure;
+        } catch(JsodaException je) {
+            throw je;
+        } catch(Exception e) {
+            throw new JsodaException("Failed to update object", e);
+        }
+    }
+
+    /** Atomically add delta to a counter field of the object and return its new value.  The field must be int, long, Integer, or Long.
+     * DynamoDB adds to it in one UpdateItem call.  SimpleDB emulates it with the conditional put, retried on contention.
+     * The object is created with the counter field if it doesn't exist.  A missing counter field starts at 0.
+     */
+    public long increment(Object id, String fieldName, long delta)
+        throws JsodaException
+    {
+        if (jsoda.getRangeField(modelName) != null)
+            throw new ValidationException("Model " + modelName + " requires rangeKey for increment.");
+        return incrementField(id, null, fieldName, delta);
+    }
+
+    public long increment(Object hashKey, Object rangeKey, String fieldName, long delta)
+        throws JsodaException
+    {
+        return incrementField(hashKey, rangeKey, fieldName, delta);
+    }
+
+    /** Return a counter spreading its increments over the shards of the field.  See ShardedCounter. */
+    public ShardedCounter<T> shardedCounter(String fieldName, int shards)
+        throws JsodaException
+    {
+        return new ShardedCounter<T>(this, jsoda, fieldName, shards);
+    }
+
+    private long incrementField(Object id, Object rangeKey, String fieldName, long delta)
+        throws JsodaException
+    {
+        ModelAccessor.FieldAccessor fa = jsoda.getModelAccessor(modelName).getDbField(fieldName);
+        if (fa == null || fa.isId || fa.isRange)
+            throw new ValidationException("Field " + fieldName + " is not a non-key db field of " + modelName + ".");
+        if (!(fa.type == int.class || fa.type == Integer.class || fa.type == long.class || fa.type == Long.class))
+            throw new ValidationException("Counter field " + fieldName + " of " + modelName + " can only be int, long, Integer, or Long.");
+
+        try {
+            // The queued full put would overwrite the counter.  Write it out first.
+            if (writeBehind != null)
+                writeBehind.flush();
+
+            long    newValue;
+            try {
+                newValue = jsoda.getDb(modelName).incrementField(modelName, id, rangeKey, fieldName, delta);
+            } catch(IndexUpdateException iue) {
+                // The counter is incremented in the db.  Drop the cached object before reporting it.
+                jsoda.getObjCacheMgr().cacheDelete(modelName, id, rangeKey);
+                throw iue;
+            } finally {
+                jsoda.getObjCacheMgr().modelChanged(modelName);
+            }
+            jsoda.getObjCacheMgr().cacheDelete(modelName, id, rangeKey);
+            return newValue;
+        } catch(JsodaException je) {
+            throw je;
+        } catch(Exception e) {
+            throw new JsodaException("Failed to increment " + fieldName + " of object " + id + "/" + rangeKey, e);
+        }
+    }
+
+    /** Read-modify-write the object with optimistic locking.  The object is read from the db with consistent read, bypassing
+     * the cache, and changed by the mutator.  It's then put conditionally on its version.  When another client has put a newer
+     * version, the object is read and mutated again after a jittered exponential backoff, up to MAX_MODIFY_RETRIES times.
+     * The model must have a VersionLocking field.  Return the put object, or null if the mutator skipped the put.
+     * <pre>
+     * e.g.
+     *   dao.modify("acct1", new Dao.Mutator&lt;Account&gt;() {
+     *       public Account mutate(Account acct) {
+     *           acct.balance += 100;
+     *           return acct;
+     *       }
+     *   });
+     * </pre>
+     */
+    public T modify(Object id, Mutator<T> mutator)
+        throws JsodaException
+    {
+        if (jsoda.getRangeField(modelName) != null)
+            throw new ValidationException("Model " + modelName + " requires rangeKey for modify.");
+        return modify(id, null, mutator);
+    }
+
+    public T modify(Object hashKey, Object rangeKey, Mutator<T> mutator)
+        throws JsodaException
+    {
+        if (jsoda.getVersionField(modelName) == null)
+            throw new ValidationException("Model " + modelName + " requires a VersionLocking field for modify.");
+
+        try {
+            for (int retry = 0; ; retry++) {
+                // Not cached on load.  The mutator changes the object in place, and putNow() caches it once written.
+                T   obj = mutator.mutate(loadObj(hashKey, rangeKey, true, false));
+                if (obj == null)
+                    return null;
+
+                try {
+                    putNow(obj);
+                    return obj;
+                } catch(JsodaException e) {
+                    if (!isConditionalCheckFailed(e))
+                        throw e;
+                    recordConflict(jsoda.makePkKey(modelName, hashKey, rangeKey));
+                    if (retry >= MAX_MODIFY_RETRIES)
+                        throw new JsodaException("Failed to modify object " + hashKey + "/" + rangeKey + " after " + MAX_MODIFY_RETRIES + " retries on version conflict.", e);
+                }
+
+                modifyRetries.incrementAndGet();
+                DynamoDBService.backoff(retry);
+            }
+        } catch(JsodaException je) {
+            throw je;
+        } catch(Exception e) {
+            throw new JsodaException("Failed to modify object " + hashKey + "/" + rangeKey, e);
+        }
+    }
+
+    /** Return the number of version conflicts hit by modify(). */
+    public long getModifyConflicts() {
+        return modifyConflicts.get();
+    }
+
+    /** Return the number of retries done by modify(). */
+    public long getModifyRetries() {
+        return modifyRetries.get();
+    }
+
+    /** Return the conflict counts of the keys recently conflicted in modify(), hottest first.  Up to MAX_CONFLICT_KEYS keys are tracked. */
+    public List<Map.Entry<String, Long>> getConflictKeys() {
+        List<Map.Entry<String, Long>>   entries;
+        synchronized(conflictKeys) {
+            entries = new ArrayList<Map.Entry<String, Long>>();
+            for (Map.Entry<String, Long> entry : conflictKeys.entrySet())
+                entries.add(new AbstractMap.SimpleImmutableEntry<String, Long>(entry.getKey(), entry.getValue()));
+        }
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+            public int compare(Map.Entry<String, Long> e1, Map.Entry<String, Long> e2) {
+                return e2.getValue().compareTo(e1.getValue());
+            }
+        });
+        return entries;
+    }
+
+    private void recordConflict(String pkKey) {
+        modifyConflicts.incrementAndGet();
+        synchronized(conflictKeys) {
+            Long    count = conflictKeys.get(pkKey);
+            conflictKeys.put(pkKey, count == null ? 1L : count + 1);
+        }
+        if (log.isDebugEnabled())
+            log.debug("Version conflict on " + modelName + " " + pkKey);
+    }
+
+    /** Check whether the failure is the conditional check on the expected value of a put. */
+    private static boolean isConditionalCheckFailed(Throwable e) {
+        for (; e != null; e = e.getCause()) {
+            if (e instanceof AmazonServiceException) {
+                String  errorCode = ((AmazonServiceException)e).getErrorCode();
+                return errorCode != null && (errorCode.startsWith(SimpleDBService.CONDITIONAL_CHECK_FAILED) ||
+                                             errorCode.equals(SimpleDBService.ATTRIBUTE_DOES_NOT_EXIST));
+            }
+        }
+        return false;
+    }
+
     /** Support batch put on array of objects or varargs of objects */
     public void batchPut(T... dataObjs)
         throws JsodaException
@@ -97,19 +426,46 @@ public class Dao<T>
 
     public void batchPut(List<T> dataObjs)
         throws JsodaException
+    {
+        JsodaSession    session = jsoda.currentSession();
+        if (session == null) {
+            batchPutNow(dataObjs);
+            return;
+        }
+        for (T dataObj : dataObjs)
+            session.put(dataObj);
+    }
+
+    void batchPutNow(List<T> dataObjs)
+        throws JsodaException
     {
         if (dataObjs.size() == 0)
             return;
 
         try {
+            if (writeBehind != null) {
+                for (T dataObj : dataObjs)
+                    queuePut(dataObj);
+                return;
+            }
+
             for (T dataObj : dataObjs) {
                 jsoda.preStoreSteps(dataObj);
             }
-            jsoda.getDb(modelName).putObjs(modelClass, dataObjs);
+            IndexUpdateException    indexFailure = null;
+            try {
+                jsoda.getDb(modelName).putObjs(modelClass, dataObjs);
+            } catch(IndexUpdateException iue) {
+                indexFailure = iue;     // The objects are in the db.  Finish the put before reporting it.
+            } finally {
+                jsoda.getObjCacheMgr().modelChanged(modelName);
+            }
             for (T dataObj : dataObjs) {
                 jsoda.s3dao(modelClass).saveS3Fields(dataObj);
-                jsoda.getObjCacheMgr().cachePut(modelName, dataObj);
+                jsoda.getObjCacheMgr().cachePutWritten(modelName, dataObj);
             }
+            if (indexFailure != null)
+                throw indexFailure;
         } catch(JsodaException je) {
             throw je;
         } catch(Exception e) {
@@ -117,6 +473,16 @@ public class Dao<T>
         }
     }
 
+    private void queuePut(T dataObj)
+        throws Exception
+    {
+        jsoda.preStoreSteps(dataObj);
+        // Cached locally for reading back.  The peers are invalidated when the flush has written it.
+        jsoda.getObjCacheMgr().modelChanged(modelName);
+        jsoda.getObjCacheMgr().cachePut(modelName, dataObj);
+        writeBehind.add(dataObj);
+    }
+
     public T get(Object id)
         throws JsodaException
     {
@@ -145,31 +511,165 @@ public class Dao<T>
 
     private T getObj(Object id, Object rangeKey)
         throws JsodaException
+    {
+        JsodaSession    session = jsoda.currentSession();
+        return session != null ? session.find(this, id, rangeKey) : getNow(id, rangeKey);
+    }
+
+    T getNow(final Object id, final Object rangeKey)
+        throws JsodaException
     {
         try {
-            T   obj = (T)jsoda.getObjCacheMgr().cacheGet(modelName, id, rangeKey);
-            if (obj != null)
-                return obj;
+            Object  cachedObj = jsoda.getObjCacheMgr().cacheGet(modelName, id, rangeKey);
+            if (cachedObj != null)
+                return notFoundOr((T)cachedObj);
+
+            if (rangeKey == null && jsoda.getRangeField(modelName) != null) {
+                throw new ValidationException("Model " + modelName + " requires rangeKey for get.");
+            }
+
+            if (writeBehind != null) {
+                T   pendingObj = writeBehind.getPending(jsoda.makePkKey(modelName, id, rangeKey));
+                if (pendingObj != null)
+                    return pendingObj;
+            }
 
-            if (rangeKey == null) {
-                if (jsoda.getRangeField(modelName) != null) {
-                    throw new ValidationException("Model " + modelName + " requires rangeKey for get.");
+            return jsoda.getObjCacheMgr().loadByPk(modelName, id, rangeKey, new Callable<T>() {
+                public T call() throws Exception {
+                    return loadObj(id, rangeKey, false, true);
                 }
-                obj = jsoda.getDb(modelName).getObj(modelClass, id, null);
-            } else {
-                obj = jsoda.getDb(modelName).getObj(modelClass, id, rangeKey);
+            });
+        } catch(JsodaException je) {
+            throw je;
+        } catch(Exception e) {
+            throw new JsodaException("Failed to get object", e);
+        }
+    }
+
+    private T loadObj(Object id, Object rangeKey, boolean consistentRead, boolean toCache)
+        throws Exception
+    {
+        T   obj = jsoda.getDb(modelName).getObj(modelClass, id, rangeKey, consistentRead);
+        if (obj != null) {
+            jsoda.s3dao(modelClass).loadS3Fields(obj);
+            jsoda.postLoadSteps(obj, toCache);
+        }
+        return obj;
+    }
+
+    /** Support batch get on array of ids or varargs of ids */
+    public List<T> batchGet(Object... idList)
+        throws JsodaException
+    {
+        return batchGet(Arrays.asList(idList));
+    }
+
+    /** Get the objects of a list of ids in one batch.  The cached objects are returned from the cache
+     * and only the missing ones are loaded from the db.  The returned list has the objects in the same
+     * order as the ids.  The entry for an object not existed is null.
+     */
+    public List<T> batchGet(List idList)
+        throws JsodaException
+    {
+        return getObjs(idList, null);
+    }
+
+    /** Get the objects of a list of hashKeys and rangeKeys in one batch.  The hashKey and rangeKey lists are paired up by position. */
+    public List<T> batchGet(List hashKeyList, List rangeKeyList)
+        throws JsodaException
+    {
+        if (rangeKeyList == null || hashKeyList.size() != rangeKeyList.size())
+            throw new ValidationException("The hashKey list and the rangeKey list must have the same size.");
+
+        return getObjs(hashKeyList, rangeKeyList);
+    }
+
+    private List<T> getObjs(List idList, List rangeKeyList)
+        throws JsodaException
+    {
+        for (int i = 0; i < idList.size(); i++) {
+            Object  id = idList.get(i);
+            if (!(id instanceof Integer ||
+                  id instanceof Long ||
+                  id instanceof String))
+                throw new ValidationException("The Id can only be String, Integer, or Long.");
+            Object  rangeKey = rangeKeyList == null ? null : rangeKeyList.get(i);
+            if (rangeKeyList != null && !(rangeKey instanceof Integer ||
+                                          rangeKey instanceof Long ||
+                                          rangeKey instanceof String))
+                throw new ValidationException("The rangeKey can only be String, Integer, or Long.");
+        }
+
+        JsodaSession    session = jsoda.currentSession();
+        return session != null ? session.findAll(this, idList, rangeKeyList) : getAllNow(idList, rangeKeyList);
+    }
+
+    List<T> getAllNow(List idList, List rangeKeyList)
+        throws JsodaException
+    {
+        try {
+            if (rangeKeyList == null && jsoda.getRangeField(modelName) != null)
+                throw new ValidationException("Model " + modelName + " requires rangeKey for batchGet.");
+
+            List<T>                     resultObjs = new ArrayList<T>(Collections.<T>nCopies(idList.size(), null));
+            Map<String, List<Integer>>  missPositions = new HashMap<String, List<Integer>>();
+            List<Object>                missIds = new ArrayList<Object>();
+            List<Object>                missRangeKeys = new ArrayList<Object>();
+
+            // Look up the cache first.  Collect the unique keys of the misses.
+            List<Object>    cachedObjs = jsoda.getObjCacheMgr().cacheGetMulti(modelName, idList, rangeKeyList);
+            for (int i = 0; i < idList.size(); i++) {
+                Object  id = idList.get(i);
+                Object  rangeKey = rangeKeyList == null ? null : rangeKeyList.get(i);
+                Object  cachedObj = cachedObjs.get(i);
+                if (cachedObj != null) {
+                    resultObjs.set(i, notFoundOr((T)cachedObj));
+                    continue;
+                }
+
+                String          pkKey = jsoda.makePkKey(modelName, id, rangeKey);
+                T               pendingObj = writeBehind == null ? null : writeBehind.getPending(pkKey);
+                if (pendingObj != null) {
+                    resultObjs.set(i, pendingObj);
+                    continue;
+                }
+                List<Integer>   positions = missPositions.get(pkKey);
+                if (positions == null) {
+                    positions = new ArrayList<Integer>();
+                    missPositions.put(pkKey, positions);
+                    missIds.add(id);
+                    missRangeKeys.add(rangeKey);
+                }
+                positions.add(i);
             }
 
-            if (obj != null) {
+            if (missIds.size() == 0)
+                return resultObjs;
+
+            // Load the misses from the db in batches and fill them back in their positions.
+            long    generation = jsoda.getObjCacheMgr().getGeneration(modelName);
+            List<T> loadedObjs = jsoda.getDb(modelName).getObjs(modelClass, missIds, rangeKeyList == null ? null : missRangeKeys);
+            for (T obj : loadedObjs) {
                 jsoda.s3dao(modelClass).loadS3Fields(obj);
                 jsoda.postLoadSteps(obj);
+                List<Integer>   positions = missPositions.remove(jsoda.makePkKey(modelName, obj));
+                if (positions == null)
+                    continue;
+                for (Integer pos : positions)
+                    resultObjs.set(pos, obj);
             }
 
-            return obj;
+            // The remaining misses are not found in the db.
+            for (List<Integer> positions : missPositions.values()) {
+                int     pos = positions.get(0);
+                jsoda.getObjCacheMgr().cachePutNotFound(modelName, idList.get(pos), rangeKeyList == null ? null : rangeKeyList.get(pos), generation);
+            }
+
+            return resultObjs;
         } catch(JsodaException je) {
             throw je;
         } catch(Exception e) {
-            throw new JsodaException("Failed to get object", e);
+            throw new JsodaException("Failed to batch get objects", e);
         }
     }
 
@@ -207,15 +707,24 @@ public class Dao<T>
         throws JsodaException
     {
         try {
-            jsoda.getObjCacheMgr().cacheDelete(modelName, id, rangeKey);
-            if (rangeKey == null) {
-                jsoda.getDb(modelName).delete(modelName, id, null);
-            } else {
+            cancelPut(id, rangeKey);
+            List<String>    evictedKeys = jsoda.getObjCacheMgr().cacheEvict(modelName, id, rangeKey);
+            IndexUpdateException    indexFailure = null;
+            try {
                 jsoda.getDb(modelName).delete(modelName, id, rangeKey);
+            } catch(IndexUpdateException iue) {
+                indexFailure = iue;     // The object is deleted from the db.  Finish the delete before reporting it.
+            } finally {
+                jsoda.getObjCacheMgr().modelChanged(modelName);
+                jsoda.getObjCacheMgr().publishKeys(evictedKeys);
             }
 
             jsoda.s3dao(modelClass).deleteS3Fields(id, rangeKey);
-            
+            sessionDeleted(id, rangeKey);
+            if (indexFailure != null)
+                throw indexFailure;
+        } catch(IndexUpdateException iue) {
+            throw iue;
         } catch(Exception e) {
             throw new JsodaException("Failed to delete object " + id + "/" + rangeKey, e);
         }
@@ -232,14 +741,27 @@ public class Dao<T>
         throws JsodaException
     {
         try {
-            for (Object id : idList) {
-                jsoda.getObjCacheMgr().cacheDelete(modelName, id, null);
+            for (Object id : idList)
+                cancelPut(id, null);
+            List<String>    evictedKeys = jsoda.getObjCacheMgr().cacheEvict(modelName, idList, null);
+            IndexUpdateException    indexFailure = null;
+            try {
+                jsoda.getDb(modelName).batchDelete(modelName, idList, null);
+            } catch(IndexUpdateException iue) {
+                indexFailure = iue;     // The objects are deleted from the db.  Finish the delete before reporting it.
+            } finally {
+                jsoda.getObjCacheMgr().modelChanged(modelName);
+                jsoda.getObjCacheMgr().publishKeys(evictedKeys);
             }
-            jsoda.getDb(modelName).batchDelete(modelName, idList, null);
 
             for (Object id : idList) {
                 jsoda.s3dao(modelClass).deleteS3Fields(id, null);
+                sessionDeleted(id, null);
             }
+            if (indexFailure != null)
+                throw indexFailure;
+        } catch(IndexUpdateException iue) {
+            throw iue;
         } catch(Exception e) {
             throw new JsodaException("Failed to batch delete objects", e);
         }
@@ -249,32 +771,83 @@ public class Dao<T>
         throws JsodaException
     {
         try {
-            for (int i = 0; i < idList.size(); i++) {
-                jsoda.getObjCacheMgr().cacheDelete(modelName, idList.get(i), rangeKeyList.get(i));
+            for (int i = 0; i < idList.size(); i++)
+                cancelPut(idList.get(i), rangeKeyList.get(i));
+            List<String>    evictedKeys = jsoda.getObjCacheMgr().cacheEvict(modelName, idList, rangeKeyList);
+            IndexUpdateException    indexFailure = null;
+            try {
+                jsoda.getDb(modelName).batchDelete(modelName, idList, rangeKeyList);
+            } catch(IndexUpdateException iue) {
+                indexFailure = iue;     // The objects are deleted from the db.  Finish the delete before reporting it.
+            } finally {
+                jsoda.getObjCacheMgr().modelChanged(modelName);
+                jsoda.getObjCacheMgr().publishKeys(evictedKeys);
             }
-            jsoda.getDb(modelName).batchDelete(modelName, idList, rangeKeyList);
             
             for (int i = 0; i < idList.size(); i++) {
                 jsoda.s3dao(modelClass).deleteS3Fields(idList.get(i), rangeKeyList.get(i));
+                sessionDeleted(idList.get(i), rangeKeyList.get(i));
             }
+            if (indexFailure != null)
+                throw indexFailure;
+        } catch(IndexUpdateException iue) {
+            throw iue;
         } catch(Exception e) {
             throw new JsodaException("Failed to batch delete objects", e);
         }
     }
 
-    /** Get an object by one of its field, beside the Id field. */
+    /** Drop the queued write of the object being deleted so the write-behind flush won't bring it back. */
+    private void cancelPut(Object id, Object rangeKey) {
+        if (writeBehind != null)
+            writeBehind.cancel(jsoda.makePkKey(modelName, id, rangeKey));
+    }
+
+    private void sessionDeleted(Object id, Object rangeKey) {
+        JsodaSession    session = jsoda.currentSession();
+        if (session != null)
+            session.deleted(modelName, id, rangeKey);
+    }
+
+    /** Get an object by one of its field, beside the Id field.
+     * In a session, the session's objects are looked up first, and the session's instance of the object is returned.
+     */
     public T findBy(String field, Object fieldValue)
         throws JsodaException
     {
-        T       obj = (T)jsoda.getObjCacheMgr().cacheGetByField(modelName, field, fieldValue);
-        if (obj != null)
-            return obj;
+        JsodaSession    session = jsoda.currentSession();
+        return session != null ? session.findBy(this, field, fieldValue) : findByNow(field, fieldValue);
+    }
 
-        List<T> items = jsoda.query(modelClass).eq(field, fieldValue).run();
-        // query.run() has already cached the object.  No need to cache it here.
-        return items.size() == 0 ? null : items.get(0);
+    T findByNow(final String field, final Object fieldValue)
+        throws JsodaException
+    {
+        Object  cachedObj = jsoda.getObjCacheMgr().cacheGetByField(modelName, field, fieldValue);
+        if (cachedObj != null)
+            return notFoundOr((T)cachedObj);
+
+        try {
+            return jsoda.getObjCacheMgr().loadByField(modelName, field, fieldValue, new Callable<T>() {
+                public T call() throws Exception {
+                    List<T> items = jsoda.query(modelClass).eq(field, fieldValue).run();
+                    // query.run() has already cached the object.  No need to cache it here.
+                    return items.size() == 0 ? null : items.get(0);
+                }
+            });
+        } catch(JsodaException je) {
+            throw je;
+        } catch(Exception e) {
+            throw new JsodaException("Failed to find object", e);
+        }
     }
 
 
-}
+    private T notFoundOr(T cachedObj) {
+        if (ObjCacheMgr.isNotFound(cachedObj)) {
+            notFoundCacheHits.incrementAndGet();
+            return null;
+        }
+        return cachedObj;
+    }
 
+}
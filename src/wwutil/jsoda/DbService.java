@@ -17,6 +17,7 @@
 package wwutil.jsoda;
 
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 import wwutil.model.annotation.DbType;
 
 
@@ -29,15 +30,20 @@ interface DbService {
     public void createModelTable(String modelName);
     public void deleteTable(String tableName);
     public List<String> listTables();
+    public QueryPlanner.TableStats getTableStats(String table) throws Exception;
 
     public <T> void putObj(Class<T> modelClass, T dataObj, String expectedField, Object expectedValue, boolean expectedExists) throws Exception;
     public <T> void putObjs(Class<T> modelClass, List<T> dataObjs) throws Exception;
-    public <T> T getObj(Class<T> modelClass, Object id, Object rangeKey) throws Exception;
+    public <T> void updateObj(Class<T> modelClass, T dataObj, Collection<String> fieldNames, String expectedField, Object expectedValue, boolean expectedExists) throws Exception;
+    public long incrementField(String modelName, Object id, Object rangeKey, String fieldName, long delta) throws Exception;
+    public <T> T getObj(Class<T> modelClass, Object id, Object rangeKey, boolean consistentRead) throws Exception;
+    public <T> List<T> getObjs(Class<T> modelClass, List idList, List rangeKeyList) throws Exception;
     public void delete(String modelName, Object id, Object rangeKey) throws Exception;
     public void batchDelete(String modelName, List idList, List rangeKeyList) throws Exception;
     public <T> long queryCount(Class<T> modelClass, Query<T> query) throws JsodaException;
     public <T> List<T> queryRun(Class<T> modelClass, Query<T> query, boolean continueFromLastRun) throws JsodaException;
     public <T> boolean queryHasNext(Query<T> query);
+    public <T> void queryParallelScan(Class<T> modelClass, Query<T> query, int segments, ExecutorService executor, Query.ScanHandler<T> handler) throws JsodaException;
     public String getFieldAttrName(String modelName, String fieldName);
 
     public void validateFilterOperator(String operator);
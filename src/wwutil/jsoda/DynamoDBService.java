@@ -19,7 +19,10 @@ package wwutil.jsoda;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.lang.reflect.*;
+import java.math.BigDecimal;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -32,11 +35,20 @@ import com.amazonaws.services.dynamodb.AmazonDynamoDBClient;
 import com.amazonaws.services.dynamodb.model.CreateTableRequest;
 import com.amazonaws.services.dynamodb.model.DeleteTableRequest;
 import com.amazonaws.services.dynamodb.model.ListTablesResult;
+import com.amazonaws.services.dynamodb.model.DescribeTableRequest;
+import com.amazonaws.services.dynamodb.model.TableDescription;
 import com.amazonaws.services.dynamodb.model.KeySchema;
 import com.amazonaws.services.dynamodb.model.KeySchemaElement;
 import com.amazonaws.services.dynamodb.model.ProvisionedThroughput;
 import com.amazonaws.services.dynamodb.model.Key;
 import com.amazonaws.services.dynamodb.model.PutItemRequest;
+import com.amazonaws.services.dynamodb.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodb.model.AttributeValueUpdate;
+import com.amazonaws.services.dynamodb.model.AttributeAction;
+import com.amazonaws.services.dynamodb.model.UpdateItemResult;
+import com.amazonaws.services.dynamodb.model.ReturnValue;
+import com.amazonaws.services.dynamodb.model.PutItemResult;
+import com.amazonaws.services.dynamodb.model.DeleteItemResult;
 import com.amazonaws.services.dynamodb.model.AttributeValue;
 import com.amazonaws.services.dynamodb.model.ExpectedAttributeValue;
 import com.amazonaws.services.dynamodb.model.GetItemRequest;
@@ -48,6 +60,16 @@ import com.amazonaws.services.dynamodb.model.QueryResult;
 import com.amazonaws.services.dynamodb.model.ScanRequest;
 import com.amazonaws.services.dynamodb.model.ScanResult;
 import com.amazonaws.services.dynamodb.model.Condition;
+import com.amazonaws.services.dynamodb.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodb.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodb.model.WriteRequest;
+import com.amazonaws.services.dynamodb.model.PutRequest;
+import com.amazonaws.services.dynamodb.model.DeleteRequest;
+import com.amazonaws.services.dynamodb.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodb.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodb.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodb.model.BatchResponse;
+import com.amazonaws.services.dynamodb.model.KeysAndAttributes;
 
 import wwutil.sys.ReflectUtil;
 import wwutil.model.MemCacheable;
@@ -83,6 +105,20 @@ class DynamoDBService implements DbService
             put(Filter.IN,          ComparisonOperator.IN);
         }};
 
+    public static final int         MAX_WRITE_ITEMS = 25;           // DynamoDB has a limit of 25 items per BatchWriteItem.
+    public static final int         MAX_GET_ITEMS = 100;            // DynamoDB has a limit of 100 items per BatchGetItem.
+    public static final int         MAX_BATCH_RETRIES = 8;          // Max retries on the UnprocessedItems of a batch.
+    public static final long        BATCH_RETRY_BASE_MS = 50;       // Base delay of the exponential backoff between batch retries.
+    public static final long        BATCH_RETRY_MAX_MS = 5000;
+
+    // Attributes of the index table items of the Indexed fields.
+    public static final String      INDEX_VALUE = "v";              // Hash key, the indexed field value.
+    public static final String      INDEX_PK = "pk";                // Range key, the primary key string of the model item.
+    public static final String      INDEX_ID = "id";                // Id value of the model item.
+    public static final String      INDEX_RANGE = "rk";             // RangeKey value of the model item.
+
+    private static final Random     sRandom = new Random();
+
 
     private Jsoda                   jsoda;
     private AmazonDynamoDBClient    ddbClient;
@@ -137,6 +173,17 @@ class DynamoDBService implements DbService
                               .withProvisionedThroughput(new ProvisionedThroughput()
                                                          .withReadCapacityUnits(readTP)
                                                          .withWriteCapacityUnits(writeTP)));
+
+        for (String fieldName : jsoda.getIndexedFields(modelName)) {
+            KeySchema   indexKey = new KeySchema()
+                .withHashKeyElement(new KeySchemaElement().withAttributeName(INDEX_VALUE)
+                                    .withAttributeType(isN(jsoda.getField(modelName, fieldName).getType()) ? "N" : "S"))
+                .withRangeKeyElement(new KeySchemaElement().withAttributeName(INDEX_PK).withAttributeType("S"));
+            ddbClient.createTable(new CreateTableRequest(jsoda.getIndexTable(modelName, fieldName), indexKey)
+                                  .withProvisionedThroughput(new ProvisionedThroughput()
+                                                             .withReadCapacityUnits(readTP)
+                                                             .withWriteCapacityUnits(writeTP)));
+        }
     }
 
     private KeySchemaElement makeKeySchemaElement(Field field) {
@@ -160,33 +207,157 @@ class DynamoDBService implements DbService
         return list.getTableNames();
     }
 
+    public QueryPlanner.TableStats getTableStats(String table)
+        throws Exception
+    {
+        TableDescription    desc = ddbClient.describeTable(new DescribeTableRequest().withTableName(table)).getTable();
+        return new QueryPlanner.TableStats(desc.getItemCount() == null ? 0 : desc.getItemCount(),
+                                           desc.getTableSizeBytes() == null ? 0 : desc.getTableSizeBytes());
+    }
+
     public <T> void putObj(Class<T> modelClass, T dataObj, String expectedField, Object expectedValue, boolean expectedExists)
         throws Exception
     {
         String          modelName = jsoda.getModelName(modelClass);
         String          table = jsoda.getModelTable(modelName);
-        PutItemRequest  req = new PutItemRequest(table, objToAttrs(dataObj, modelName));
+        Map<String, AttributeValue> item = objToAttrs(dataObj, modelName);
+        PutItemRequest  req = new PutItemRequest(table, item);
+        boolean         indexed = hasIndexes(modelName);
 
         if (expectedField != null)
             req.setExpected(makeExpectedMap(modelName, expectedField, expectedValue, expectedExists));
+        if (indexed)
+            req.setReturnValues(ReturnValue.ALL_OLD);
+
+        PutItemResult   result = ddbClient.putItem(req);
+        if (indexed)
+            updateIndexes(modelName, Collections.singletonList(result.getAttributes()), Collections.singletonList(item));
+    }
+
+    /** Update the attributes of the named fields with UpdateItem.  The attributes of the null fields are deleted. */
+    public <T> void updateObj(Class<T> modelClass, T dataObj, Collection<String> fieldNames, String expectedField, Object expectedValue, boolean expectedExists)
+        throws Exception
+    {
+        String                              modelName = jsoda.getModelName(modelClass);
+        String                              table = jsoda.getModelTable(modelName);
+        ModelAccessor                       accessor = jsoda.getModelAccessor(modelName);
+        Map<String, AttributeValueUpdate>   updates = new HashMap<String, AttributeValueUpdate>();
+
+        for (ModelAccessor.FieldAccessor fa : accessor.dbFields) {
+            if (fa.isId || fa.isRange || !fieldNames.contains(fa.fieldName))
+                continue;
+            AttributeValue  attr = valueToAttr(fa.type, fa.setParamType, fa.codec, fa.get(dataObj));
+            if (attr == null)
+                updates.put(fa.attrName, new AttributeValueUpdate().withAction(AttributeAction.DELETE));
+            else
+                updates.put(fa.attrName, new AttributeValueUpdate(attr, AttributeAction.PUT));
+        }
+
+        Object              id = accessor.idField.get(dataObj);
+        Object              rangeKey = accessor.rangeField == null ? null : accessor.rangeField.get(dataObj);
+        Key                 key = makeKey(modelName, id, rangeKey);
+        UpdateItemRequest   req = new UpdateItemRequest(table, key, updates);
+        boolean             indexed = hasIndexes(modelName);
+
+        if (expectedField != null)
+            req.setExpected(makeExpectedMap(modelName, expectedField, expectedValue, expectedExists));
+        if (indexed)
+            req.setReturnValues(ReturnValue.ALL_OLD);
+
+        UpdateItemResult    result = ddbClient.updateItem(req);
+        if (indexed) {
+            Map<String, AttributeValue> newItem = keyToItem(modelName, key, result.getAttributes());
+            for (Map.Entry<String, AttributeValueUpdate> entry : updates.entrySet()) {
+                if (entry.getValue().getValue() == null)
+                    newItem.remove(entry.getKey());
+                else
+                    newItem.put(entry.getKey(), entry.getValue().getValue());
+            }
+            updateIndexes(modelName, Collections.singletonList(result.getAttributes()), Collections.singletonList(newItem));
+        }
+    }
+
+    /** Add delta to the number attribute with the ADD action of UpdateItem, returning the updated value. */
+    public long incrementField(String modelName, Object id, Object rangeKey, String fieldName, long delta)
+        throws Exception
+    {
+        String                              table = jsoda.getModelTable(modelName);
+        String                              attrName = jsoda.getModelAccessor(modelName).getDbField(fieldName).attrName;
+        Map<String, AttributeValueUpdate>   updates = new HashMap<String, AttributeValueUpdate>();
+
+        updates.put(attrName, new AttributeValueUpdate(new AttributeValue().withN(Long.toString(delta)), AttributeAction.ADD));
+        Key                 key = makeKey(modelName, id, rangeKey);
+
+        if (!jsoda.getIndexedFields(modelName).contains(fieldName)) {
+            UpdateItemRequest   req = new UpdateItemRequest(table, key, updates).withReturnValues(ReturnValue.UPDATED_NEW);
+            UpdateItemResult    result = ddbClient.updateItem(req);
+            return Long.parseLong(result.getAttributes().get(attrName).getN());
+        }
 
-        ddbClient.putItem(req);
+        // Get the old value to move the index entry.
+        UpdateItemRequest   req = new UpdateItemRequest(table, key, updates).withReturnValues(ReturnValue.ALL_OLD);
+        Map<String, AttributeValue> oldItem = ddbClient.updateItem(req).getAttributes();
+        AttributeValue      oldValue = oldItem == null ? null : oldItem.get(attrName);
+        long                newValue = (oldValue == null ? 0 : Long.parseLong(oldValue.getN())) + delta;
+        Map<String, AttributeValue> newItem = keyToItem(modelName, key, oldItem);
+        newItem.put(attrName, new AttributeValue().withN(Long.toString(newValue)));
+        updateIndexes(modelName, Collections.singletonList(oldItem), Collections.singletonList(newItem));
+        return newValue;
     }
 
     public <T> void putObjs(Class<T> modelClass, List<T> dataObjs)
         throws Exception
     {
-        // Dynamodb has no batch put support.  Emulate it.
-        for (T obj : dataObjs)
-            putObj(modelClass, obj, null, null, false);
+        String          modelName = jsoda.getModelName(modelClass);
+        String          table = jsoda.getModelTable(modelName);
+        int             offset = 0;
+        List<String>    failedKeys = new ArrayList<String>();
+        IndexUpdateException    indexFailure = null;
+
+        boolean         indexed = hasIndexes(modelName);
+
+        while (offset < dataObjs.size()) {
+            List<WriteRequest>  writes = buildPutWrites(dataObjs, modelName, offset);
+            offset += writes.size();
+
+            List<Map<String, AttributeValue>>   newItems = new ArrayList<Map<String, AttributeValue>>();
+            List<Key>                           keys = new ArrayList<Key>();
+            List<Map<String, AttributeValue>>   oldItems = null;
+            if (indexed) {
+                for (WriteRequest write : writes) {
+                    newItems.add(write.getPutRequest().getItem());
+                    keys.add(itemKey(modelName, write.getPutRequest().getItem()));
+                }
+                oldItems = getItemsByKeys(modelName, table, keys);
+            }
+
+            Set<String>     failed = new HashSet<String>();
+            for (WriteRequest unprocessed : batchWriteItems(table, writes)) {
+                failedKeys.add(itemKeyStr(modelName, unprocessed.getPutRequest().getItem()));
+                failed.add(keyStr(itemKey(modelName, unprocessed.getPutRequest().getItem())));
+            }
+            if (indexed) {
+                try {
+                    updateIndexes(modelName, withoutFailed(oldItems, keys, failed), withoutFailed(newItems, keys, failed));
+                } catch(IndexUpdateException iue) {
+                    indexFailure = iue;     // Write the rest of the objects before reporting it.
+                }
+            }
+        }
+
+        if (failedKeys.size() > 0)
+            throw new JsodaException("Failed to batch put " + failedKeys.size() + " of " + dataObjs.size() +
+                                     " objects to " + table + " after " + MAX_BATCH_RETRIES + " retries.  Failed keys: " + failedKeys);
+        if (indexFailure != null)
+            throw indexFailure;
     }
 
-    public <T> T getObj(Class<T> modelClass, Object id, Object rangeKey)
+    public <T> T getObj(Class<T> modelClass, Object id, Object rangeKey, boolean consistentRead)
         throws Exception
     {
         String          modelName = jsoda.getModelName(modelClass);
         String          table = jsoda.getModelTable(modelName);
-        GetItemRequest  req = new GetItemRequest(table, makeKey(modelName, id, rangeKey));
+        GetItemRequest  req = new GetItemRequest(table, makeKey(modelName, id, rangeKey)).withConsistentRead(consistentRead);
         GetItemResult   result = ddbClient.getItem(req);
 
         if (result.getItem() == null || result.getItem().size() == 0)
@@ -195,19 +366,84 @@ class DynamoDBService implements DbService
         return itemToObj(modelClass, result.getItem());
     }
 
+    /** Get the objects of the keys in batches.  Objects not existed are skipped.  The returned objects are in no particular order. */
+    public <T> List<T> getObjs(Class<T> modelClass, List idList, List rangeKeyList)
+        throws Exception
+    {
+        String          modelName = jsoda.getModelName(modelClass);
+        String          table = jsoda.getModelTable(modelName);
+        int             offset = 0;
+        List<T>         resultObjs = new ArrayList<T>();
+
+        while (offset < idList.size()) {
+            List<Key>   keys = new ArrayList<Key>();
+            for (int i = offset; i < idList.size() && keys.size() < MAX_GET_ITEMS; i++) {
+                keys.add(makeKey(modelName, idList.get(i), rangeKeyList == null ? null : rangeKeyList.get(i)));
+            }
+            offset += keys.size();
+
+            for (Map<String, AttributeValue> item : batchGetItems(table, keys)) {
+                resultObjs.add(itemToObj(modelClass, item));
+            }
+        }
+        return resultObjs;
+    }
+
     public void delete(String modelName, Object id, Object rangeKey)
         throws Exception
     {
         String  table = jsoda.getModelTable(modelName);
-        ddbClient.deleteItem(new DeleteItemRequest(table, makeKey(modelName, id, rangeKey)));
+        if (!hasIndexes(modelName)) {
+            ddbClient.deleteItem(new DeleteItemRequest(table, makeKey(modelName, id, rangeKey)));
+            return;
+        }
+
+        DeleteItemResult    result = ddbClient.deleteItem(new DeleteItemRequest(table, makeKey(modelName, id, rangeKey)).withReturnValues(ReturnValue.ALL_OLD));
+        updateIndexes(modelName, Collections.singletonList(result.getAttributes()), Collections.<Map<String, AttributeValue>>singletonList(null));
     }
 
     public void batchDelete(String modelName, List idList, List rangeKeyList)
         throws Exception
     {
-        for (int i = 0; i < idList.size(); i++) {
-            delete(modelName, idList.get(i), rangeKeyList == null ? null : rangeKeyList.get(i));
+        String          table = jsoda.getModelTable(modelName);
+        int             offset = 0;
+        List<String>    failedKeys = new ArrayList<String>();
+        IndexUpdateException    indexFailure = null;
+
+        boolean         indexed = hasIndexes(modelName);
+
+        while (offset < idList.size()) {
+            List<WriteRequest>  writes = buildDeleteWrites(modelName, idList, rangeKeyList, offset);
+            offset += writes.size();
+
+            List<Key>                           keys = new ArrayList<Key>();
+            List<Map<String, AttributeValue>>   oldItems = null;
+            if (indexed) {
+                for (WriteRequest write : writes)
+                    keys.add(write.getDeleteRequest().getKey());
+                oldItems = getItemsByKeys(modelName, table, keys);
+            }
+
+            Set<String>     failed = new HashSet<String>();
+            for (WriteRequest unprocessed : batchWriteItems(table, writes)) {
+                failedKeys.add(keyStr(unprocessed.getDeleteRequest().getKey()));
+                failed.add(keyStr(unprocessed.getDeleteRequest().getKey()));
+            }
+            if (indexed) {
+                List<Map<String, AttributeValue>>   deletedItems = withoutFailed(oldItems, keys, failed);
+                try {
+                    updateIndexes(modelName, deletedItems, Collections.<Map<String, AttributeValue>>nCopies(deletedItems.size(), null));
+                } catch(IndexUpdateException iue) {
+                    indexFailure = iue;     // Delete the rest of the objects before reporting it.
+                }
+            }
         }
+
+        if (failedKeys.size() > 0)
+            throw new JsodaException("Failed to batch delete " + failedKeys.size() + " of " + idList.size() +
+                                     " objects from " + table + " after " + MAX_BATCH_RETRIES + " retries.  Failed keys: " + failedKeys);
+        if (indexFailure != null)
+            throw indexFailure;
     }
 
     public void validateFilterOperator(String operator) {
@@ -238,6 +474,10 @@ class DynamoDBService implements DbService
         ScanRequest     scanReq = new ScanRequest();
 
         try {
+            Filter  indexFilter = toIndexFilter(query);
+            if (indexFilter != null)
+                return countIndex(query, indexFilter);
+
             if (toRequest(query, queryReq, scanReq)) {
                 return ddbClient.query(queryReq).getCount().intValue();
             } else {
@@ -257,6 +497,10 @@ class DynamoDBService implements DbService
         if (continueFromLastRun && !queryHasNext(query))
             return resultObjs;
 
+        Filter          indexFilter = toIndexFilter(query);
+        if (indexFilter != null)
+            return queryIndex(modelClass, query, indexFilter, continueFromLastRun);
+
         QueryRequest    queryReq = new QueryRequest();
         ScanRequest     scanReq = new ScanRequest();
         List<Map<String,AttributeValue>>    items;
@@ -270,7 +514,7 @@ class DynamoDBService implements DbService
                 items = result.getItems();
             } else {
                 if (continueFromLastRun)
-                    queryReq.setExclusiveStartKey((Key)query.nextKey);
+                    scanReq.setExclusiveStartKey((Key)query.nextKey);
                 ScanResult  result = ddbClient.scan(scanReq);
                 query.nextKey = result.getLastEvaluatedKey();
                 items = result.getItems();
@@ -289,6 +533,66 @@ class DynamoDBService implements DbService
         return query.nextKey != null;
     }
 
+    public <T> void queryParallelScan(final Class<T> modelClass, Query<T> query, int segments, ExecutorService executor, final Query.ScanHandler<T> handler)
+        throws JsodaException
+    {
+        // The DynamoDB API in this SDK has no segmented scan.  The pages are fetched in sequence on the calling
+        // thread while up to 'segments' fetched pages are decoded and handled in parallel on the executor.
+        QueryRequest        queryReq = new QueryRequest();
+        ScanRequest         scanReq = new ScanRequest();
+        final Semaphore     pagesInFlight = new Semaphore(segments);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        List<Future<Void>>  futures = new ArrayList<Future<Void>>();
+
+        try {
+            boolean doQuery = toRequest(query, queryReq, scanReq);
+            Key     lastKey = null;
+            do {
+                List<Map<String,AttributeValue>>    items;
+                if (doQuery) {
+                    queryReq.setExclusiveStartKey(lastKey);
+                    QueryResult result = ddbClient.query(queryReq);
+                    lastKey = result.getLastEvaluatedKey();
+                    items = result.getItems();
+                } else {
+                    scanReq.setExclusiveStartKey(lastKey);
+                    ScanResult  result = ddbClient.scan(scanReq);
+                    lastKey = result.getLastEvaluatedKey();
+                    items = result.getItems();
+                }
+
+                final List<Map<String,AttributeValue>>  pageItems = items;
+                pagesInFlight.acquire();
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        try {
+                            List<T> resultObjs = new ArrayList<T>();
+                            for (Map<String, AttributeValue> item : pageItems) {
+                                resultObjs.add(itemToObj(modelClass, item));
+                            }
+                            if (resultObjs.size() > 0)
+                                handler.handle(resultObjs);
+                            return null;
+                        } catch(Exception e) {
+                            failed.set(true);
+                            throw e;
+                        } finally {
+                            pagesInFlight.release();
+                        }
+                    }
+                }));
+            } while (lastKey != null && !failed.get());
+        } catch(InterruptedException e) {
+            Query.cancelScanTasks(futures);
+            Thread.currentThread().interrupt();
+            throw new JsodaException("Parallel scan interrupted.", e);
+        } catch(Exception e) {
+            Query.cancelScanTasks(futures);
+            throw new JsodaException("Query failed.  Error: " + e.getMessage(), e);
+        }
+        Query.awaitScanTasks(futures);
+    }
+
 
     public String getFieldAttrName(String modelName, String fieldName) {
         String  attrName = jsoda.getFieldAttrMap(modelName).get(fieldName);
@@ -321,74 +625,190 @@ class DynamoDBService implements DbService
     }
 
     private AttributeValue valueToAttr(Field field, Object value) {
+        Class   paramType = Set.class.isAssignableFrom(field.getType()) ? ReflectUtil.getGenericParamType1(field.getGenericType()) : null;
+        return valueToAttr(field.getType(), paramType, AttrCodec.forType(field.getType()), value);
+    }
+
+    /** Encode the value of a field type.  The setParamType is the type parameter of a Set field type.  The codec encodes the non-number types. */
+    private AttributeValue valueToAttr(Class fieldType, Class setParamType, AttrCodec codec, Object value) {
         // Don't set the AttributeValue for null value
         if (value == null)
             return null;
 
         // Handle Set<String>, Set<Long>, or Set<Integer> field.
-        if (Set.class.isAssignableFrom(field.getType())) {
-            Class   paramType = ReflectUtil.getGenericParamType1(field.getGenericType());
-            if (isMultiValuetype(paramType)) {
-                if (isN(paramType)) {
-                    return new AttributeValue().withNS(DataUtil.toStringSet((Set)value, paramType));
-                } else {
-                    return new AttributeValue().withSS(DataUtil.toStringSet((Set)value, paramType));
-                }
+        if (setParamType != null && isMultiValuetype(setParamType)) {
+            if (isN(setParamType)) {
+                return new AttributeValue().withNS(DataUtil.toStringSet((Set)value, setParamType));
+            } else {
+                return new AttributeValue().withSS(DataUtil.toStringSet((Set)value, setParamType));
             }
         }
 
         // Handle number types
-        if (isN(field.getType())) {
+        if (isN(fieldType)) {
             return new AttributeValue().withN(value.toString());
         }
 
         // Delegate to DataUtil to encode the rest.
-        return new AttributeValue().withS(DataUtil.encodeValueToAttrStr(value, field.getType()));
+        return new AttributeValue().withS(codec.encode(value));
     }
 
-    private Object attrToValue(Field field, AttributeValue attr)
+    /** Decode the attribute value of a field type.  The setParamType is the type parameter of a Set field type.  The codec decodes the non-number types. */
+    private Object attrToValue(Class fieldType, Class setParamType, AttrCodec codec, AttributeValue attr)
         throws Exception
     {
         // Handle Set<String>, Set<Long>, or Set<Integer> field.
-        if (Set.class.isAssignableFrom(field.getType())) {
-            Class   paramType = ReflectUtil.getGenericParamType1(field.getGenericType());
-            if (isMultiValuetype(paramType)) {
-                if (isN(paramType))
-                    return DataUtil.toObjectSet(attr.getNS(), paramType);
-                else
-                    return DataUtil.toObjectSet(attr.getSS(), paramType);
-            }
+        if (setParamType != null && isMultiValuetype(setParamType)) {
+            if (isN(setParamType))
+                return DataUtil.toObjectSet(attr.getNS(), setParamType);
+            else
+                return DataUtil.toObjectSet(attr.getSS(), setParamType);
         }
 
         // Handle number types
-        if (isN(field.getType())) {
-            return ConvertUtils.convert(attr.getN(), field.getType());
+        if (isN(fieldType)) {
+            return ConvertUtils.convert(attr.getN(), fieldType);
         }
         
         // Delegate to DataUtil to decode the rest.
-        return DataUtil.decodeAttrStrToValue(attr.getS(), field.getType());
+        return codec.decode(attr.getS());
     }
 
     private Map<String, AttributeValue> objToAttrs(Object dataObj, String modelName)
         throws Exception
     {
+        ModelAccessor               accessor = jsoda.getModelAccessor(modelName);
         Map<String, AttributeValue> attrs = new HashMap<String, AttributeValue>();
 
-        for (Map.Entry<String, String> fieldAttr : jsoda.getFieldAttrMap(modelName).entrySet()) {
-            String  fieldName = fieldAttr.getKey();
-            String  attrName  = fieldAttr.getValue();
-            Field   field = jsoda.getField(modelName, fieldName);
-            Object  fieldValue = field.get(dataObj);
-            AttributeValue  attr = valueToAttr(field, fieldValue);
+        for (ModelAccessor.FieldAccessor fa : accessor.dbFields) {
+            AttributeValue  attr = valueToAttr(fa.type, fa.setParamType, fa.codec, fa.get(dataObj));
 
             if (attr != null)
-                attrs.put(attrName, attr);
+                attrs.put(fa.attrName, attr);
             // Skip setting attribute if it's null.
         }
 
         return attrs;
     }
 
+    private List<WriteRequest> buildPutWrites(List dataObjs, String modelName, int offset)
+        throws Exception
+    {
+        List<WriteRequest>  writes = new ArrayList<WriteRequest>();
+
+        for (int i = offset; i < dataObjs.size() && writes.size() < MAX_WRITE_ITEMS; i++) {
+            Object  dataObj = dataObjs.get(i);
+            writes.add(new WriteRequest().withPutRequest(new PutRequest().withItem(objToAttrs(dataObj, modelName))));
+        }
+        return writes;
+    }
+
+    private List<WriteRequest> buildDeleteWrites(String modelName, List idList, List rangeKeyList, int offset)
+        throws Exception
+    {
+        List<WriteRequest>  writes = new ArrayList<WriteRequest>();
+
+        for (int i = offset; i < idList.size() && writes.size() < MAX_WRITE_ITEMS; i++) {
+            Object  rangeKey = rangeKeyList == null ? null : rangeKeyList.get(i);
+            writes.add(new WriteRequest().withDeleteRequest(new DeleteRequest().withKey(makeKey(modelName, idList.get(i), rangeKey))));
+        }
+        return writes;
+    }
+
+    /** Send a batch of write requests to the table.  Retry the UnprocessedItems with exponential backoff.
+     * Return the write requests still unprocessed after all the retries.
+     */
+    private List<WriteRequest> batchWriteItems(String table, List<WriteRequest> writes)
+        throws Exception
+    {
+        List<WriteRequest>  pending = writes;
+
+        for (int retry = 0; ; retry++) {
+            Map<String, List<WriteRequest>> requestItems = new HashMap<String, List<WriteRequest>>();
+            requestItems.put(table, pending);
+
+            try {
+                BatchWriteItemResult    result = ddbClient.batchWriteItem(new BatchWriteItemRequest().withRequestItems(requestItems));
+                Map<String, List<WriteRequest>> unprocessedItems = result.getUnprocessedItems();
+                pending = (unprocessedItems == null ? null : unprocessedItems.get(table));
+                if (pending == null || pending.size() == 0)
+                    return Collections.<WriteRequest>emptyList();
+            } catch(ProvisionedThroughputExceededException e) {
+                // Nothing in the batch was processed.  Retry the whole batch.
+                if (retry >= MAX_BATCH_RETRIES)
+                    throw e;
+            }
+
+            if (retry >= MAX_BATCH_RETRIES)
+                return pending;
+
+            log.info("Retrying " + pending.size() + " unprocessed items of batch write on " + table + ".  Retry " + (retry + 1));
+            backoff(retry);
+        }
+    }
+
+    /** Get a batch of items from the table.  Retry the UnprocessedKeys with exponential backoff. */
+    private List<Map<String, AttributeValue>> batchGetItems(String table, List<Key> keys)
+        throws Exception
+    {
+        List<Map<String, AttributeValue>>   items = new ArrayList<Map<String, AttributeValue>>();
+        KeysAndAttributes                   pending = new KeysAndAttributes().withKeys(keys);
+
+        for (int retry = 0; ; retry++) {
+            Map<String, KeysAndAttributes>  requestItems = new HashMap<String, KeysAndAttributes>();
+            requestItems.put(table, pending);
+
+            try {
+                BatchGetItemResult  result = ddbClient.batchGetItem(new BatchGetItemRequest().withRequestItems(requestItems));
+                BatchResponse       response = (result.getResponses() == null ? null : result.getResponses().get(table));
+                if (response != null && response.getItems() != null)
+                    items.addAll(response.getItems());
+                Map<String, KeysAndAttributes>  unprocessedKeys = result.getUnprocessedKeys();
+                pending = (unprocessedKeys == null ? null : unprocessedKeys.get(table));
+                if (pending == null || pending.getKeys() == null || pending.getKeys().size() == 0)
+                    return items;
+            } catch(ProvisionedThroughputExceededException e) {
+                // Nothing in the batch was processed.  Retry the whole batch.
+                if (retry >= MAX_BATCH_RETRIES)
+                    throw e;
+            }
+
+            if (retry >= MAX_BATCH_RETRIES)
+                throw new JsodaException("Failed to batch get " + pending.getKeys().size() + " of " + keys.size() +
+                                         " items from " + table + " after " + MAX_BATCH_RETRIES + " retries.");
+
+            log.info("Retrying " + pending.getKeys().size() + " unprocessed keys of batch get on " + table + ".  Retry " + (retry + 1));
+            backoff(retry);
+        }
+    }
+
+    /** Sleep for an exponentially increasing and jittered delay before the retry-th retry. */
+    static void backoff(int retry)
+        throws InterruptedException
+    {
+        long    delayMS = Math.min(BATCH_RETRY_BASE_MS << Math.min(retry, 16), BATCH_RETRY_MAX_MS);
+        Thread.sleep(delayMS / 2 + (long)(sRandom.nextDouble() * delayMS / 2));
+    }
+
+    /** Format the primary key of an item for error reporting. */
+    private String itemKeyStr(String modelName, Map<String, AttributeValue> item) {
+        Field   idField = jsoda.getIdField(modelName);
+        Field   rangeField = jsoda.getRangeField(modelName);
+        String  idStr = attrStr(item.get(getFieldAttrName(modelName, idField.getName())));
+        return rangeField == null ? idStr : idStr + "/" + attrStr(item.get(getFieldAttrName(modelName, rangeField.getName())));
+    }
+
+    private static String keyStr(Key key) {
+        String  idStr = attrStr(key.getHashKeyElement());
+        return key.getRangeKeyElement() == null ? idStr : idStr + "/" + attrStr(key.getRangeKeyElement());
+    }
+
+    private static String attrStr(AttributeValue attr) {
+        if (attr == null)
+            return null;
+        return attr.getS() != null ? attr.getS() : attr.getN();
+    }
+
     private Key makeKey(String modelName, Object id, Object rangeKey)
         throws Exception
     {
@@ -430,23 +850,23 @@ class DynamoDBService implements DbService
     private <T> T itemToObj(Class<T> modelClass, Map<String, AttributeValue> attrs)
         throws Exception
     {
-        String      modelName = jsoda.getModelName(modelClass);
-        T           dataObj = modelClass.newInstance();
+        ModelAccessor   accessor = jsoda.getModelAccessor(jsoda.getModelName(modelClass));
+        T               dataObj = modelClass.newInstance();
 
         // Set the attr field 
-        for (String attrName : attrs.keySet()) {
-            Field   field = jsoda.getFieldByAttr(modelName, attrName);
+        for (Map.Entry<String, AttributeValue> entry : attrs.entrySet()) {
+            String                      attrName = entry.getKey();
+            ModelAccessor.FieldAccessor fa = accessor.getByAttr(attrName);
 
-            if (field == null) {
+            if (fa == null) {
                 //throw new Exception("Attribute " + attrName + " from db has no corresponding field in object " + modelClass);
                 log.warn("Attribute " + attrName + " from db has no corresponding field in model class " + modelClass);
                 continue;
             }
 
-            AttributeValue  attr = attrs.get(attrName);
-            Object          fieldValue = attrToValue(field, attr);
+            Object          fieldValue = attrToValue(fa.type, fa.setParamType, fa.codec, entry.getValue());
             //log.debug("attrName " + attrName + " attr: " + attr);
-            field.set(dataObj, fieldValue);
+            fa.set(dataObj, fieldValue);
         }
 
         return dataObj;
@@ -487,21 +907,10 @@ class DynamoDBService implements DbService
     }
 
     private <T> boolean addFilter(Query<T> query, QueryRequest queryReq, ScanRequest scanReq) {
-        boolean         hasIdEq = false;
-        boolean         hasRange = false;
-        boolean         doQuery;
-
-        // Find out if query has an Id EQ filter and a Range filter.
-        for (Filter filter : query.filters) {
-            if (jsoda.isIdField(query.modelName, filter.fieldName)) {
-                if (filter.operator.equals(Filter.EQ))
-                    hasIdEq = true;
-            } else if (jsoda.isRangeField(query.modelName, filter.fieldName)) {
-                hasRange = true;
-            }
-        }
-
-        doQuery = (hasIdEq && hasRange);
+        // The planner decides whether the conditions form a query on the Id and RangeKey.
+        String          planType = jsoda.getQueryPlanner().classify(query).getType();
+        boolean         doQuery = planType.equals(QueryPlan.RANGE_QUERY) ||
+                                  (planType.equals(QueryPlan.KEY_LOOKUP) && jsoda.getRangeField(query.modelName) != null);
 
         if (doQuery) {
             log.info("Query results in a DynamoDB query.");
@@ -614,5 +1023,215 @@ class DynamoDBService implements DbService
         }
     }
 
-}
 
+    // Index tables of the Indexed fields.  An index item has the indexed value as the hash key and the
+    // primary key string of the model item as the range key, along with the key values of the model item.
+
+    private boolean hasIndexes(String modelName) {
+        return jsoda.getIndexedFields(modelName).size() > 0;
+    }
+
+    /** Move the index entries of the changed items from their old values to the new values.  Null old item for new item and null new item for deleted item.
+     * Called after the items are written, so any failure is thrown as IndexUpdateException.
+     */
+    private void updateIndexes(String modelName, List<Map<String, AttributeValue>> oldItems, List<Map<String, AttributeValue>> newItems)
+        throws IndexUpdateException
+    {
+        try {
+            updateIndexTables(modelName, oldItems, newItems);
+        } catch(IndexUpdateException iue) {
+            throw iue;
+        } catch(Exception e) {
+            throw new IndexUpdateException("Failed to update the index tables of " + modelName + ".  Error: " + e.getMessage(), e);
+        }
+    }
+
+    private void updateIndexTables(String modelName, List<Map<String, AttributeValue>> oldItems, List<Map<String, AttributeValue>> newItems)
+        throws Exception
+    {
+        ModelAccessor   accessor = jsoda.getModelAccessor(modelName);
+
+        for (String fieldName : jsoda.getIndexedFields(modelName)) {
+            String              attrName = accessor.getDbField(fieldName).attrName;
+            List<WriteRequest>  writes = new ArrayList<WriteRequest>();
+
+            for (int i = 0; i < newItems.size(); i++) {
+                Map<String, AttributeValue> oldItem = oldItems.get(i);
+                Map<String, AttributeValue> newItem = newItems.get(i);
+                AttributeValue  oldValue = (oldItem == null ? null : oldItem.get(attrName));
+                AttributeValue  newValue = (newItem == null ? null : newItem.get(attrName));
+                if (oldValue == null ? newValue == null : oldValue.equals(newValue))
+                    continue;
+
+                Map<String, AttributeValue> keyItem = (newItem != null ? newItem : oldItem);
+                AttributeValue  pk = new AttributeValue().withS(indexPk(modelName, keyItem));
+                if (oldValue != null)
+                    writes.add(new WriteRequest().withDeleteRequest(new DeleteRequest().withKey(new Key(oldValue, pk))));
+                if (newValue != null) {
+                    Map<String, AttributeValue> indexItem = new HashMap<String, AttributeValue>();
+                    indexItem.put(INDEX_VALUE, newValue);
+                    indexItem.put(INDEX_PK, pk);
+                    indexItem.put(INDEX_ID, keyItem.get(accessor.idField.attrName));
+                    if (accessor.rangeField != null)
+                        indexItem.put(INDEX_RANGE, keyItem.get(accessor.rangeField.attrName));
+                    writes.add(new WriteRequest().withPutRequest(new PutRequest().withItem(indexItem)));
+                }
+            }
+
+            String  indexTable = jsoda.getIndexTable(modelName, fieldName);
+            int     failedCount = 0;
+            for (int offset = 0; offset < writes.size(); offset += MAX_WRITE_ITEMS)
+                failedCount += batchWriteItems(indexTable, writes.subList(offset, Math.min(offset + MAX_WRITE_ITEMS, writes.size()))).size();
+            if (failedCount > 0)
+                throw new IndexUpdateException("Failed to update " + failedCount + " entries of index table " + indexTable + " after " + MAX_BATCH_RETRIES + " retries.");
+        }
+    }
+
+    /** Primary key string of a model item, unique for the Id and RangeKey pair. */
+    private String indexPk(String modelName, Map<String, AttributeValue> item) {
+        ModelAccessor   accessor = jsoda.getModelAccessor(modelName);
+        String          idStr = attrStr(item.get(accessor.idField.attrName));
+        return accessor.rangeField == null ? idStr : idStr.length() + ":" + idStr + attrStr(item.get(accessor.rangeField.attrName));
+    }
+
+    private Key itemKey(String modelName, Map<String, AttributeValue> item) {
+        ModelAccessor   accessor = jsoda.getModelAccessor(modelName);
+        AttributeValue  idAttr = item.get(accessor.idField.attrName);
+        return accessor.rangeField == null ? new Key(idAttr) : new Key(idAttr, item.get(accessor.rangeField.attrName));
+    }
+
+    /** Copy the item, or create one if null, with the key attributes set. */
+    private Map<String, AttributeValue> keyToItem(String modelName, Key key, Map<String, AttributeValue> item) {
+        ModelAccessor               accessor = jsoda.getModelAccessor(modelName);
+        Map<String, AttributeValue> newItem = (item == null ? new HashMap<String, AttributeValue>() : new HashMap<String, AttributeValue>(item));
+        newItem.put(accessor.idField.attrName, key.getHashKeyElement());
+        if (accessor.rangeField != null)
+            newItem.put(accessor.rangeField.attrName, key.getRangeKeyElement());
+        return newItem;
+    }
+
+    /** Get the items of the keys, in the same order as the keys.  The entry for an item not existed is null. */
+    private List<Map<String, AttributeValue>> getItemsByKeys(String modelName, String table, List<Key> keys)
+        throws Exception
+    {
+        Map<String, Key>    uniqueKeys = new LinkedHashMap<String, Key>();
+        for (Key key : keys)
+            uniqueKeys.put(keyStr(key), key);
+
+        List<Key>                               keyList = new ArrayList<Key>(uniqueKeys.values());
+        Map<String, Map<String, AttributeValue>>    itemMap = new HashMap<String, Map<String, AttributeValue>>();
+        for (int offset = 0; offset < keyList.size(); offset += MAX_GET_ITEMS) {
+            for (Map<String, AttributeValue> item : batchGetItems(table, keyList.subList(offset, Math.min(offset + MAX_GET_ITEMS, keyList.size()))))
+                itemMap.put(keyStr(itemKey(modelName, item)), item);
+        }
+
+        List<Map<String, AttributeValue>>   items = new ArrayList<Map<String, AttributeValue>>(keys.size());
+        for (Key key : keys)
+            items.add(itemMap.get(keyStr(key)));
+        return items;
+    }
+
+    private static List<Map<String, AttributeValue>> withoutFailed(List<Map<String, AttributeValue>> items, List<Key> keys, Set<String> failed) {
+        if (failed.size() == 0)
+            return items;
+        List<Map<String, AttributeValue>>   result = new ArrayList<Map<String, AttributeValue>>();
+        for (int i = 0; i < keys.size(); i++) {
+            if (!failed.contains(keyStr(keys.get(i))))
+                result.add(items.get(i));
+        }
+        return result;
+    }
+
+    /** Return the filter to run on an index table, or null if the planner doesn't use an index for the query. */
+    private <T> Filter toIndexFilter(Query<T> query) {
+        return jsoda.getQueryPlanner().classify(query).indexFilter;
+    }
+
+    /** Look up the index table for the keys of a page of model items and batch get them.  An eq condition is
+     * a query on the index table.  The begins with and between conditions scan the index table, which is
+     * much smaller than the model table.
+     */
+    private <T> List<T> queryIndex(Class<T> modelClass, Query<T> query, Filter filter, boolean continueFromLastRun)
+        throws JsodaException
+    {
+        String  modelName = query.modelName;
+        String  table = jsoda.getModelTable(modelName);
+        String  indexTable = jsoda.getIndexTable(modelName, filter.fieldName);
+
+        try {
+            List<Map<String, AttributeValue>>   indexItems;
+            Key                                 startKey = continueFromLastRun ? (Key)query.nextKey : null;
+
+            log.info("Query results in a DynamoDB query on index table " + indexTable + ".");
+            if (filter.operator.equals(Filter.EQ)) {
+                QueryRequest    req = new QueryRequest().withTableName(indexTable)
+                    .withHashKeyValue(toCondition(filter).getAttributeValueList().get(0))
+                    .withConsistentRead(query.consistentRead)
+                    .withExclusiveStartKey(startKey);
+                if (query.limit > 0)
+                    req.setLimit(query.limit);
+                QueryResult     result = ddbClient.query(req);
+                query.nextKey = result.getLastEvaluatedKey();
+                indexItems = result.getItems();
+            } else {
+                ScanRequest     req = new ScanRequest().withTableName(indexTable)
+                    .withScanFilter(Collections.singletonMap(INDEX_VALUE, toCondition(filter)))
+                    .withExclusiveStartKey(startKey);
+                if (query.limit > 0)
+                    req.setLimit(query.limit);
+                ScanResult      result = ddbClient.scan(req);
+                query.nextKey = result.getLastEvaluatedKey();
+                indexItems = result.getItems();
+            }
+
+            List<Key>   keys = new ArrayList<Key>();
+            for (Map<String, AttributeValue> indexItem : indexItems) {
+                AttributeValue  rangeAttr = indexItem.get(INDEX_RANGE);
+                keys.add(rangeAttr == null ? new Key(indexItem.get(INDEX_ID)) : new Key(indexItem.get(INDEX_ID), rangeAttr));
+            }
+
+            String          attrName = jsoda.getModelAccessor(modelName).getDbField(filter.fieldName).attrName;
+            Set<String>     seen = new HashSet<String>();
+            List<T>         resultObjs = new ArrayList<T>();
+            for (Map<String, AttributeValue> item : getItemsByKeys(modelName, table, keys)) {
+                // Skip the stale entries of the items changed or deleted after the index entries were read.
+                if (item == null || !matchesIndexFilter(filter, item.get(attrName)) || !seen.add(keyStr(itemKey(modelName, item))))
+                    continue;
+                resultObjs.add(itemToObj(modelClass, item));
+            }
+            return resultObjs;
+        } catch(Exception e) {
+            throw new JsodaException("Query failed.  Error: " + e.getMessage(), e);
+        }
+    }
+
+    private <T> long countIndex(Query<T> query, Filter filter) {
+        String  indexTable = jsoda.getIndexTable(query.modelName, filter.fieldName);
+        if (filter.operator.equals(Filter.EQ)) {
+            return ddbClient.query(new QueryRequest().withTableName(indexTable).withCount(true)
+                                   .withHashKeyValue(toCondition(filter).getAttributeValueList().get(0))).getCount().intValue();
+        } else {
+            return ddbClient.scan(new ScanRequest().withTableName(indexTable).withCount(true)
+                                  .withScanFilter(Collections.singletonMap(INDEX_VALUE, toCondition(filter)))).getCount().intValue();
+        }
+    }
+
+    private boolean matchesIndexFilter(Filter filter, AttributeValue value) {
+        if (value == null)
+            return false;
+
+        List<AttributeValue>    operands = toCondition(filter).getAttributeValueList();
+        if (filter.operator.equals(Filter.EQ))
+            return compareAttr(value, operands.get(0)) == 0;
+        if (filter.operator.equals(Filter.BEGINS_WITH))
+            return value.getS() != null && value.getS().startsWith(operands.get(0).getS());
+        return compareAttr(value, operands.get(0)) >= 0 && compareAttr(value, operands.get(1)) <= 0;
+    }
+
+    private static int compareAttr(AttributeValue attr1, AttributeValue attr2) {
+        if (attr1.getN() != null && attr2.getN() != null)
+            return new BigDecimal(attr1.getN()).compareTo(new BigDecimal(attr2.getN()));
+        return attrStr(attr1).compareTo(attrStr(attr2));
+    }
+
+}
@@ -124,6 +124,26 @@ class Filter
     }
 
 
+    /** Db independent string of the condition, for keying the cached query results. */
+    String toCanonicalStr() {
+        StringBuilder   sb = new StringBuilder();
+        sb.append(fieldName).append(" ").append(operator);
+        if (operand != null)
+            sb.append(" ").append(canonicalValue(operand));
+        if (operand2 != null)
+            sb.append(" ").append(canonicalValue(operand2));
+        if (operands != null) {
+            for (Object valueObj : operands)
+                sb.append(" ").append(canonicalValue(valueObj));
+        }
+        return sb.toString();
+    }
+
+    private String canonicalValue(Object valueObj) {
+        String  str = DataUtil.canBeEncoded(valueObj, field.getType()) ? DataUtil.encodeValueToAttrStr(valueObj, field.getType()) : String.valueOf(valueObj);
+        return SimpleDBUtils.quoteValue(str);
+    }
+
     void toSimpleDBConditionStr(StringBuilder sb) {
 
         if (BINARY_OPERATORS.contains(operator)) {
@@ -0,0 +1,34 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+/**
+ * Thrown when the objects have been written to the model table but their entries in the index tables
+ * of the @Indexed fields failed to update.  The stale entries are dropped at query time, but a missing
+ * entry leaves its object out of the index queries until the indexed field is written with a new value.
+ */
+public class IndexUpdateException extends JsodaException {
+
+    public IndexUpdateException(String msg) {
+        super(msg);
+    }
+
+    public IndexUpdateException(String msg, Throwable cause) {
+        super(msg, cause);
+    }
+
+}
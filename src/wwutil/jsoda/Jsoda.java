@@ -34,8 +34,12 @@ import com.amazonaws.services.s3.AmazonS3Client;
 import wwutil.sys.FnUtil;
 import wwutil.sys.FnUtil.*;
 import wwutil.sys.ReflectUtil;
+import wwutil.sys.DaemonThreadFactory;
+import wwutil.sys.TlsMap;
 import wwutil.model.MemCacheable;
 import wwutil.model.MemCacheableSimple;
+import wwutil.model.MemCacheableConcurrent;
+import wwutil.model.Snapshotable;
 import wwutil.model.AnnotationRegistry;
 import wwutil.model.AnnotationClassHandler;
 import wwutil.model.AnnotationFieldHandler;
@@ -51,6 +55,7 @@ import wwutil.model.annotation.Model;
 import wwutil.model.annotation.AttrName;
 import wwutil.model.annotation.CachePolicy;
 import wwutil.model.annotation.CacheByField;
+import wwutil.model.annotation.Indexed;
 import wwutil.model.annotation.VersionLocking;
 import wwutil.model.annotation.S3Field;
 
@@ -65,12 +70,21 @@ public class Jsoda
 {
     private static Log  log = LogFactory.getLog(Jsoda.class);
 
+    public static final int     DEFAULT_ASYNC_THREADS = 16;         // thread count of the default executor for the async calls
+    public static final int     SHUTDOWN_WAIT_SECONDS = 30;         // wait for the pending async calls to drain at shutdown
+
     // Services
     private AWSCredentials          credentials;
     private ObjCacheMgr             objCacheMgr;
     private SimpleDBService         sdbMgr;
     private DynamoDBService         ddbMgr;
     private AmazonS3Client          s3Client;
+    private ExecutorService         executor;           // created on first use if not set
+    private ScheduledExecutorService    scheduler;      // created on first use for the write-behind flushes
+    private ExecutorService         prefetchExecutor;   // created on first use for the query iterator prefetching
+    private File                    cacheSnapshotFile;  // the cache is saved to it on shutdown
+    private QueryPlanner            queryPlanner;
+    private final Object            sessionTlsKey = new Object();   // key of the session bound to the thread in TlsMap
     private AnnotationRegistry      preStore1Registry;
     private AnnotationRegistry      preStore2Registry;
     private AnnotationRegistry      postLoadRegistry;
@@ -89,18 +103,22 @@ public class Jsoda
     private Map<String, Field>      modelRangeFields = new ConcurrentHashMap<String, Field>();
     private Map<String, Field>      modelVersionFields = new ConcurrentHashMap<String, Field>();
     private Map<String, Integer>    modelCachePolicy = new ConcurrentHashMap<String, Integer>();    // -1 for non-cacheable
+    private Map<String, Integer>    modelNotFoundCachePolicy = new ConcurrentHashMap<String, Integer>();    // 0 for not caching the not-found results
+    private Map<String, WriteBehindBuffer>  modelWriteBehind = new ConcurrentHashMap<String, WriteBehindBuffer>();  // absent for writing right away
     private Map<String, Map<String, Field>>     modelAllFieldMap = new ConcurrentHashMap<String, Map<String, Field>>();   // all fields include db, S3, and transient
     private Map<String, Map<String, Field>>     modelDbFieldMap = new ConcurrentHashMap<String, Map<String, Field>>();    // db fields are the ones stored at SimpleDB/DynamoDB
     private Map<String, Map<String, Field>>     modelAttrFieldMap = new ConcurrentHashMap<String, Map<String, Field>>();  // maps db attr names to db field names
     private Map<String, Map<String, String>>    modelFieldAttrMap = new ConcurrentHashMap<String, Map<String, String>>(); // mape db field names to attr names.
     private Map<String, Map<String, Field>>     modelS3FieldMap = new ConcurrentHashMap<String, Map<String, Field>>();    // s3 fields are the ones stored at S3
     private Map<String, Set<String>>            modelCacheByFields = new ConcurrentHashMap<String, Set<String>>();
+    private Map<String, Set<String>>            modelIndexedFields = new ConcurrentHashMap<String, Set<String>>();    // fields with index table, DynamoDB only
     private Map<String, Method>     modelPrePersistMethod = new ConcurrentHashMap<String, Method>();
     private Map<String, Method>     modelPreValidationMethod = new ConcurrentHashMap<String, Method>();
     private Map<String, Method>     modelPostLoadMethod = new ConcurrentHashMap<String, Method>();
     private Map<String, Dao>        modelDao = new ConcurrentHashMap<String, Dao>();
     private Map<String, S3Dao>      modelS3Dao = new ConcurrentHashMap<String, S3Dao>();
     private Map<String, EUtil>      modelEUtil = new ConcurrentHashMap<String, EUtil>();
+    private Map<String, ModelAccessor>  modelAccessors = new ConcurrentHashMap<String, ModelAccessor>();
 
 
 
@@ -110,7 +128,7 @@ public class Jsoda
     public Jsoda(AWSCredentials cred)
         throws Exception
     {
-        this(cred, new MemCacheableSimple(10000));
+        this(cred, new MemCacheableConcurrent(10000));
     }
 
     /** Set a cache service for the Jsoda object.  All objects accessed via the Jsoda object will be cached according to their CachePolicy. */
@@ -124,6 +142,7 @@ public class Jsoda
         this.objCacheMgr = new ObjCacheMgr(this, memCacheable);
         this.sdbMgr = new SimpleDBService(this, cred);
         this.ddbMgr = new DynamoDBService(this, cred);
+        this.queryPlanner = new QueryPlanner(this);
         this.s3Client = new AmazonS3Client(cred);
         this.preStore1Registry = BuiltinFunc.clonePreStore1Registry();
         this.preStore2Registry = BuiltinFunc.clonePreStore2Registry();
@@ -143,6 +162,50 @@ public class Jsoda
         return objCacheMgr.getMemCacheable();
     }
 
+    /** Set the snapshot file of the cache service for warm start.  If the file exists, its unexpired entries are
+     * loaded into the cache right away.  The live entries of the cache are saved to the file on shutdown().
+     * The cache service must implement Snapshotable, e.g. MemCacheableConcurrent, MemCacheableSimple, and MemCacheableOffHeap.
+     */
+    public Jsoda setCacheSnapshotFile(File file)
+        throws JsodaException
+    {
+        if (!(getMemCacheable() instanceof Snapshotable))
+            throw new JsodaException("The cache service " + getMemCacheable().getClass().getName() + " doesn't support snapshot.");
+        try {
+            this.cacheSnapshotFile = file;
+            if (file.exists()) {
+                int count = ((Snapshotable)getMemCacheable()).loadSnapshot(file);
+                log.info("Loaded " + count + " cache entries from " + file);
+            }
+            return this;
+        } catch(Exception e) {
+            throw new JsodaException("Failed to load cache snapshot from " + file, e);
+        }
+    }
+
+    /** Set the transport to invalidate the cached objects among the Jsoda objects on different nodes.
+     * The keys of the objects written or deleted via this Jsoda object are published to the peers, and the keys
+     * published by the peers are evicted from the cache of this Jsoda object.  Pass null to stop it.
+     * The transport is shut down on shutdown().
+     */
+    public Jsoda setCacheInvalidator(CacheInvalidator invalidator)
+        throws JsodaException
+    {
+        try {
+            objCacheMgr.setCacheInvalidator(invalidator);
+            return this;
+        } catch(Exception e) {
+            throw new JsodaException("Failed to start the cache invalidator", e);
+        }
+    }
+
+    /** Return the prefix of the cache keys of the model's objects, e.g. for setting a MemCacheableSimple.setPrefixBudget().
+     * The model class must have been registered.
+     */
+    public <T> String getCacheKeyPrefix(Class<T> modelClass) {
+        return objCacheMgr.makeCacheModelPrefix(getModelName(modelClass));
+    }
+
     /** Set the AWS service endpoint for the underlying dbtype.  Different AWS region might have different endpoint. */
     public Jsoda setDbEndpoint(DbType dbtype, String endpoint) {
         getDbService(dbtype).setDbEndpoint(endpoint);
@@ -204,10 +267,104 @@ public class Jsoda
         return this.s3KeyPrefix;
     }
 
+    /** Set the executor to run the async calls of AsyncDao and Query.runAsync().
+     * The Jsoda object takes over the executor and shuts it down in shutdown().
+     * A previously set executor is shut down after its pending calls are done.
+     */
+    public Jsoda setExecutor(ExecutorService executor) {
+        ExecutorService oldExecutor;
+        synchronized(this) {
+            oldExecutor = this.executor;
+            this.executor = executor;
+        }
+        if (oldExecutor != null && oldExecutor != executor)
+            oldExecutor.shutdown();
+        return this;
+    }
+
+    /** Return the executor for the async calls.  A default pool of DEFAULT_ASYNC_THREADS daemon threads is created if none is set. */
+    public synchronized ExecutorService getExecutor() {
+        if (executor == null)
+            executor = Executors.newFixedThreadPool(DEFAULT_ASYNC_THREADS, new DaemonThreadFactory("jsoda-async-"));
+        return executor;
+    }
+
+
+    /** Refuse to run a query planned as a scan when the table has more than maxScanItems items.
+     * The item count comes from the table statistics of the database, capped by the query's limit for run().
+     * count() and parallelScan() read the whole result and are checked without the cap.
+     * When the statistics are not available, a scan is refused unless its limit is within maxScanItems.
+     * 0 for no limit, the default.  See Query.explain().
+     */
+    public Jsoda setMaxScanItems(long maxScanItems) {
+        queryPlanner.setMaxScanItems(maxScanItems);
+        return this;
+    }
+
+    public long getMaxScanItems() {
+        return queryPlanner.getMaxScanItems();
+    }
+
+    QueryPlanner getQueryPlanner() {
+        return queryPlanner;
+    }
+
+
+    /** Open a session and bind it to the current thread.  The Dao calls on the thread go through the session
+     * until it's closed.  See JsodaSession.
+     */
+    public JsodaSession openSession()
+        throws JsodaException
+    {
+        if (currentSession() != null)
+            throw new JsodaException("A session is already open on the current thread.");
+        JsodaSession    session = new JsodaSession(this);
+        TlsMap.put(sessionTlsKey, session);
+        return session;
+    }
+
+    /** Return the session bound to the current thread, or null if none is open. */
+    public JsodaSession currentSession() {
+        return (JsodaSession)TlsMap.get(sessionTlsKey);
+    }
+
+    void unbindSession(JsodaSession session) {
+        if (TlsMap.get(sessionTlsKey) == session)
+            TlsMap.remove(sessionTlsKey);
+    }
+
+    /** Return the executor for the page prefetching of QueryIterator.  It's kept apart from the executor of the async calls,
+     * since a prefetch waits on its consumer and must not hold up the async calls.  Threads are created as needed.
+     */
+    synchronized ExecutorService getPrefetchExecutor() {
+        if (prefetchExecutor == null)
+            prefetchExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("jsoda-prefetch-"));
+        return prefetchExecutor;
+    }
+
+    /** Return the scheduler for the delayed background work, e.g. the write-behind flushes. */
+    synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null)
+            scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("jsoda-write-behind-"));
+        return scheduler;
+    }
+
+    /** Write out the queued objects of all the write-behind models.  See Model.writeBehindMillis. */
+    public void flush()
+        throws JsodaException
+    {
+        for (Dao dao : modelDao.values())
+            dao.flush();
+    }
+
 
     /** Shut down any underlying database services and free up resources */
     public void shutdown() {
+        drainExecutor();
+        flushWriteBehind();
+        saveCacheSnapshot();
         objCacheMgr.shutdown();
+        queryPlanner.clearStats();
         sdbMgr.shutdown();
         ddbMgr.shutdown();
         modelClasses.clear();
@@ -218,18 +375,77 @@ public class Jsoda
         modelRangeFields.clear();
         modelVersionFields.clear();
         modelCachePolicy.clear();
+        modelNotFoundCachePolicy.clear();
+        modelWriteBehind.clear();
         modelAllFieldMap.clear();
         modelDbFieldMap.clear();
         modelAttrFieldMap.clear();
         modelFieldAttrMap.clear();
         modelS3FieldMap.clear();
         modelCacheByFields.clear();
+        modelIndexedFields.clear();
         modelPrePersistMethod.clear();
         modelPreValidationMethod.clear();
         modelPostLoadMethod.clear();
         modelDao.clear();
         modelS3Dao.clear();
         modelEUtil.clear();
+        modelAccessors.clear();
+    }
+
+
+    private void drainExecutor() {
+        ExecutorService oldExecutor;
+        ExecutorService oldPrefetchExecutor;
+        synchronized(this) {
+            oldExecutor = executor;
+            executor = null;
+            oldPrefetchExecutor = prefetchExecutor;
+            prefetchExecutor = null;
+        }
+        if (oldPrefetchExecutor != null)
+            oldPrefetchExecutor.shutdownNow();
+        if (oldExecutor == null)
+            return;
+
+        oldExecutor.shutdown();
+        try {
+            if (!oldExecutor.awaitTermination(SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("Async calls not finished after " + SHUTDOWN_WAIT_SECONDS + " seconds.  Cancel the remaining ones.");
+                oldExecutor.shutdownNow();
+            }
+        } catch(InterruptedException e) {
+            oldExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flushWriteBehind() {
+        for (Map.Entry<String, Dao> entry : modelDao.entrySet()) {
+            try {
+                entry.getValue().flush();
+            } catch(Exception e) {
+                log.error("Failed to flush the write-behind objects of " + entry.getKey() + " at shutdown.", e);
+            }
+        }
+
+        ScheduledExecutorService    oldScheduler;
+        synchronized(this) {
+            oldScheduler = scheduler;
+            scheduler = null;
+        }
+        if (oldScheduler != null)
+            oldScheduler.shutdownNow();
+    }
+
+    private void saveCacheSnapshot() {
+        if (cacheSnapshotFile == null || !(getMemCacheable() instanceof Snapshotable))
+            return;
+        try {
+            ((Snapshotable)getMemCacheable()).saveSnapshot(cacheSnapshotFile);
+        } catch(Exception e) {
+            log.warn("Failed to save cache snapshot to " + cacheSnapshotFile, e);
+        }
     }
 
 
@@ -281,12 +497,15 @@ public class Jsoda
             if (versionField != null)
                 modelVersionFields.put(modelName, versionField);
             toCachePolicy(modelName, modelClass);
+            toWriteBehind(modelName, modelClass, versionField);
             modelAllFieldMap.put(modelName, toFieldMap(allFields));
             modelDbFieldMap.put(modelName, toFieldMap(dbFields));
             modelAttrFieldMap.put(modelName, toAttrFieldMap(dbFields));
             modelFieldAttrMap.put(modelName, toFieldAttrMap(dbFields));
             modelS3FieldMap.put(modelName, toFieldMap(s3Fields));
             modelCacheByFields.put(modelName, toCacheByFields(dbFields));  // Build CacheByFields on all db fields, including the Id field
+            modelIndexedFields.put(modelName, toIndexedFields(modelClass, dbFields, idField, rangeField, modelDb.get(modelName).getDbType()));
+            modelAccessors.put(modelName, new ModelAccessor(modelName, allFields, dbFields, idField, rangeField, modelCacheByFields.get(modelName)));
             toAnnotatedMethods(modelName, modelClass);
             modelDao.put(modelName, new Dao<T>(modelClass, this));
             modelS3Dao.put(modelName, new S3Dao<T>(modelClass, this));
@@ -297,6 +516,11 @@ public class Jsoda
             validationRegistry.checkModelOnFields(modelAllFieldMap.get(modelName));
             postLoadRegistry.checkModelOnFields(modelAllFieldMap.get(modelName));
 
+            preStore1Registry.prepareModel(modelClass, modelAllFieldMap.get(modelName));
+            preStore2Registry.prepareModel(modelClass, modelAllFieldMap.get(modelName));
+            validationRegistry.prepareModel(modelClass, modelAllFieldMap.get(modelName));
+            postLoadRegistry.prepareModel(modelClass, modelAllFieldMap.get(modelName));
+
         } catch(JsodaException je) {
             throw je;
         } catch(Exception e) {
@@ -443,6 +667,8 @@ public class Jsoda
         String  modelName = getModelName(modelClass);
         String  tableName = getModelTable(modelName);
         getDb(modelName).deleteTable(tableName);
+        for (String fieldName : getIndexedFields(modelName))
+            getDb(modelName).deleteTable(getIndexTable(modelName, fieldName));
     }
 
     /** Delete the table in the database, as named in tableName, in the dbtype */
@@ -565,6 +791,11 @@ public class Jsoda
         return modelAttrFieldMap.get(modelName);
     }
 
+    ModelAccessor getModelAccessor(String modelName) {
+        validateRegisteredModel(modelName);
+        return modelAccessors.get(modelName);
+    }
+
     Map<String, Field> getS3Fields(String modelName) {
         return modelS3FieldMap.get(modelName);
     }
@@ -573,10 +804,29 @@ public class Jsoda
         return modelCacheByFields.get(modelName);
     }
 
+    Set<String> getIndexedFields(String modelName) {
+        return modelIndexedFields.get(modelName);
+    }
+
+    /** Return the name of the index table of an Indexed field. */
+    String getIndexTable(String modelName, String fieldName) {
+        return getModelTable(modelName) + "_idx_" + fieldName;
+    }
+
     Integer getCachePolicy(String modelName) {
         return modelCachePolicy.get(modelName);
     }
 
+    Integer getNotFoundCachePolicy(String modelName) {
+        return modelNotFoundCachePolicy.get(modelName);
+    }
+
+    /** Return the write-behind buffer of the model, shared by all its Dao objects.  Null if the model writes right away. */
+    @SuppressWarnings("unchecked")
+    <T> WriteBehindBuffer<T> getWriteBehind(String modelName) {
+        return (WriteBehindBuffer<T>)modelWriteBehind.get(modelName);
+    }
+
     Method getPrePersistMethod(String modelName) {
         return modelPrePersistMethod.get(modelName);
     }
@@ -592,18 +842,19 @@ public class Jsoda
     String makePkKey(String modelName, Object dataObj)
         throws java.lang.IllegalAccessException
     {
-        Field   idField = getIdField(modelName);
-        Object  idKey = idField.get(dataObj);
-        Field   rangeField = getRangeField(modelName);
-        Object  rangeKey = rangeField == null ? null : rangeField.get(dataObj);
-        return makePkKey(modelName, idKey, rangeKey);
+        ModelAccessor   accessor = getModelAccessor(modelName);
+        Object          idKey = accessor.idField.get(dataObj);
+        Object          rangeKey = accessor.rangeField == null ? null : accessor.rangeField.get(dataObj);
+        return makePkKey(accessor, idKey, rangeKey);
     }
 
     String makePkKey(String modelName, Object idKey, Object rangeKey) {
-        String  dbId = getDb(modelName).getDbTypeId();
-        String  idStr = DataUtil.encodeValueToAttrStr(idKey, getIdField(modelName).getType());
-        Field   rangeField = getRangeField(modelName);
-        return rangeField == null ? idStr : idStr + "/" + DataUtil.encodeValueToAttrStr(rangeKey, rangeField.getType());
+        return makePkKey(getModelAccessor(modelName), idKey, rangeKey);
+    }
+
+    private String makePkKey(ModelAccessor accessor, Object idKey, Object rangeKey) {
+        String  idStr = accessor.idField.codec.encode(idKey);
+        return accessor.rangeField == null ? idStr : idStr + "/" + accessor.rangeField.codec.encode(rangeKey);
     }
 
 
@@ -716,6 +967,20 @@ public class Jsoda
         return prefix + tableName;
     }
 
+    private <T> void toWriteBehind(String modelName, Class<T> modelClass, Field versionField)
+        throws Exception
+    {
+        int     millis = ReflectUtil.getAnnotationValue(modelClass, Model.class, "writeBehindMillis", Integer.class, 0);
+        if (millis < 0)
+            throw new IllegalArgumentException("Model class " + modelClass.getName() + " has negative Model.writeBehindMillis.");
+        if (millis > 0 && versionField != null)
+            throw new IllegalArgumentException("Model class " + modelClass.getName() + " cannot use Model.writeBehindMillis with VersionLocking.");
+        if (millis > 0)
+            modelWriteBehind.put(modelName, new WriteBehindBuffer<T>(modelClass, this, millis));
+        else
+            modelWriteBehind.remove(modelName);
+    }
+
     private void toCachePolicy(String modelName, Class modelClass)
         throws Exception
     {
@@ -734,7 +999,11 @@ public class Jsoda
             if (cacheable) {
                 // Serializable and Cacheable.  Can cache.
                 int expireInSeconds = ReflectUtil.getAnnotationValue(modelClass, CachePolicy.class, "expireInSeconds", Integer.class, 0);
+                int notFoundExpireInSeconds = ReflectUtil.getAnnotationValue(modelClass, CachePolicy.class, "notFoundExpireInSeconds", Integer.class, 0);
+                if (notFoundExpireInSeconds < 0)
+                    throw new IllegalArgumentException("Model class " + modelClass.getName() + " has negative CachePolicy.notFoundExpireInSeconds.");
                 modelCachePolicy.put(modelName, new Integer(expireInSeconds));
+                modelNotFoundCachePolicy.put(modelName, Integer.valueOf(notFoundExpireInSeconds));
                 return;
             }
         } else {
@@ -746,6 +1015,7 @@ public class Jsoda
 
         // Don't cache objects of the model.
         modelCachePolicy.put(modelName, new Integer(-1));
+        modelNotFoundCachePolicy.put(modelName, Integer.valueOf(0));
     }
 
 
@@ -791,6 +1061,22 @@ public class Jsoda
         }
     }
 
+    private Set<String> toIndexedFields(Class modelClass, List<Field> fields, Field idField, Field rangeField, DbType dbtype)
+        throws Exception
+    {
+        Set<String> set = new HashSet<String>();
+        for (Field field : fields) {
+            if (!ReflectUtil.hasAnnotation(field, Indexed.class))
+                continue;
+            if (field.equals(idField) || field.equals(rangeField) || Set.class.isAssignableFrom(field.getType()))
+                throw new IllegalArgumentException("The Id, RangeKey, or Set field " + field.getName() + " of " + modelClass.getName() + " cannot be Indexed.");
+            // SimpleDB indexes all attributes.  Only DynamoDB needs the index table.
+            if (dbtype == DbType.DynamoDB)
+                set.add(field.getName());
+        }
+        return set;
+    }
+
     private Set<String> toCacheByFields(List<Field> fields)
         throws Exception
     {
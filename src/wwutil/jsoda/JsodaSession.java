@@ -0,0 +1,253 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.util.*;
+import java.lang.reflect.Field;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+
+/**
+ * Unit of work over a Jsoda object, e.g. for one web request.  The session keeps an identity map of
+ * the objects it has loaded, so repeated gets of the same key return the same instance without going
+ * to the cache or the db.  Puts are deferred and collapsed by key until commit(), which writes them
+ * in one batchPut per model.
+ * <pre>
+ * A session opened by Jsoda.openSession() is bound to the current thread.  The Dao calls on the thread go through it.
+ *   JsodaSession session = jsoda.openSession();
+ *   try {
+ *       Model1 obj = jsoda.dao(Model1.class).get("abc");    // loaded once
+ *       obj.age++;
+ *       jsoda.dao(Model1.class).put(obj);                   // deferred
+ *       session.commit();
+ *   } finally {
+ *       session.close();
+ *   }
+ * A session created by new JsodaSession(jsoda) is not bound.  Call its get() and put() directly.
+ * </pre>
+ * Deletes are not deferred.  They go to the db right away and drop the object from the session.
+ * A session is not thread-safe.  Use it on one thread.
+ */
+@SuppressWarnings("unchecked")
+public class JsodaSession
+{
+    private static Log  log = LogFactory.getLog(JsodaSession.class);
+
+    private static final Object     NOT_FOUND = new Object();
+
+    private Jsoda                           jsoda;
+    private Map<String, Object>             identityMap = new HashMap<String, Object>();
+    private LinkedHashMap<String, Object>   dirtyObjs = new LinkedHashMap<String, Object>();
+    private int                             hits;
+
+
+    public JsodaSession(Jsoda jsoda) {
+        this.jsoda = jsoda;
+    }
+
+    public <T> T get(Class<T> modelClass, Object id)
+        throws JsodaException
+    {
+        return get(modelClass, id, null);
+    }
+
+    public <T> T get(Class<T> modelClass, Object hashKey, Object rangeKey)
+        throws JsodaException
+    {
+        return find(jsoda.dao(modelClass), hashKey, rangeKey);
+    }
+
+    /** Defer the put of the object until commit().  Repeated puts of the same key are collapsed into one. */
+    public <T> void put(T dataObj)
+        throws JsodaException
+    {
+        jsoda.dao(dataObj.getClass());      // register the model on first use
+        String  key = toKey(dataObj);
+        identityMap.put(key, dataObj);
+        dirtyObjs.put(key, dataObj);
+    }
+
+    /** Write the deferred puts, in one batchPut per model.  Models with VersionLocking are put one by one. */
+    public void commit()
+        throws JsodaException
+    {
+        Map<Class, List<Object>>    modelObjs = new LinkedHashMap<Class, List<Object>>();
+        for (Object dataObj : dirtyObjs.values()) {
+            List<Object>    objs = modelObjs.get(dataObj.getClass());
+            if (objs == null) {
+                objs = new ArrayList<Object>();
+                modelObjs.put(dataObj.getClass(), objs);
+            }
+            objs.add(dataObj);
+        }
+
+        for (Map.Entry<Class, List<Object>> entry : modelObjs.entrySet()) {
+            Dao     dao = jsoda.dao(entry.getKey());
+            if (jsoda.getVersionField(jsoda.getModelName(entry.getKey())) == null) {
+                dao.batchPutNow(entry.getValue());
+            } else {
+                for (Object dataObj : entry.getValue())
+                    dao.putNow(dataObj);
+            }
+            // Drop the written ones so a failed commit can be retried with the rest.
+            for (Object dataObj : entry.getValue())
+                dirtyObjs.remove(toKey(dataObj));
+        }
+    }
+
+    /** Discard the loaded objects and the deferred puts. */
+    public void clear() {
+        identityMap.clear();
+        dirtyObjs.clear();
+    }
+
+    /** Discard the session.  Unbind it from the current thread if it's bound.  Deferred puts not committed are dropped. */
+    public void close() {
+        if (dirtyObjs.size() > 0)
+            log.warn("Session closed with " + dirtyObjs.size() + " puts not committed.");
+        clear();
+        jsoda.unbindSession(this);
+    }
+
+    /** Return the number of deferred puts not committed. */
+    public int getPendingCount() {
+        return dirtyObjs.size();
+    }
+
+    /** Return the number of gets served from the identity map. */
+    public int getHits() {
+        return hits;
+    }
+
+
+    <T> T find(Dao<T> dao, Object id, Object rangeKey)
+        throws JsodaException
+    {
+        String  key = toKey(dao.getModelName(), id, rangeKey);
+        if (identityMap.containsKey(key)) {
+            hits++;
+            return fromIdentity(identityMap.get(key));
+        }
+
+        T       obj = dao.getNow(id, rangeKey);
+        identityMap.put(key, obj == null ? NOT_FOUND : obj);
+        return obj;
+    }
+
+    <T> List<T> findAll(Dao<T> dao, List idList, List rangeKeyList)
+        throws JsodaException
+    {
+        List<T>         resultObjs = new ArrayList<T>(Collections.<T>nCopies(idList.size(), null));
+        List<Integer>   missPositions = new ArrayList<Integer>();
+        List<Object>    missIds = new ArrayList<Object>();
+        List<Object>    missRangeKeys = rangeKeyList == null ? null : new ArrayList<Object>();
+
+        for (int i = 0; i < idList.size(); i++) {
+            Object  rangeKey = rangeKeyList == null ? null : rangeKeyList.get(i);
+            String  key = toKey(dao.getModelName(), idList.get(i), rangeKey);
+            if (identityMap.containsKey(key)) {
+                hits++;
+                resultObjs.set(i, (T)fromIdentity(identityMap.get(key)));
+            } else {
+                missPositions.add(i);
+                missIds.add(idList.get(i));
+                if (missRangeKeys != null)
+                    missRangeKeys.add(rangeKey);
+            }
+        }
+
+        if (missIds.size() == 0)
+            return resultObjs;
+
+        List<T> loadedObjs = dao.getAllNow(missIds, missRangeKeys);
+        for (int i = 0; i < loadedObjs.size(); i++) {
+            String  key = toKey(dao.getModelName(), missIds.get(i), missRangeKeys == null ? null : missRangeKeys.get(i));
+            T       obj = loadedObjs.get(i);
+            if (!identityMap.containsKey(key))
+                identityMap.put(key, obj == null ? NOT_FOUND : obj);
+            resultObjs.set(missPositions.get(i), (T)fromIdentity(identityMap.get(key)));
+        }
+        return resultObjs;
+    }
+
+    /** Look up the session's objects of the model by the field value, before going to the cache and the db. */
+    <T> T findBy(Dao<T> dao, String field, Object fieldValue)
+        throws JsodaException
+    {
+        if (fieldValue != null) {
+            String  prefix = dao.getModelName() + "/";
+            Field   modelField = jsoda.getField(dao.getModelName(), field);
+            try {
+                for (Map.Entry<String, Object> entry : identityMap.entrySet()) {
+                    Object  obj = entry.getValue();
+                    if (obj != NOT_FOUND && entry.getKey().startsWith(prefix) && fieldValue.equals(modelField.get(obj))) {
+                        hits++;
+                        return (T)obj;
+                    }
+                }
+            } catch(IllegalAccessException e) {
+                throw new JsodaException("Failed to read field " + field + " of " + dao.getModelName(), e);
+            }
+        }
+        return attach(dao.findByNow(field, fieldValue));
+    }
+
+    /** Return the session's instance of the object if it has one, otherwise keep the object as the session's instance. */
+    <T> T attach(T dataObj)
+        throws JsodaException
+    {
+        if (dataObj == null)
+            return null;
+        String  key = toKey(dataObj);
+        Object  obj = identityMap.get(key);
+        if (obj != null && obj != NOT_FOUND)
+            return (T)obj;
+        identityMap.put(key, dataObj);
+        return dataObj;
+    }
+
+    /** The object is deleted.  Drop its deferred put and remember it's gone. */
+    void deleted(String modelName, Object id, Object rangeKey) {
+        String  key = toKey(modelName, id, rangeKey);
+        dirtyObjs.remove(key);
+        identityMap.put(key, NOT_FOUND);
+    }
+
+
+    private static <T> T fromIdentity(Object obj) {
+        return obj == NOT_FOUND ? null : (T)obj;
+    }
+
+    private String toKey(Object dataObj)
+        throws JsodaException
+    {
+        try {
+            String  modelName = jsoda.getModelName(dataObj.getClass());
+            return modelName + "/" + jsoda.makePkKey(modelName, dataObj);
+        } catch(Exception e) {
+            throw new JsodaException("Failed to get the key of object " + dataObj, e);
+        }
+    }
+
+    private String toKey(String modelName, Object id, Object rangeKey) {
+        return modelName + "/" + jsoda.makePkKey(modelName, id, rangeKey);
+    }
+
+}
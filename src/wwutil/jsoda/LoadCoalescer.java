@@ -0,0 +1,85 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+
+
+/**
+ * Coalesce the concurrent loads of the same key into one in-flight load.
+ * The first caller of a key runs the loader and the other callers arriving
+ * while it's running wait for it and share its result.  The number of keys
+ * in flight is bounded; when full, the callers just run their own loads.
+ */
+@SuppressWarnings("unchecked")
+class LoadCoalescer
+{
+    public static final int     DEFAULT_MAX_IN_FLIGHT = 10000;
+
+    private final int                                   maxInFlight;
+    private final ConcurrentMap<String, FutureTask>     inFlight = new ConcurrentHashMap<String, FutureTask>();
+
+
+    LoadCoalescer() {
+        this(DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    LoadCoalescer(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /** Run the loader for the key, or wait for the one already in flight for the key. */
+    <V> V load(String key, Callable<V> loader)
+        throws Exception
+    {
+        FutureTask<V>   task = (FutureTask<V>)inFlight.get(key);
+        if (task == null) {
+            if (inFlight.size() >= maxInFlight)
+                return loader.call();
+
+            FutureTask<V>   newTask = new FutureTask<V>(loader);
+            task = (FutureTask<V>)inFlight.putIfAbsent(key, newTask);
+            if (task == null) {
+                task = newTask;
+                try {
+                    newTask.run();
+                } finally {
+                    inFlight.remove(key, newTask);
+                }
+            }
+        }
+
+        try {
+            return task.get();
+        } catch(ExecutionException e) {
+            if (e.getCause() instanceof Exception)
+                throw (Exception)e.getCause();
+            throw e;
+        }
+    }
+
+    int inFlightCount() {
+        return inFlight.size();
+    }
+
+    void clear() {
+        inFlight.clear();
+    }
+
+}
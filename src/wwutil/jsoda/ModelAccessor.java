@@ -0,0 +1,132 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.util.*;
+import java.lang.reflect.*;
+
+import wwutil.sys.ReflectUtil;
+import wwutil.model.annotation.AttrName;
+
+
+/**
+ * Per-model table of field accessors, built once at model registration.
+ * The marshalling paths go through the flat accessor arrays instead of looking up the field maps
+ * and the field metadata on every object.  The fields are made accessible once here so that
+ * Field.get/set skip the access checks.
+ */
+class ModelAccessor
+{
+    /** Accessor of one field, with its metadata resolved up front. */
+    static class FieldAccessor {
+        final Field     field;
+        final String    fieldName;
+        final String    attrName;
+        final Class     type;
+        final Class     setParamType;       // type parameter of a Set field, null for other field types.
+        final AttrCodec codec;
+        final boolean   isId;
+        final boolean   isRange;
+
+        FieldAccessor(Field field, String attrName, boolean isId, boolean isRange) {
+            field.setAccessible(true);
+            this.field = field;
+            this.fieldName = field.getName();
+            this.attrName = attrName;
+            this.type = field.getType();
+            this.setParamType = Set.class.isAssignableFrom(type) ? ReflectUtil.getGenericParamType1(field.getGenericType()) : null;
+            this.codec = AttrCodec.forType(type);
+            this.isId = isId;
+            this.isRange = isRange;
+        }
+
+        Object get(Object dataObj)
+            throws IllegalAccessException
+        {
+            return field.get(dataObj);
+        }
+
+        void set(Object dataObj, Object value)
+            throws IllegalAccessException
+        {
+            field.set(dataObj, value);
+        }
+    }
+
+
+    final String                        modelName;
+    final FieldAccessor                 idField;
+    final FieldAccessor                 rangeField;     // null if the model has no range key.
+    final FieldAccessor[]               dbFields;       // fields stored at the db, including the key fields.
+    final FieldAccessor[]               cacheByFields;
+    final Map<String, FieldAccessor>    attrFields;     // db attr name to field accessor.
+
+
+    ModelAccessor(String modelName, List<Field> allFields, List<Field> dbFields, Field idField, Field rangeField, Set<String> cacheByFields)
+        throws Exception
+    {
+        // Make all fields accessible once.  The field handlers and the S3 fields use the same Field objects.
+        for (Field field : allFields)
+            field.setAccessible(true);
+
+        this.modelName = modelName;
+        this.dbFields = new FieldAccessor[dbFields.size()];
+        this.attrFields = new HashMap<String, FieldAccessor>();
+
+        FieldAccessor   idAccessor = null;
+        FieldAccessor   rangeAccessor = null;
+        for (int i = 0; i < dbFields.size(); i++) {
+            Field           field = dbFields.get(i);
+            String          attrName = ReflectUtil.getAnnotationValue(field, AttrName.class, "value", field.getName());
+            FieldAccessor   accessor = new FieldAccessor(field, attrName, field.equals(idField), field.equals(rangeField));
+            this.dbFields[i] = accessor;
+            this.attrFields.put(attrName, accessor);
+            if (accessor.isId)
+                idAccessor = accessor;
+            if (accessor.isRange)
+                rangeAccessor = accessor;
+        }
+        this.idField = idAccessor != null ? idAccessor : new FieldAccessor(idField, idField.getName(), true, false);
+        this.rangeField = rangeAccessor;
+
+        // The Id field can also be looked up by its field name.
+        if (!attrFields.containsKey(this.idField.fieldName))
+            attrFields.put(this.idField.fieldName, this.idField);
+
+        List<FieldAccessor> cacheByList = new ArrayList<FieldAccessor>();
+        for (FieldAccessor accessor : this.dbFields) {
+            if (cacheByFields.contains(accessor.fieldName))
+                cacheByList.add(accessor);
+        }
+        this.cacheByFields = cacheByList.toArray(new FieldAccessor[cacheByList.size()]);
+    }
+
+    /** Return the accessor of the db attribute name, or null if the attribute has no corresponding field. */
+    FieldAccessor getByAttr(String attrName) {
+        return attrFields.get(attrName);
+    }
+
+    /** Return the accessor of the db field name, or null if it's not a db field. */
+    FieldAccessor getDbField(String fieldName) {
+        for (FieldAccessor accessor : dbFields) {
+            if (accessor.fieldName.equals(fieldName))
+                return accessor;
+        }
+        return null;
+    }
+
+}
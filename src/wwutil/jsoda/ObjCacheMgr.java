@@ -17,14 +17,19 @@
 package wwutil.jsoda;
 
 import java.io.*;
+import java.util.*;
 import java.lang.reflect.*;
+import java.util.concurrent.Callable;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import wwutil.model.MemCacheable;
 import wwutil.model.MemCacheableNoop;
+import wwutil.model.MultiGettable;
+import wwutil.model.Peekable;
 import wwutil.model.annotation.CachePolicy;
+import wwutil.sys.IOUtil;
 
 
 /**
@@ -34,8 +39,21 @@ class ObjCacheMgr
 {
     private static Log  log = LogFactory.getLog(ObjCacheMgr.class);
 
+    /** Marker cached in place of an object not found in the db. */
+    static final class NotFound implements Serializable {
+        private static final long       serialVersionUID = 1L;
+        static final NotFound           INSTANCE = new NotFound();
+
+        private Object readResolve() {
+            return INSTANCE;
+        }
+    }
+
     private Jsoda           jsoda;
     private MemCacheable    memCacheable;
+    private LoadCoalescer   loadCoalescer = new LoadCoalescer();
+    private QueryCache      queryCache = new QueryCache();
+    private CacheInvalidator    invalidator;
 
 
     ObjCacheMgr(Jsoda jsoda, MemCacheable memCacheable) {
@@ -44,6 +62,10 @@ class ObjCacheMgr
     }
 
     void shutdown() {
+        if (invalidator != null)
+            invalidator.shutdown();
+        loadCoalescer.clear();
+        queryCache.clear();
     }
 
     void setMemCacheable(MemCacheable memCacheable) {
@@ -57,15 +79,73 @@ class ObjCacheMgr
         return memCacheable;
     }
 
-    private String makeCachePkKey(String modelName, String pkKey) {
+    QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    synchronized void setCacheInvalidator(CacheInvalidator newInvalidator)
+        throws Exception
+    {
+        if (invalidator != null)
+            invalidator.shutdown();
+        invalidator = newInvalidator;
+        if (newInvalidator != null) {
+            newInvalidator.start(new CacheInvalidator.Listener() {
+                public void invalidate(Collection<String> keys) {
+                    for (String key : keys)
+                        evictKey(key);
+                }
+            });
+        }
+    }
+
+    private void publish(String key) {
+        CacheInvalidator    inv = invalidator;
+        if (inv != null)
+            inv.publish(key);
+    }
+
+    /** Evict a key invalidated by a peer.  The CacheByField entries of an object evicted by its primary key are evicted as well. */
+    void evictKey(String key) {
+        int     slash1 = key.indexOf('/');
+        int     slash2 = slash1 < 0 ? -1 : key.indexOf('/', slash1 + 1);
+        String  modelName = slash2 < 0 ? null : key.substring(slash1 + 1, slash2);
+
+        if (modelName != null && jsoda.getCacheByFields(modelName) != null) {
+            queryCache.bumpGeneration(modelName);
+            if (key.startsWith(makeCacheModelPrefix(modelName) + "pk/")) {
+                Object  dataObj = memCacheable.get(key);
+                if (dataObj != null && !isNotFound(dataObj))
+                    deleteFieldKeys(modelName, dataObj, null);
+            }
+        }
+        memCacheable.delete(key);
+    }
+
+    /** Invalidate the cached query results of the model on any write to it. */
+    void modelChanged(String modelName) {
+        queryCache.bumpGeneration(modelName);
+    }
+
+    /** Write generation of the model, bumped by modelChanged() before the written objects are cached.
+     * Take it before loading from the db, and pass it to cachePutNotFound().
+     */
+    long getGeneration(String modelName) {
+        return queryCache.getGeneration(modelName);
+    }
+
+    String makeCacheModelPrefix(String modelName) {
         String  dbId = jsoda.getDb(modelName).getDbTypeId();
-        return dbId + "/" + modelName + "/pk/" + pkKey;
+        return dbId + "/" + modelName + "/";
+    }
+
+    private String makeCachePkKey(String modelName, String pkKey) {
+        return makeCacheModelPrefix(modelName) + "pk/" + pkKey;
     }
 
     private String makeCacheFieldKey(String modelName, String fieldName, Object fieldValue) {
-        String  dbId = jsoda.getDb(modelName).getDbTypeId();
         String  valueStr = DataUtil.encodeValueToAttrStr(fieldValue, jsoda.getField(modelName, fieldName).getType());
-        return dbId + "/" + modelName + "/" + fieldName + "/" + valueStr;
+        return makeCacheModelPrefix(modelName) + fieldName + "/" + valueStr;
     }
 
     private void cachePutObj(String key, int expireInSeconds, Object dataObj) {
@@ -88,34 +168,165 @@ class ObjCacheMgr
         }
 
         // Cache by the CacheByFields
-        for (String fieldName : jsoda.getCacheByFields(modelName)) {
+        for (ModelAccessor.FieldAccessor fa : jsoda.getModelAccessor(modelName).cacheByFields) {
             try {
-                Field   field = jsoda.getField(modelName, fieldName);
-                Object  fieldValue = field.get(dataObj);
-                String  key = makeCacheFieldKey(modelName, field.getName(), fieldValue);
+                Object  fieldValue = fa.get(dataObj);
+                String  key = makeCacheFieldKey(modelName, fa.fieldName, fieldValue);
                 cachePutObj(key, expireInSeconds, dataObj);
             } catch(Exception ignore) {
             }
         }
     }
 
-    void cacheDelete(String modelName, Object idValue, Object rangeValue)
-    {
-        Object  dataObj = cacheGet(modelName, idValue, rangeValue);
-        if (dataObj != null) {
-            for (String fieldName : jsoda.getCacheByFields(modelName)) {
-                try {
-                    Field   field = jsoda.getField(modelName, fieldName);
-                    Object  fieldValue = field.get(dataObj);
-                    String  key = makeCacheFieldKey(modelName, field.getName(), fieldValue);
-                    memCacheable.delete(key);
-                } catch(Exception ignored) {
-                }
+    /** Cache the object just written to the db, and invalidate its keys at the peers. */
+    void cachePutWritten(String modelName, Object dataObj) {
+        cachePut(modelName, dataObj);
+        publishWritten(modelName, dataObj);
+    }
+
+    /** Invalidate the keys of the object at the peers.  Call it only after the object is in the db, or the peers might reload the old one. */
+    void publishWritten(String modelName, Object dataObj) {
+        if (invalidator == null)
+            return;
+
+        try {
+            publish(makeCachePkKey(modelName, jsoda.makePkKey(modelName, dataObj)));
+        } catch(Exception ignored) {
+        }
+        for (ModelAccessor.FieldAccessor fa : jsoda.getModelAccessor(modelName).cacheByFields) {
+            try {
+                publish(makeCacheFieldKey(modelName, fa.fieldName, fa.get(dataObj)));
+            } catch(Exception ignored) {
             }
         }
+    }
+
+    /** Cache the not-found result of the primary key, if the model's CachePolicy asks for it.
+     * @param generation  the model's generation taken before the db load.  No marker is left if the model has been written since.
+     */
+    void cachePutNotFound(String modelName, Object idValue, Object rangeValue, long generation) {
+        int expireInSeconds = jsoda.getNotFoundCachePolicy(modelName);
+        if (expireInSeconds <= 0 || jsoda.getCachePolicy(modelName) < 0)
+            return;
+
+        try {
+            putNotFound(modelName, makeCachePkKey(modelName, jsoda.makePkKey(modelName, idValue, rangeValue)), expireInSeconds, generation);
+        } catch(Exception ignored) {
+        }
+    }
+
+    /** Cache the not-found result of the field value.  Only the CacheByFields are done since cachePut() replaces their entries. */
+    void cachePutNotFoundByField(String modelName, String fieldName, Object fieldValue, long generation) {
+        int expireInSeconds = jsoda.getNotFoundCachePolicy(modelName);
+        if (expireInSeconds <= 0 || jsoda.getCachePolicy(modelName) < 0 || !jsoda.getCacheByFields(modelName).contains(fieldName))
+            return;
+
+        try {
+            putNotFound(modelName, makeCacheFieldKey(modelName, fieldName, fieldValue), expireInSeconds, generation);
+        } catch(Exception ignored) {
+        }
+    }
+
+    /** Leave the marker only if no write of the model has happened since the load began.
+     * A writer bumps the generation before caching its object, so a write racing with the marker
+     * either is seen by the check after the put, and the marker is removed, or caches its object over the marker.
+     */
+    private void putNotFound(String modelName, String cacheKey, int expireInSeconds, long generation) {
+        if (getGeneration(modelName) != generation)
+            return;
+        cachePutObj(cacheKey, expireInSeconds, NotFound.INSTANCE);
+        if (getGeneration(modelName) != generation)
+            memCacheable.delete(cacheKey);
+    }
+
+    static boolean isNotFound(Object cachedObj) {
+        return cachedObj instanceof NotFound;
+    }
+
+    /** Remove the object from the cache, and invalidate its keys at the peers.  Call it only after the write to the db. */
+    void cacheDelete(String modelName, Object idValue, Object rangeValue)
+    {
+        publishKeys(cacheEvict(modelName, idValue, rangeValue));
+    }
+
+    /** Remove the object just updated in the db from the cache, and invalidate its keys at the peers.
+     * The CacheByField keys of both the cached copy and the updated object are removed.  The old values still point
+     * to the cached copy, and the new values might hold a NotFound marker.
+     */
+    void cacheDeleteWritten(String modelName, Object dataObj, Object idValue, Object rangeValue)
+    {
+        List<String>    keys = cacheEvict(modelName, idValue, rangeValue);
+        if (jsoda.getCachePolicy(modelName) >= 0)
+            deleteFieldKeys(modelName, dataObj, keys);
+        publishKeys(keys);
+    }
+
+    /** Remove the object from the local cache only.  Return its removed keys, to be published by publishKeys()
+     * after the db write, or the peers might reload the old object in between.
+     */
+    List<String> cacheEvict(String modelName, Object idValue, Object rangeValue)
+    {
+        List<String>    keys = new ArrayList<String>();
+        Object          dataObj = cacheGet(modelName, idValue, rangeValue);
+        if (dataObj != null && !isNotFound(dataObj))
+            deleteFieldKeys(modelName, dataObj, keys);
 
         String  cacheKey = makeCachePkKey(modelName, jsoda.makePkKey(modelName, idValue, rangeValue));
         memCacheable.delete(cacheKey);
+        keys.add(cacheKey);
+        return keys;
+    }
+
+    private void deleteFieldKeys(String modelName, Object dataObj, List<String> deletedKeys) {
+        for (ModelAccessor.FieldAccessor fa : jsoda.getModelAccessor(modelName).cacheByFields) {
+            try {
+                String  key = makeCacheFieldKey(modelName, fa.fieldName, fa.get(dataObj));
+                memCacheable.delete(key);
+                if (deletedKeys != null)
+                    deletedKeys.add(key);
+            } catch(Exception ignored) {
+            }
+        }
+    }
+
+    /** Batch version of cacheEvict(). */
+    List<String> cacheEvict(String modelName, List idList, List rangeList)
+    {
+        List<String>    keys = new ArrayList<String>();
+
+        // Skip the lookups for the non-cacheable model.  Nothing of it is in the cache.
+        // Its keys are still published for the peers to invalidate their cached query results.
+        if (jsoda.getCachePolicy(modelName) < 0) {
+            if (invalidator != null) {
+                for (int i = 0; i < idList.size(); i++)
+                    keys.add(makeCachePkKey(modelName, jsoda.makePkKey(modelName, idList.get(i), rangeList == null ? null : rangeList.get(i))));
+            }
+            return keys;
+        }
+
+        // Without CacheByFields, only the primary key entries need to be removed.  No need to look up the cached objects.
+        boolean hasCacheByFields = jsoda.getCacheByFields(modelName).size() > 0;
+
+        for (int i = 0; i < idList.size(); i++) {
+            Object  idValue = idList.get(i);
+            Object  rangeValue = rangeList == null ? null : rangeList.get(i);
+            if (hasCacheByFields)
+                keys.addAll(cacheEvict(modelName, idValue, rangeValue));
+            else {
+                String  cacheKey = makeCachePkKey(modelName, jsoda.makePkKey(modelName, idValue, rangeValue));
+                memCacheable.delete(cacheKey);
+                keys.add(cacheKey);
+            }
+        }
+        return keys;
+    }
+
+    /** Invalidate the keys removed by cacheEvict() at the peers. */
+    void publishKeys(List<String> keys) {
+        if (invalidator == null)
+            return;
+        for (String key : keys)
+            publish(key);
     }
 
     Object cacheGet(String modelName, Object idValue, Object rangeValue) {
@@ -124,8 +335,136 @@ class ObjCacheMgr
         return (Object)memCacheable.get(cacheKey);
     }
 
+    /** Look up the cache for the list of keys, in one call if the cache service supports MultiGettable.
+     * Return the cached objects at the key positions, with null for the misses.
+     */
+    List<Object> cacheGetMulti(String modelName, List idList, List rangeList) {
+        List<Object>    cachedObjs = new ArrayList<Object>(idList.size());
+        if (!(memCacheable instanceof MultiGettable)) {
+            for (int i = 0; i < idList.size(); i++)
+                cachedObjs.add(cacheGet(modelName, idList.get(i), rangeList == null ? null : rangeList.get(i)));
+            return cachedObjs;
+        }
+
+        List<String>    cacheKeys = new ArrayList<String>(idList.size());
+        for (int i = 0; i < idList.size(); i++)
+            cacheKeys.add(makeCachePkKey(modelName, jsoda.makePkKey(modelName, idList.get(i), rangeList == null ? null : rangeList.get(i))));
+        Map<String, Serializable>   objs = ((MultiGettable)memCacheable).getMulti(cacheKeys);
+        for (String cacheKey : cacheKeys)
+            cachedObjs.add(objs.get(cacheKey));
+        return cachedObjs;
+    }
+
+    /** Look up the object by its CacheByField.  An object whose field no longer has the value, e.g. changed in place
+     * in a reference cache before an update, is dropped from the key of the old value.
+     */
     Object cacheGetByField(String modelName, String fieldName, Object fieldValue) {
-        return (Object)memCacheable.get(makeCacheFieldKey(modelName, fieldName, fieldValue));
+        String  cacheKey = makeCacheFieldKey(modelName, fieldName, fieldValue);
+        Object  cachedObj = memCacheable.get(cacheKey);
+        if (cachedObj == null || isNotFound(cachedObj))
+            return cachedObj;
+
+        try {
+            Object  currentValue = jsoda.getModelAccessor(modelName).getDbField(fieldName).get(cachedObj);
+            if (cacheKey.equals(makeCacheFieldKey(modelName, fieldName, currentValue)))
+                return cachedObj;
+        } catch(Exception ignored) {
+        }
+        memCacheable.delete(cacheKey);
+        return null;
+    }
+
+    /** Look up the key again without counting it in the cache stats, since the caller has just counted its miss.
+     * A cache service not Peekable is not looked up; the rare load racing with the previous one is repeated instead.
+     */
+    private Object cachePeek(String cacheKey) {
+        return memCacheable instanceof Peekable ? ((Peekable)memCacheable).peek(cacheKey) : null;
+    }
+
+    /** The coalesced loads of a key share one result, so the object cached under the key is of the loader's type. */
+    @SuppressWarnings("unchecked")
+    private static <V> V foundOrNull(Object cachedObj) {
+        return isNotFound(cachedObj) ? null : (V)cachedObj;
+    }
+
+    /** Load the object on a cache miss, sharing one in-flight load among the concurrent callers of the same primary key.
+     * Each caller gets its own instance.  See SharedLoad.
+     */
+    <V> V loadByPk(final String modelName, final Object idValue, final Object rangeValue, final Callable<V> loader)
+        throws Exception
+    {
+        // Only the cacheable model is coalesced.  Its objects are Serializable for making the copies.
+        if (jsoda.getCachePolicy(modelName) < 0)
+            return loader.call();
+
+        final String    cacheKey = makeCachePkKey(modelName, jsoda.makePkKey(modelName, idValue, rangeValue));
+        return loadCoalescer.load(cacheKey, new Callable<SharedLoad<V>>() {
+            public SharedLoad<V> call() throws Exception {
+                // The previous load of the key might have just finished and cached the object.
+                Object  cachedObj = cachePeek(cacheKey);
+                if (cachedObj != null)
+                    return new SharedLoad<V>(ObjCacheMgr.<V>foundOrNull(cachedObj));
+                long    generation = getGeneration(modelName);
+                V       obj = loader.call();
+                if (obj == null)
+                    cachePutNotFound(modelName, idValue, rangeValue, generation);
+                return new SharedLoad<V>(obj);
+            }
+        }).take();
+    }
+
+    /** Load the object by field on a cache miss, sharing one in-flight load among the concurrent callers of the same field value. */
+    <V> V loadByField(final String modelName, final String fieldName, final Object fieldValue, final Callable<V> loader)
+        throws Exception
+    {
+        if (jsoda.getCachePolicy(modelName) < 0)
+            return loader.call();
+
+        final String    cacheKey = makeCacheFieldKey(modelName, fieldName, fieldValue);
+        return loadCoalescer.load(cacheKey, new Callable<SharedLoad<V>>() {
+            public SharedLoad<V> call() throws Exception {
+                Object  cachedObj = cachePeek(cacheKey);
+                if (cachedObj != null)
+                    return new SharedLoad<V>(ObjCacheMgr.<V>foundOrNull(cachedObj));
+                long    generation = getGeneration(modelName);
+                V       obj = loader.call();
+                if (obj == null)
+                    cachePutNotFoundByField(modelName, fieldName, fieldValue, generation);
+                return new SharedLoad<V>(obj);
+            }
+        }).take();
+    }
+
+    int getLoadsInFlight() {
+        return loadCoalescer.inFlightCount();
+    }
+
+    /** The result of a coalesced load, shared by its callers.  The object is serialized once as it's loaded,
+     * before any caller can change it.  The first caller takes the loaded object and each of the others
+     * gets its own copy deserialized from the bytes, whether the cache service copies its objects or not.
+     */
+    private static class SharedLoad<V> {
+        private final V         obj;
+        private final byte[]    bytes;
+        private boolean         taken = false;
+
+        SharedLoad(V obj)
+            throws IOException
+        {
+            this.obj = obj;
+            this.bytes = (obj instanceof Serializable ? IOUtil.objToBytes((Serializable)obj) : null);
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V take()
+            throws Exception
+        {
+            if (!taken || bytes == null) {
+                taken = true;
+                return obj;
+            }
+            return (V)IOUtil.objFromBytes(bytes);
+        }
     }
 
 }
@@ -19,17 +19,19 @@ package wwutil.jsoda;
 import java.io.*;
 import java.util.*;
 import java.lang.reflect.*;
+import java.util.concurrent.*;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import wwutil.sys.IOUtil;
 
 
 
 /**
  * Query object to capture common query properties for both SimpleDB and DynamoDB
  */
-public class Query<T>
+public class Query<T> implements Iterable<T>
 {
     private static Log  log = LogFactory.getLog(Query.class);
 
@@ -65,9 +67,19 @@ public class Query<T>
     int             selectType = SELECT_ALL;
     boolean         beforeRun = true;
     Object          nextKey = null;
+    int             cacheExpireInSeconds = 0;
+    private int     pageNum = 0;
     private boolean queryParsed = false;
 
 
+    /** Callback to handle a batch of result items from parallelScan().
+     * It's called concurrently from the executor threads and should be thread-safe.
+     */
+    public static interface ScanHandler<T> {
+        public void handle(List<T> items) throws Exception;
+    }
+
+
     /** Create a Query object to build query, to run on the Jsoda object. */
     public Query(Class<T> modelClass, Jsoda jsoda) {
         this.modelClass = modelClass;
@@ -208,6 +220,19 @@ public class Query<T>
         return this;
     }
 
+    /** Cache the results of the query for the number of seconds.  The result pages of run() and the count() are
+     * cached under the canonical form of the query, and are shared with other Query objects having the same conditions.
+     * Any put or delete on the model via its Dao invalidates all its cached query results.
+     * The cache is local to the Jsoda object.  Each run gets its own copies of the cached result objects.
+     * The model class needs to be Serializable for its results to be cached.
+     */
+    public Query<T> cached(int expireInSeconds) {
+        if (expireInSeconds < 0)
+            throw new IllegalArgumentException("expireInSeconds cannot be negative.");
+        this.cacheExpireInSeconds = expireInSeconds;
+        return this;
+    }
+
     private void parseQuery() {
 
         if (queryParsed)
@@ -266,12 +291,34 @@ public class Query<T>
     }
 
 
+    /** Return the plan of the query, with the cost estimated from the table statistics.  The query is not run.
+     * <pre>
+     *  System.out.println(jsoda.query(Model1.class).eq("name", "abc").explain());
+     * </pre>
+     */
+    public QueryPlan explain() {
+        parseQuery();
+        return jsoda.getQueryPlanner().plan(this);
+    }
+
     /** Execute the query to return the count, not the items. */
     public long count()
         throws JsodaException
     {
         parseQuery();
-        return jsoda.getDb(modelName).queryCount(modelClass, this);
+        if (cacheExpireInSeconds == 0)
+            return countQuery();
+
+        QueryCache          queryCache = jsoda.getObjCacheMgr().getQueryCache();
+        String              key = toCanonicalStr() + "/count";
+        QueryCache.CachedResult    entry = queryCache.get(modelName, key);
+        if (entry != null)
+            return entry.count;
+
+        long    generation = queryCache.getGeneration(modelName);
+        long    count = countQuery();
+        queryCache.put(key, new QueryCache.CachedResult(generation, cacheExpireInSeconds, null, null, count));
+        return count;
     }
 
     /** Execute the query and start returning result items.  It might or might not return the entire result set.
@@ -292,11 +339,11 @@ public class Query<T>
         try {
             parseQuery();
 
-            List<T> resultObjs = jsoda.getDb(modelName).queryRun(modelClass, this, !beforeRun);
-            for (T obj : resultObjs) {
-                jsoda.postLoadSteps(obj, toCache());  // do callPostLoad and caching.
-            }
-            beforeRun = false;
+            if (cacheExpireInSeconds > 0)
+                return runCached();
+
+            List<T> resultObjs = runQuery();
+            pageNum++;
             return resultObjs;
         } catch(JsodaException je) {
             throw je;
@@ -305,6 +352,231 @@ public class Query<T>
         }
     }
 
+    private long countQuery()
+        throws JsodaException
+    {
+        QueryPlan   plan = jsoda.getQueryPlanner().planToReadAll(this);
+        if (!plan.isKeyLookup())
+            return jsoda.getDb(modelName).queryCount(modelClass, this);
+
+        try {
+            return getByKey(plan) == null ? 0 : 1;
+        } catch(JsodaException je) {
+            throw je;
+        } catch(Exception e) {
+            throw new JsodaException("Failed to count query", e);
+        }
+    }
+
+    private List<T> runQuery()
+        throws Exception
+    {
+        QueryPlan   plan = jsoda.getQueryPlanner().planToRun(this);
+        List<T>     resultObjs = plan.isKeyLookup() ? runKeyLookup(plan) : jsoda.getDb(modelName).queryRun(modelClass, this, !beforeRun);
+        for (T obj : resultObjs) {
+            jsoda.postLoadSteps(obj, toCache());  // do callPostLoad and caching.
+        }
+        beforeRun = false;
+        return resultObjs;
+    }
+
+    /** Run a key lookup as a get of the object.  The whole result is returned in the first run. */
+    private List<T> runKeyLookup(QueryPlan plan)
+        throws Exception
+    {
+        List<T> resultObjs = new ArrayList<T>();
+        if (beforeRun) {
+            T   obj = getByKey(plan);
+            if (obj != null)
+                resultObjs.add(obj);
+        }
+        nextKey = null;
+        return resultObjs;
+    }
+
+    private T getByKey(QueryPlan plan)
+        throws Exception
+    {
+        log.info("Query results in a get on the key.");
+        return jsoda.getDb(modelName).getObj(modelClass, plan.keyId, plan.keyRange, consistentRead);
+    }
+
+    private List<T> runCached()
+        throws Exception
+    {
+        QueryCache          queryCache = jsoda.getObjCacheMgr().getQueryCache();
+        String              key = toCanonicalStr() + "/page/" + pageNum;
+        QueryCache.CachedResult    entry = queryCache.get(modelName, key);
+        if (entry != null) {
+            nextKey = entry.nextKey;
+            beforeRun = false;
+            pageNum++;
+            List<T> resultObjs = new ArrayList<T>(entry.items.size());
+            for (byte[] bytes : entry.items)
+                resultObjs.add(modelClass.cast(IOUtil.objFromBytes(bytes)));
+            return resultObjs;
+        }
+
+        // Take the generation before running the query.  A write during the run makes the page stale right away.
+        long    generation = queryCache.getGeneration(modelName);
+        List<T> resultObjs = runQuery();
+        List<byte[]>    items = toBytesList(resultObjs);
+        if (items != null)
+            queryCache.put(key, new QueryCache.CachedResult(generation, cacheExpireInSeconds, items, nextKey, 0));
+        pageNum++;
+        return resultObjs;
+    }
+
+    /** Serialize the result objects for the query cache.  Return null if they are not Serializable. */
+    private static List<byte[]> toBytesList(List<?> objs)
+        throws IOException
+    {
+        List<byte[]>    items = new ArrayList<byte[]>(objs.size());
+        for (Object obj : objs) {
+            if (!(obj instanceof Serializable))
+                return null;
+            items.add(IOUtil.objToBytes((Serializable)obj));
+        }
+        return items;
+    }
+
+    /** Canonical form of the query conditions, independent of the order the filters were added. */
+    String toCanonicalStr() {
+        List<String>    terms = new ArrayList<String>(selectTerms);
+        List<String>    conds = new ArrayList<String>();
+        for (Filter filter : filters)
+            conds.add(filter.toCanonicalStr());
+        Collections.sort(terms);
+        Collections.sort(conds);
+
+        StringBuilder   sb = new StringBuilder();
+        sb.append(jsoda.getDb(modelName).getDbTypeId()).append("/").append(modelName).append("/query");
+        sb.append("/select ").append(terms);
+        sb.append("/where ").append(conds);
+        sb.append("/order by ").append(orderbyFields);
+        sb.append("/limit ").append(limit);
+        sb.append("/consistent ").append(consistentRead);
+        return sb.toString();
+    }
+
+    /** Run the query on the executor of the Jsoda object.  The returned Future gives the same result batch as run().
+     * Wait for the Future to complete before calling run() or runAsync() again on the same Query object,
+     * since each call continues from where the last one ended.
+     */
+    public Future<List<T>> runAsync() {
+        return jsoda.getExecutor().submit(new Callable<List<T>>() {
+            public List<T> call() throws Exception {
+                return run();
+            }
+        });
+    }
+
+    /** Scan the whole result set in parallel, with the items passed to the handler batch by batch as they arrive.
+     * The scan is run on the executor of the Jsoda object and the call returns when all items have been handled.
+     * The result items go through postLoadSteps and caching as in run().  Order by is not supported.
+     * Limit is applied as the batch size of each scan request.
+     * <pre>
+     *  query.parallelScan(8, new Query.ScanHandler&lt;Model1&gt;() {
+     *      public void handle(List&lt;Model1&gt; items) {
+     *          ...
+     *      }
+     *  });
+     * </pre>
+     *
+     * SimpleDB splits the scan into segments of itemName() ranges, each run in parallel.  The split points come from
+     * a sample of the item names.  See SimpleDBService.computeSplitPoints().
+     * DynamoDB fetches the scan pages in sequence, with up to 'segments' pages being processed in parallel.
+     * The handling order of the items is undefined.  The query's own run() state is not affected.
+     * A scan estimated above Jsoda.setMaxScanItems() is refused, as in run().
+     */
+    public void parallelScan(int segments, final ScanHandler<T> handler)
+        throws JsodaException
+    {
+        if (segments < 1)
+            throw new IllegalArgumentException("The number of segments must be at least 1.");
+        if (orderbyFields.size() > 0)
+            throw new IllegalArgumentException("Order by is not supported in parallel scan.");
+
+        parseQuery();
+        jsoda.getQueryPlanner().planToReadAll(this);
+        jsoda.getDb(modelName).queryParallelScan(modelClass, this, segments, jsoda.getExecutor(), new ScanHandler<T>() {
+            public void handle(List<T> items) throws Exception {
+                for (T obj : items) {
+                    jsoda.postLoadSteps(obj, toCache());  // do callPostLoad and caching.
+                }
+                handler.handle(items);
+            }
+        });
+    }
+
+    /** Scan the whole result set in parallel and return all the items in one list.  See parallelScan(int, ScanHandler). */
+    public List<T> parallelScan(int segments)
+        throws JsodaException
+    {
+        final List<T>   resultObjs = new ArrayList<T>();
+        parallelScan(segments, new ScanHandler<T>() {
+            public void handle(List<T> items) {
+                synchronized(resultObjs) {
+                    resultObjs.addAll(items);
+                }
+            }
+        });
+        return resultObjs;
+    }
+
+    /** Wait for the scan tasks to complete.  Cancel the rest on the first failure. */
+    static void awaitScanTasks(List<Future<Void>> futures)
+        throws JsodaException
+    {
+        try {
+            for (Future<Void> future : futures)
+                future.get();
+        } catch(ExecutionException e) {
+            cancelScanTasks(futures);
+            if (e.getCause() instanceof JsodaException)
+                throw (JsodaException)e.getCause();
+            throw new JsodaException("Parallel scan failed.  Error: " + e.getCause().getMessage(), e.getCause());
+        } catch(InterruptedException e) {
+            cancelScanTasks(futures);
+            Thread.currentThread().interrupt();
+            throw new JsodaException("Parallel scan interrupted.", e);
+        }
+    }
+
+    static void cancelScanTasks(List<Future<Void>> futures) {
+        for (Future<Void> future : futures)
+            future.cancel(true);
+    }
+
+    /** Return an iterator over all the result items, prefetching the next page in the background.
+     * The iteration starts from the beginning of the result set and is independent of run().
+     * See QueryIterator for detail.
+     * <pre>
+     *  for (Model1 item : query)
+     *      dump(item);
+     * </pre>
+     */
+    public QueryIterator<T> iterator() {
+        return iterator(QueryIterator.DEFAULT_PREFETCH_PAGES);
+    }
+
+    /** Return an iterator over all the result items, with up to prefetchPages pages fetched ahead of the consumer. */
+    public QueryIterator<T> iterator(int prefetchPages) {
+        return new QueryIterator<T>(copy(), prefetchPages, jsoda.getPrefetchExecutor());
+    }
+
+    /** Copy the query conditions to a new Query object, without the result state. */
+    Query<T> copy() {
+        Query<T>    query = new Query<T>(modelClass, jsoda);
+        query.selectTerms.addAll(selectTerms);
+        query.filters.addAll(filters);
+        query.orderbyFields.addAll(orderbyFields);
+        query.limit = limit;
+        query.consistentRead = consistentRead;
+        query.cacheExpireInSeconds = cacheExpireInSeconds;
+        return query;
+    }
+
     /** Quick check to see if there are more result to return.  Before run() is called, hasNext() always returns true.
      * This simplies the iteration loop.  The typical loop is:
      * <pre>
@@ -322,6 +594,7 @@ public class Query<T>
     public Query<T> reset() {
         beforeRun = true;
         nextKey = null;
+        pageNum = 0;
         return this;
     }
 
@@ -0,0 +1,123 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+/**
+ * In-process cache of the query results, for the queries opted in with Query.cached().
+ * Each result page is cached under the canonical query string and the page number.
+ * Each model has a generation number bumped on every write to the model.  A cached
+ * page filled under an older generation is never served.
+ * The result objects are kept serialized, so that each caller gets its own copies to modify.
+ */
+class QueryCache
+{
+    public static final int     DEFAULT_MAX_ENTRIES = 1000;
+
+    private final ConcurrentMap<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+    private final Map<String, CachedResult>         lruMap;
+    private long                                    hits;
+    private long                                    misses;
+
+
+    /** A cached result page of serialized objects, with the nextKey to continue the query after it. */
+    static class CachedResult {
+        final long          generation;
+        final long          expirationMS;
+        final List<byte[]>  items;
+        final Object        nextKey;
+        final long          count;
+
+        CachedResult(long generation, int expireInSeconds, List<byte[]> items, Object nextKey, long count) {
+            this.generation = generation;
+            this.expirationMS = System.currentTimeMillis() + expireInSeconds * 1000L;
+            this.items = items;
+            this.nextKey = nextKey;
+            this.count = count;
+        }
+    }
+
+
+    QueryCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    QueryCache(final int maxEntries) {
+        this.lruMap = new LinkedHashMap<String, CachedResult>(maxEntries + 1, 1.0f, true) {
+            @Override protected boolean removeEldestEntry(final Map.Entry<String, CachedResult> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /** Current generation of the model.  Take it before running the query, and store the result with it. */
+    long getGeneration(String modelName) {
+        return generationOf(modelName).get();
+    }
+
+    /** Invalidate all cached results of the model. */
+    void bumpGeneration(String modelName) {
+        generationOf(modelName).incrementAndGet();
+    }
+
+    private AtomicLong generationOf(String modelName) {
+        AtomicLong  generation = generations.get(modelName);
+        if (generation == null) {
+            AtomicLong  newGeneration = new AtomicLong();
+            generation = generations.putIfAbsent(modelName, newGeneration);
+            if (generation == null)
+                generation = newGeneration;
+        }
+        return generation;
+    }
+
+    synchronized CachedResult get(String modelName, String key) {
+        CachedResult    entry = lruMap.get(key);
+        if (entry != null) {
+            if (entry.generation == getGeneration(modelName) && entry.expirationMS > System.currentTimeMillis()) {
+                hits++;
+                return entry;
+            }
+            lruMap.remove(key);
+        }
+        misses++;
+        return null;
+    }
+
+    synchronized void put(String key, CachedResult entry) {
+        lruMap.put(key, entry);
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized void clear() {
+        // Keep the generations so that a query running during the clear can't store a page of an old generation as current.
+        lruMap.clear();
+    }
+
+}
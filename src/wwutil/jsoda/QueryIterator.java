@@ -0,0 +1,173 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.io.*;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+
+/**
+ * Iterator over all the result items of a query.  The next page of result is prefetched
+ * on a daemon thread of the Jsoda object while the current page is being consumed.
+ * At most prefetchPages pages are held ahead of the consumer.
+ *
+ * Call close() when stopping the iteration before reaching the end, to stop the prefetching.
+ * An iterator left behind without close(), e.g. on a break out of a for-each loop, stops
+ * prefetching once it's garbage collected.  A slow consumer only holds up the prefetching.
+ * A query failure during iteration is thrown as RuntimeException from hasNext() or next(),
+ * with the JsodaException as its cause.
+ * <pre>
+ *  for (Model1 item : jsoda.query(Model1.class).eq("age", 25))
+ *      dump(item);
+ * </pre>
+ */
+@SuppressWarnings("unchecked")
+public class QueryIterator<T> implements Iterator<T>, Closeable
+{
+    private static Log  log = LogFactory.getLog(QueryIterator.class);
+
+    public static final int     DEFAULT_PREFETCH_PAGES = 2;
+    public static final int     POLL_SECONDS = 1;
+
+    private static final Object END_OF_PAGES = new Object();
+
+    private final Prefetcher<T>         prefetcher;
+    private final Future<Void>          producer;
+    private boolean                     ended = false;
+    private Iterator<T>                 currentPage = Collections.<T>emptyList().iterator();
+
+
+    /** The query object is owned by the iterator and should not be shared. */
+    QueryIterator(Query<T> query, int prefetchPages, ExecutorService executor) {
+        if (prefetchPages < 1)
+            throw new IllegalArgumentException("The number of prefetch pages must be at least 1.");
+
+        this.prefetcher = new Prefetcher<T>(query, new ArrayBlockingQueue<Object>(prefetchPages), this);
+        this.producer = executor.submit(prefetcher);
+    }
+
+    public boolean hasNext() {
+        while (!currentPage.hasNext()) {
+            if (ended)
+                return false;
+
+            Object  item = takePage();
+            if (item == END_OF_PAGES) {
+                ended = true;
+                return false;
+            }
+            if (item instanceof Exception) {
+                ended = true;
+                throw new RuntimeException("Query failed during iteration.", (Exception)item);
+            }
+            currentPage = ((List<T>)item).iterator();
+        }
+        return true;
+    }
+
+    public T next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return currentPage.next();
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("QueryIterator does not support remove.");
+    }
+
+    /** Stop the prefetching and release the buffered pages. */
+    public void close() {
+        prefetcher.closed = true;
+        ended = true;
+        currentPage = Collections.<T>emptyList().iterator();
+        producer.cancel(true);
+        prefetcher.pages.clear();
+    }
+
+    private Object takePage() {
+        try {
+            while (true) {
+                if (prefetcher.closed && prefetcher.pages.isEmpty())
+                    throw new IllegalStateException("Query iterator has been closed.");
+                Object  item = prefetcher.pages.poll(POLL_SECONDS, TimeUnit.SECONDS);
+                if (item != null)
+                    return item;
+                if (producer.isDone() && prefetcher.pages.isEmpty())
+                    throw new IllegalStateException("Query iterator stopped prefetching.");
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for query result.", e);
+        }
+    }
+
+
+    /** The producer of the pages.  It holds the iterator weakly so that an abandoned iterator can be collected,
+     * which tells the producer to stop.
+     */
+    private static class Prefetcher<T> implements Callable<Void> {
+        final Query<T>                          query;
+        final BlockingQueue<Object>             pages;
+        final WeakReference<QueryIterator<T>>   consumer;
+        volatile boolean                        closed = false;
+
+        Prefetcher(Query<T> query, BlockingQueue<Object> pages, QueryIterator<T> consumer) {
+            this.query = query;
+            this.pages = pages;
+            this.consumer = new WeakReference<QueryIterator<T>>(consumer);
+        }
+
+        public Void call() {
+            try {
+                while (!closed && query.hasNext()) {
+                    List<T> page = query.run();
+                    if (page.size() > 0 && !offerPage(page))
+                        return null;
+                }
+                offerPage(END_OF_PAGES);
+            } catch(Exception e) {
+                offerPage(e);
+            }
+            return null;
+        }
+
+        private boolean offerPage(Object page) {
+            try {
+                while (!closed) {
+                    if (consumer.get() == null) {
+                        log.info("Query iterator abandoned without close().  Stop prefetching.");
+                        closed = true;
+                        pages.clear();
+                        return false;
+                    }
+                    if (pages.offer(page, POLL_SECONDS, TimeUnit.SECONDS))
+                        return true;
+                }
+            } catch(InterruptedException e) {
+                // Cancelled by close().
+            }
+            return false;
+        }
+    }
+
+}
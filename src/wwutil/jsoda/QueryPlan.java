@@ -0,0 +1,109 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.util.*;
+
+
+
+/**
+ * The plan chosen for a query, as returned by Query.explain().
+ * <pre>
+ * KEY_LOOKUP   - Eq conditions on the full primary key.  Run as a direct get of the object.
+ * RANGE_QUERY  - DynamoDB query on the Id eq condition and the optional RangeKey condition.
+ * INDEX_QUERY  - SimpleDB select with an indexable condition, or a DynamoDB lookup on the index table of an Indexed field.
+ * SCAN         - Read every item of the table and filter them.
+ * </pre>
+ * The estimates are based on the item count and size of the table, as reported by DescribeTable in DynamoDB
+ * and DomainMetadata in SimpleDB, with a fixed selectivity for each condition.  They are -1 when the table
+ * statistics are not collected or not available.
+ */
+public class QueryPlan
+{
+    public static final String  KEY_LOOKUP = "key lookup";
+    public static final String  RANGE_QUERY = "range query";
+    public static final String  INDEX_QUERY = "index query";
+    public static final String  SCAN = "scan";
+
+    final String    type;
+    final String    table;
+    final String    indexTable;     // the index table read for a DynamoDB index query
+    final Filter    indexFilter;    // the condition run on the index table
+    final Object    keyId;          // key values of a key lookup
+    final Object    keyRange;
+    long            estimatedItems = -1;
+    long            estimatedBytes = -1;
+    String          note = "";
+
+
+    QueryPlan(String type, String table, String indexTable, Filter indexFilter, Object keyId, Object keyRange) {
+        this.type = type;
+        this.table = table;
+        this.indexTable = indexTable;
+        this.indexFilter = indexFilter;
+        this.keyId = keyId;
+        this.keyRange = keyRange;
+    }
+
+    /** One of KEY_LOOKUP, RANGE_QUERY, INDEX_QUERY, and SCAN. */
+    public String getType() {
+        return type;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    /** The index table of an Indexed field read by the query, or null. */
+    public String getIndexTable() {
+        return indexTable;
+    }
+
+    /** Whether the query is run as a direct get of the object instead of a query. */
+    public boolean isKeyLookup() {
+        return type.equals(KEY_LOOKUP);
+    }
+
+    public boolean isScan() {
+        return type.equals(SCAN);
+    }
+
+    /** Estimated number of items read from the table, or -1 if unknown. */
+    public long getEstimatedItems() {
+        return estimatedItems;
+    }
+
+    /** Estimated number of bytes read from the table, or -1 if unknown. */
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    public String toString() {
+        StringBuilder   sb = new StringBuilder();
+        sb.append(type).append(" on ").append(table);
+        if (indexTable != null)
+            sb.append(" via ").append(indexTable);
+        if (estimatedItems >= 0)
+            sb.append(", estimated ").append(estimatedItems).append(" items");
+        if (estimatedBytes >= 0)
+            sb.append(", ").append(estimatedBytes).append(" bytes");
+        if (note.length() > 0)
+            sb.append(".  ").append(note);
+        return sb.toString();
+    }
+
+}
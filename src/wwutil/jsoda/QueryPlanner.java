@@ -0,0 +1,250 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import wwutil.model.annotation.DbType;
+
+
+
+/**
+ * Plan the queries before they are sent to the database service.  Each query is classified as a key lookup,
+ * a range query, an index query, or a scan, from the conditions on the key fields and the Indexed fields.
+ * A key lookup is run as a direct get of the object.  The cost of a plan is estimated from the table
+ * statistics, collected on demand and kept for STATS_EXPIRE_MS.  A scan estimated above maxScanItems is refused.
+ * The estimate of a run() page is capped by the query's limit.  Without the table statistics, a scan is
+ * refused unless its limit is within maxScanItems, so that a failing statistics call doesn't turn the check off.
+ */
+class QueryPlanner
+{
+    private static Log  log = LogFactory.getLog(QueryPlanner.class);
+
+    public static final long    STATS_EXPIRE_MS = 60 * 60 * 1000L;     // DynamoDB updates the table statistics about every 6 hours.
+    public static final double  EQ_SELECTIVITY = 0.01;                  // Assumed fraction of the items matching an eq or in condition.
+    public static final double  RANGE_SELECTIVITY = 0.1;                // Assumed fraction of the items matching a range condition.
+
+    private static final Set<String>    sEqOperators = new HashSet<String>(Arrays.asList(Filter.EQ, Filter.IN));
+    private static final Set<String>    sRangeOperators = new HashSet<String>(Arrays.asList(Filter.LT, Filter.LE, Filter.GT, Filter.GE,
+                                                                                            Filter.BETWEEN, Filter.BEGINS_WITH));
+
+    private Jsoda                               jsoda;
+    private volatile long                       maxScanItems = 0;
+    private ConcurrentMap<String, TableStats>   tableStats = new ConcurrentHashMap<String, TableStats>();
+
+
+    /** Item count and size of a table, as reported by the database. */
+    static class TableStats {
+        final long  itemCount;
+        final long  sizeBytes;
+        final long  collectedMS;
+
+        TableStats(long itemCount, long sizeBytes) {
+            this.itemCount = itemCount;
+            this.sizeBytes = sizeBytes;
+            this.collectedMS = System.currentTimeMillis();
+        }
+    }
+
+
+    QueryPlanner(Jsoda jsoda) {
+        this.jsoda = jsoda;
+    }
+
+    void setMaxScanItems(long maxScanItems) {
+        this.maxScanItems = maxScanItems;
+    }
+
+    long getMaxScanItems() {
+        return maxScanItems;
+    }
+
+    /** Classify the query, without the cost estimates. */
+    <T> QueryPlan classify(Query<T> query) {
+        String  modelName = query.modelName;
+        String  table = jsoda.getModelTable(modelName);
+        boolean hasRangeKey = jsoda.getRangeField(modelName) != null;
+        Filter  idEq = null;
+        Filter  rangeEq = null;
+        int     idFilters = 0;
+        int     rangeFilters = 0;
+
+        for (Filter filter : query.filters) {
+            if (jsoda.isIdField(modelName, filter.fieldName)) {
+                idFilters++;
+                if (filter.operator.equals(Filter.EQ) && filter.operand != null)
+                    idEq = filter;
+            } else if (jsoda.isRangeField(modelName, filter.fieldName)) {
+                rangeFilters++;
+                if (filter.operator.equals(Filter.EQ) && filter.operand != null)
+                    rangeEq = filter;
+            }
+        }
+
+        boolean keyOnly = idEq != null && idFilters == 1 && rangeFilters <= 1 && query.filters.size() == idFilters + rangeFilters;
+        if (keyOnly && (hasRangeKey ? rangeEq != null : rangeFilters == 0))
+            return new QueryPlan(QueryPlan.KEY_LOOKUP, table, null, null, idEq.operand, rangeEq == null ? null : rangeEq.operand);
+
+        if (jsoda.getDb(modelName).getDbType() == DbType.DynamoDB) {
+            // DynamoDB can only query on the Id eq condition and one RangeKey condition.
+            if (keyOnly && hasRangeKey)
+                return new QueryPlan(QueryPlan.RANGE_QUERY, table, null, null, null, null);
+            // Key conditions mixed with other conditions stay a query, which rejects the other conditions,
+            // rather than silently becoming a scan of the whole table.
+            if (idEq != null && rangeFilters > 0) {
+                QueryPlan   plan = new QueryPlan(QueryPlan.RANGE_QUERY, table, null, null, null, null);
+                plan.note = "Conditions on the non-key fields are not supported in a DynamoDB query.";
+                return plan;
+            }
+            Filter  indexFilter = toIndexFilter(query);
+            if (indexFilter != null)
+                return new QueryPlan(QueryPlan.INDEX_QUERY, table, jsoda.getIndexTable(modelName, indexFilter.fieldName), indexFilter, null, null);
+        } else {
+            // SimpleDB indexes all attributes.  Any condition using the index avoids the full scan.
+            for (Filter filter : query.filters) {
+                if (selectivity(filter) < 1.0)
+                    return new QueryPlan(QueryPlan.INDEX_QUERY, table, null, null, null, null);
+            }
+        }
+        return new QueryPlan(QueryPlan.SCAN, table, null, null, null, null);
+    }
+
+    /** Classify the query and estimate the cost of a run() page from the table statistics. */
+    <T> QueryPlan plan(Query<T> query) {
+        QueryPlan   plan = classify(query);
+        estimate(query, plan, true);
+        if (plan.isScan() && isAboveMaxScan(plan))
+            plan.note = "Refused, above the maxScanItems of " + maxScanItems + ".  " + plan.note;
+        return plan;
+    }
+
+    /** Classify the query before running a page of it.  Throw if it's a scan estimated above maxScanItems. */
+    <T> QueryPlan planToRun(Query<T> query)
+        throws JsodaException
+    {
+        return checkScan(query, true);
+    }
+
+    /** Classify the query before reading its whole result, as count() and parallelScan() do.  The limit doesn't cap the estimate. */
+    <T> QueryPlan planToReadAll(Query<T> query)
+        throws JsodaException
+    {
+        return checkScan(query, false);
+    }
+
+    private <T> QueryPlan checkScan(Query<T> query, boolean capByLimit)
+        throws JsodaException
+    {
+        QueryPlan   plan = classify(query);
+        if (plan.isScan() && maxScanItems > 0) {
+            estimate(query, plan, capByLimit);
+            if (plan.estimatedItems < 0)
+                throw new JsodaException("Query on " + query.modelName + " is a scan of unknown size.  The table statistics are not available" +
+                                         " to check against the maxScanItems of " + maxScanItems + ".  Add a limit or a condition on the key or an Indexed field.");
+            if (isAboveMaxScan(plan))
+                throw new JsodaException("Query on " + query.modelName + " would scan about " + plan.estimatedItems +
+                                         " items, above the maxScanItems of " + maxScanItems + ".  Add a condition on the key or an Indexed field.");
+        }
+        return plan;
+    }
+
+    private boolean isAboveMaxScan(QueryPlan plan) {
+        return maxScanItems > 0 && plan.estimatedItems > maxScanItems;
+    }
+
+    private <T> void estimate(Query<T> query, QueryPlan plan, boolean capByLimit) {
+        TableStats  stats = getTableStats(query.modelName, plan.table);
+
+        if (plan.isKeyLookup()) {
+            plan.estimatedItems = 1;
+            if (stats != null)
+                plan.estimatedBytes = stats.itemCount > 0 ? stats.sizeBytes / stats.itemCount : 0;
+            return;
+        }
+        if (stats == null) {
+            plan.note = "Table statistics not available.";
+            if (capByLimit && query.limit > 0)
+                plan.estimatedItems = query.limit;
+            return;
+        }
+
+        double  fraction = 1.0;
+        if (!plan.isScan()) {
+            for (Filter filter : query.filters)
+                fraction *= selectivity(filter);
+        }
+        plan.estimatedItems = stats.itemCount == 0 ? 0 : Math.max(1, Math.round(stats.itemCount * fraction));
+        if (capByLimit && query.limit > 0)
+            plan.estimatedItems = Math.min(plan.estimatedItems, query.limit);
+        plan.estimatedBytes = stats.itemCount == 0 ? 0 : plan.estimatedItems * (stats.sizeBytes / stats.itemCount);
+
+        if (plan.indexFilter != null && !plan.indexFilter.operator.equals(Filter.EQ)) {
+            TableStats  indexStats = getTableStats(query.modelName, plan.indexTable);
+            if (indexStats != null)
+                plan.note = "Scans the " + indexStats.itemCount + " entries of the index table.";
+        }
+    }
+
+    /** Fraction of the items expected to match the condition when it can use an index, or 1.0 if it can't. */
+    private static double selectivity(Filter filter) {
+        if (sEqOperators.contains(filter.operator))
+            return EQ_SELECTIVITY;
+        if (sRangeOperators.contains(filter.operator))
+            return RANGE_SELECTIVITY;
+        if (filter.operator.equals(Filter.LIKE) && filter.operand != null && !filter.operand.toString().startsWith("%"))
+            return RANGE_SELECTIVITY;
+        return 1.0;
+    }
+
+    /** Return the filter to run on the index table of an Indexed field, or null if the query cannot use an index. */
+    private <T> Filter toIndexFilter(Query<T> query) {
+        if (query.filters.size() != 1 || query.orderbyFields.size() > 0)
+            return null;
+
+        Filter  filter = query.filters.get(0);
+        if (!jsoda.getIndexedFields(query.modelName).contains(filter.fieldName))
+            return null;
+        if (filter.operator.equals(Filter.EQ) || filter.operator.equals(Filter.BEGINS_WITH) || filter.operator.equals(Filter.BETWEEN))
+            return filter;
+        return null;
+    }
+
+    /** Return the statistics of the table, or null if they cannot be collected. */
+    TableStats getTableStats(String modelName, String table) {
+        TableStats  stats = tableStats.get(table);
+        if (stats != null && System.currentTimeMillis() - stats.collectedMS < STATS_EXPIRE_MS)
+            return stats;
+
+        try {
+            stats = jsoda.getDb(modelName).getTableStats(table);
+            tableStats.put(table, stats);
+            return stats;
+        } catch(Exception e) {
+            log.warn("Failed to get the statistics of table " + table + ".  Error: " + e.getMessage());
+            return null;
+        }
+    }
+
+    void clearStats() {
+        tableStats.clear();
+    }
+
+}
@@ -39,8 +39,17 @@ public class S3Dao<T> {
 
     void saveS3Fields(T dataObj)
         throws Exception
+    {
+        saveS3Fields(dataObj, null);
+    }
+
+    /** Save only the named S3 fields.  All S3 fields are saved if fieldNames is null. */
+    void saveS3Fields(T dataObj, Collection<String> fieldNames)
+        throws Exception
     {
         for (Field field : jsoda.getS3Fields(modelName).values()) {
+            if (fieldNames != null && !fieldNames.contains(field.getName()))
+                continue;
             Object  value = field.get(dataObj);
             if (value == null)
                 continue;
@@ -66,7 +75,6 @@ public class S3Dao<T> {
         Map<String, Field> s3Fields = jsoda.getS3Fields(modelName);
 
         for (Field field : jsoda.getS3Fields(modelName).values()) {
-        	field.setAccessible(true);
         	try {
                 boolean gzip = ReflectUtil.getAnnotationValueEx(field, S3Field.class, "gzip", boolean.class, Boolean.FALSE);
                 Object  value = null;
@@ -0,0 +1,101 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.util.*;
+import java.lang.reflect.*;
+
+import wwutil.model.ValidationException;
+
+
+
+/**
+ * Counter spread over a number of shard objects, for a counter too hot to be incremented on one item.
+ * Each increment goes to a random shard.  Reading the counter sums up the field of all the shards with batchGet.
+ * The shard objects have the Ids of the counter Id plus "#" and the shard number, so the model must have a String Id
+ * and no range key.
+ * <pre>
+ * e.g.
+ *   ShardedCounter&lt;PageStat&gt; views = jsoda.dao(PageStat.class).shardedCounter("views", 16);
+ *   views.increment("page1", 1);
+ *   long total = views.get("page1");
+ * </pre>
+ */
+public class ShardedCounter<T>
+{
+    private static final Random     sRandom = new Random();
+
+    private Dao<T>      dao;
+    private Field       field;
+    private String      fieldName;
+    private int         shards;
+
+
+    ShardedCounter(Dao<T> dao, Jsoda jsoda, String fieldName, int shards)
+        throws JsodaException
+    {
+        String  modelName = dao.getModelName();
+        if (shards < 1)
+            throw new ValidationException("ShardedCounter needs at least 1 shard.");
+        if (jsoda.getIdField(modelName).getType() != String.class || jsoda.getRangeField(modelName) != null)
+            throw new ValidationException("ShardedCounter needs model " + modelName + " to have a String Id and no range key.");
+
+        this.dao = dao;
+        this.field = jsoda.getField(modelName, fieldName);
+        this.fieldName = fieldName;
+        this.shards = shards;
+        if (field == null)
+            throw new ValidationException("Field " + fieldName + " is not found in " + modelName + ".");
+    }
+
+    /** Add delta to a random shard of the counter. */
+    public void increment(String id, long delta)
+        throws JsodaException
+    {
+        dao.increment(shardId(id, sRandom.nextInt(shards)), fieldName, delta);
+    }
+
+    /** Return the sum of all the shards of the counter. */
+    public long get(String id)
+        throws JsodaException
+    {
+        List<String>    shardIds = new ArrayList<String>(shards);
+        for (int i = 0; i < shards; i++)
+            shardIds.add(shardId(id, i));
+
+        try {
+            long    total = 0;
+            for (T obj : dao.batchGet(shardIds)) {
+                Object  value = obj == null ? null : field.get(obj);
+                if (value != null)
+                    total += ((Number)value).longValue();
+            }
+            return total;
+        } catch(IllegalAccessException e) {
+            throw new JsodaException("Failed to read counter " + fieldName + " of " + id, e);
+        }
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    public static String shardId(String id, int shard) {
+        return id + "#" + shard;
+    }
+
+}
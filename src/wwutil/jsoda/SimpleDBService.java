@@ -19,6 +19,7 @@ package wwutil.jsoda;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.lang.reflect.*;
 
 import org.apache.commons.logging.Log;
@@ -26,10 +27,13 @@ import org.apache.commons.logging.LogFactory;
 
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
 import com.amazonaws.services.simpledb.model.CreateDomainRequest;
 import com.amazonaws.services.simpledb.model.DeleteDomainRequest;
 import com.amazonaws.services.simpledb.model.ListDomainsResult;
+import com.amazonaws.services.simpledb.model.DomainMetadataRequest;
+import com.amazonaws.services.simpledb.model.DomainMetadataResult;
 import com.amazonaws.services.simpledb.model.PutAttributesRequest;
 import com.amazonaws.services.simpledb.model.BatchPutAttributesRequest;
 import com.amazonaws.services.simpledb.model.ReplaceableItem;
@@ -81,6 +85,13 @@ class SimpleDBService implements DbService
 
     public static final String      ITEM_NAME = "itemName()";
     public static final int         MAX_PUT_ITEMS = 25;             // SimpleDB has a limit of 25 items per batch.
+    public static final int         MAX_DELETE_ITEMS = 25;          // SimpleDB has a limit of 25 items per batch delete.
+    public static final int         MAX_IN_VALUES = 20;             // SimpleDB has a limit of 20 values per IN comparison.
+    public static final int         MAX_INCREMENT_RETRIES = 10;     // Max retries of the conditional put of increment on contention.
+    public static final String      CONDITIONAL_CHECK_FAILED = "ConditionalCheckFailed";
+    public static final String      ATTRIBUTE_DOES_NOT_EXIST = "AttributeDoesNotExist";
+    public static final int         SAMPLE_ITEMS = 2500;            // Item names sampled to split the parallel scan.  Max limit of a select.
+    public static final int         SPLIT_DIGITS = 4;               // Characters after the common prefix used to space the split points.
 
     private Jsoda                   jsoda;
     private AmazonSimpleDBClient    sdbClient;
@@ -131,6 +142,14 @@ class SimpleDBService implements DbService
         return list.getDomainNames();
     }
 
+    public QueryPlanner.TableStats getTableStats(String table)
+        throws Exception
+    {
+        DomainMetadataResult    result = sdbClient.domainMetadata(new DomainMetadataRequest(table));
+        return new QueryPlanner.TableStats(result.getItemCount(),
+                                           result.getItemNamesSizeBytes() + result.getAttributeNamesSizeBytes() + result.getAttributeValuesSizeBytes());
+    }
+
     private String makeCompositePk(String modelName, Object id, Object rangeKey)
         throws Exception
     {
@@ -182,6 +201,76 @@ class SimpleDBService implements DbService
         sdbClient.putAttributes(req);
     }
 
+    /** Replace the attributes of the named fields.  The attributes of the null fields are deleted. */
+    public <T> void updateObj(Class<T> modelClass, T dataObj, Collection<String> fieldNames, String expectedField, Object expectedValue, boolean expectedExists)
+        throws Exception
+    {
+        String                      modelName = jsoda.getModelName(modelClass);
+        String                      table = jsoda.getModelTable(modelName);
+        String                      idValue = makeIdValue(modelName, dataObj);
+        ModelAccessor               accessor = jsoda.getModelAccessor(modelName);
+        boolean                     singleId = accessor.rangeField == null;
+        List<ReplaceableAttribute>  putAttrs = new ArrayList<ReplaceableAttribute>();
+        List<Attribute>             deleteAttrs = new ArrayList<Attribute>();
+
+        for (ModelAccessor.FieldAccessor fa : accessor.dbFields) {
+            if ((singleId && fa.isId) || !fieldNames.contains(fa.fieldName))
+                continue;
+            String  fieldValueStr = fa.codec.encode(fa.get(dataObj));
+            if (fieldValueStr == null)
+                deleteAttrs.add(new Attribute().withName(fa.attrName));
+            else
+                putAttrs.add(new ReplaceableAttribute(fa.attrName, fieldValueStr, true));
+        }
+
+        UpdateCondition cond = expectedField == null ? null : buildExpectedValue(modelName, expectedField, expectedValue, expectedExists);
+        if (putAttrs.size() > 0) {
+            sdbClient.putAttributes(new PutAttributesRequest(table, idValue, putAttrs, cond));
+            cond = null;        // Checked by the put.  The expected field might have been changed by it.
+        }
+        // Deleting with no attribute deletes the whole item.  Only delete when there are attributes.
+        if (deleteAttrs.size() > 0)
+            sdbClient.deleteAttributes(new DeleteAttributesRequest(table, idValue, deleteAttrs, cond));
+    }
+
+    /** Emulate the atomic add with read and conditional put on the old value.  Retry with backoff when another client has changed the value. */
+    public long incrementField(String modelName, Object id, Object rangeKey, String fieldName, long delta)
+        throws Exception
+    {
+        String                      table = jsoda.getModelTable(modelName);
+        String                      idValue = makeIdValue(modelName, id, rangeKey);
+        ModelAccessor               accessor = jsoda.getModelAccessor(modelName);
+        ModelAccessor.FieldAccessor fa = accessor.getDbField(fieldName);
+
+        for (int retry = 0; ; retry++) {
+            GetAttributesRequest    getReq = new GetAttributesRequest(table, idValue).withAttributeNames(fa.attrName).withConsistentRead(true);
+            List<Attribute>         attrs = sdbClient.getAttributes(getReq).getAttributes();
+            Object                  oldValue = attrs.size() == 0 ? null : fa.codec.decode(attrs.get(0).getValue());
+            long                    newValue = (oldValue == null ? 0 : ((Number)oldValue).longValue()) + delta;
+            Object                  newFieldValue = (fa.type == int.class || fa.type == Integer.class) ? (Object)new Integer((int)newValue) : (Object)new Long(newValue);
+
+            List<ReplaceableAttribute>  putAttrs = new ArrayList<ReplaceableAttribute>();
+            putAttrs.add(new ReplaceableAttribute(fa.attrName, fa.codec.encode(newFieldValue), true));
+            if (oldValue == null && accessor.rangeField != null) {
+                // The object might not exist.  Store the key fields as the regular put does for composite key.
+                putAttrs.add(new ReplaceableAttribute(accessor.idField.attrName, accessor.idField.codec.encode(id), true));
+                putAttrs.add(new ReplaceableAttribute(accessor.rangeField.attrName, accessor.rangeField.codec.encode(rangeKey), true));
+            }
+
+            UpdateCondition cond = buildExpectedValue(modelName, fieldName, oldValue == null ? newFieldValue : oldValue, oldValue != null);
+            try {
+                sdbClient.putAttributes(new PutAttributesRequest(table, idValue, putAttrs, cond));
+                return newValue;
+            } catch(AmazonServiceException e) {
+                if (!CONDITIONAL_CHECK_FAILED.equals(e.getErrorCode()) && !ATTRIBUTE_DOES_NOT_EXIST.equals(e.getErrorCode()))
+                    throw e;
+                if (retry >= MAX_INCREMENT_RETRIES)
+                    throw new JsodaException("Failed to increment " + fieldName + " of " + idValue + " in " + table + " after " + MAX_INCREMENT_RETRIES + " retries on contention.", e);
+            }
+            DynamoDBService.backoff(retry);
+        }
+    }
+
     public <T> void putObjs(Class<T> modelClass, List<T> dataObjs)
         throws Exception
     {
@@ -196,7 +285,7 @@ class SimpleDBService implements DbService
         }
     }
 
-    public <T> T getObj(Class<T> modelClass, Object id, Object rangeKey)
+    public <T> T getObj(Class<T> modelClass, Object id, Object rangeKey, boolean consistentRead)
         throws Exception
     {
         if (id == null)
@@ -205,13 +294,52 @@ class SimpleDBService implements DbService
         String              modelName = jsoda.getModelName(modelClass);
         String              table = jsoda.getModelTable(modelName);
         String              idValue = makeIdValue(modelName, id, rangeKey);
-        GetAttributesResult result = sdbClient.getAttributes(new GetAttributesRequest(table, idValue));
+        GetAttributesResult result = sdbClient.getAttributes(new GetAttributesRequest(table, idValue).withConsistentRead(consistentRead));
         if (result.getAttributes().size() == 0)
             return null;        // not existed.
         return buildLoadObj(modelClass, modelName, idValue, result.getAttributes(), null);
         
     }
 
+    /** Get the objects of the keys with "select * ... where itemName() in (...)" in batches.
+     * Objects not existed are skipped.  The returned objects are in no particular order.
+     */
+    public <T> List<T> getObjs(Class<T> modelClass, List idList, List rangeKeyList)
+        throws Exception
+    {
+        String          modelName = jsoda.getModelName(modelClass);
+        String          table = jsoda.getModelTable(modelName);
+        int             offset = 0;
+        List<T>         resultObjs = new ArrayList<T>();
+
+        while (offset < idList.size()) {
+            StringBuilder   sb = new StringBuilder();
+            int             count = 0;
+
+            sb.append("select * from ").append(SimpleDBUtils.quoteName(table));
+            sb.append(" where ").append(ITEM_NAME).append(" in (");
+            for (int i = offset; i < idList.size() && count < MAX_IN_VALUES; i++, count++) {
+                Object  id = idList.get(i);
+                if (id == null)
+                    throw new IllegalArgumentException("Id cannot be null.");
+                String  idValue = makeIdValue(modelName, id, rangeKeyList == null ? null : rangeKeyList.get(i));
+                sb.append(count == 0 ? "" : ", ").append(SimpleDBUtils.quoteValue(idValue));
+            }
+            sb.append(")");
+            offset += count;
+
+            SelectRequest   request = new SelectRequest(sb.toString());
+            do {
+                SelectResult    result = sdbClient.select(request);
+                for (Item item : result.getItems()) {
+                    resultObjs.add(buildLoadObj(modelClass, modelName, item.getName(), item.getAttributes(), null));
+                }
+                request.setNextToken(result.getNextToken());
+            } while (request.getNextToken() != null);
+        }
+        return resultObjs;
+    }
+
     public void delete(String modelName, Object id, Object rangeKey)
         throws Exception
     {
@@ -227,12 +355,13 @@ class SimpleDBService implements DbService
         throws Exception
     {
         String  table = jsoda.getModelTable(modelName);
-        List<DeletableItem> items = new ArrayList<DeletableItem>();
-        for (int i = 0; i < idList.size(); i++) {
-            String  idValue = makeIdValue(modelName, idList.get(i), rangeKeyList == null ? null : rangeKeyList.get(i));
-            items.add(new DeletableItem().withName(idValue));
+        int     offset = 0;
+
+        while (offset < idList.size()) {
+            List<DeletableItem> items = buildDeleteItems(modelName, idList, rangeKeyList, offset);
+            offset += items.size();
+            sdbClient.batchDeleteAttributes(new BatchDeleteAttributesRequest(table, items));
         }
-        sdbClient.batchDeleteAttributes(new BatchDeleteAttributesRequest(table, items));
     }
 
     public void validateFilterOperator(String operator) {
@@ -281,7 +410,7 @@ class SimpleDBService implements DbService
 
         try {
             SelectResult    result = sdbClient.select(request);
-            query.nextKey = request.getNextToken();
+            query.nextKey = result.getNextToken();
             for (Item item : result.getItems()) {
                 String      idValue = item.getName();   // get the id from the item's name()
                 T           obj = buildLoadObj(modelClass, query.modelName, idValue, item.getAttributes(), query);
@@ -297,6 +426,172 @@ class SimpleDBService implements DbService
         return query.nextKey != null;
     }
 
+    public <T> void queryParallelScan(final Class<T> modelClass, final Query<T> query, int segments, ExecutorService executor, final Query.ScanHandler<T> handler)
+        throws JsodaException
+    {
+        // Each segment scans one itemName() range, split on the sampled item names.
+        List<String>    splits;
+        try {
+            splits = sampleSplitPoints(query, segments);
+        } catch(Exception e) {
+            throw new JsodaException("Failed to sample the item names of " + query.modelName + ".  Error: " + e.getMessage(), e);
+        }
+        if (splits.size() < segments - 1)
+            log.warn("Parallel scan on " + query.modelName + " split into " + (splits.size() + 1) + " segments instead of " + segments + ".  Not enough distinct item names.");
+
+        List<Future<Void>>  futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i <= splits.size(); i++) {
+            final String    segmentCond = toSegmentCondStr(i, splits);
+            futures.add(executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    scanSegment(modelClass, query, segmentCond, handler);
+                    return null;
+                }
+            }));
+        }
+        Query.awaitScanTasks(futures);
+    }
+
+    private <T> void scanSegment(Class<T> modelClass, Query<T> query, String segmentCond, Query.ScanHandler<T> handler)
+        throws Exception
+    {
+        String          queryStr = toQueryStr(query, false, segmentCond);
+        log.info("Query segment: " + queryStr);
+        SelectRequest   request = new SelectRequest(queryStr, query.consistentRead);
+
+        do {
+            if (Thread.currentThread().isInterrupted())
+                throw new InterruptedException("Parallel scan segment cancelled.");
+            SelectResult    result;
+            try {
+                result = sdbClient.select(request);
+            } catch(Exception e) {
+                throw new JsodaException("Query failed.  Query: " + request.getSelectExpression() + "  Error: " + e.getMessage(), e);
+            }
+            List<T>         resultObjs = new ArrayList<T>();
+            for (Item item : result.getItems()) {
+                resultObjs.add(buildLoadObj(modelClass, query.modelName, item.getName(), item.getAttributes(), query));
+            }
+            if (resultObjs.size() > 0)
+                handler.handle(resultObjs);
+            request.setNextToken(result.getNextToken());
+        } while (request.getNextToken() != null);
+    }
+
+    /** Build the itemName() range condition of a segment.  The first and the last segments are open-ended to cover all item names. */
+    private String toSegmentCondStr(int segment, List<String> splits) {
+        if (splits.size() == 0)
+            return null;
+
+        String  lower = segment == 0 ? null : splits.get(segment - 1);
+        String  upper = segment == splits.size() ? null : splits.get(segment);
+        if (lower == null)
+            return ITEM_NAME + " < " + SimpleDBUtils.quoteValue(upper);
+        if (upper == null)
+            return ITEM_NAME + " >= " + SimpleDBUtils.quoteValue(lower);
+        return ITEM_NAME + " >= " + SimpleDBUtils.quoteValue(lower) + " and " + ITEM_NAME + " < " + SimpleDBUtils.quoteValue(upper);
+    }
+
+    /** Sample the item names of the table for the split points of the segments. */
+    private <T> List<String> sampleSplitPoints(Query<T> query, int segments)
+        throws Exception
+    {
+        if (segments <= 1)
+            return new ArrayList<String>();
+
+        String          table = SimpleDBUtils.quoteName(jsoda.getModelTable(query.modelName));
+        SelectResult    sample = sdbClient.select(new SelectRequest("select itemName() from " + table + " limit " + SAMPLE_ITEMS, query.consistentRead));
+        List<String>    names = new ArrayList<String>();
+        for (Item item : sample.getItems())
+            names.add(item.getName());
+
+        List<String>    splits;
+        if (sample.getNextToken() == null) {
+            splits = computeSplitPoints(names, null, null, segments);
+        } else {
+            splits = computeSplitPoints(names, selectEndItemName(table, "asc", query.consistentRead),
+                                        selectEndItemName(table, "desc", query.consistentRead), segments);
+        }
+        log.info("Parallel scan split points: " + splits);
+        return splits;
+    }
+
+    private String selectEndItemName(String table, String order, boolean consistentRead) {
+        SelectResult    result = sdbClient.select(new SelectRequest("select itemName() from " + table + " where " + ITEM_NAME +
+                                                                    " is not null order by " + ITEM_NAME + " " + order + " limit 1", consistentRead));
+        return result.getItems().size() == 0 ? null : result.getItems().get(0).getName();
+    }
+
+    /** Compute the split points of the segments, in ascending order.  With null first and last item names, the sample
+     * has all the item names of the table and the split points are its quantiles.  Otherwise the split points are spaced
+     * evenly between the first and the last item names after their common prefix, counting in the characters seen in
+     * the sample.  Fewer than segments - 1 split points are returned when there are not enough distinct item names.
+     */
+    static List<String> computeSplitPoints(List<String> names, String first, String last, int segments) {
+        List<String>    splits = new ArrayList<String>();
+
+        if (first == null || last == null) {
+            List<String>    sorted = new ArrayList<String>(new TreeSet<String>(names));
+            for (int i = 1; i < segments && sorted.size() > 0; i++)
+                addSplitPoint(splits, sorted.get(i * sorted.size() / segments), sorted.get(0));
+            return splits;
+        }
+
+        int     prefixLen = 0;
+        while (prefixLen < first.length() && prefixLen < last.length() && first.charAt(prefixLen) == last.charAt(prefixLen))
+            prefixLen++;
+
+        Set<Character>  charSet = new TreeSet<Character>();
+        for (String name : names) {
+            for (int i = 0; i < name.length(); i++)
+                charSet.add(name.charAt(i));
+        }
+        for (int i = prefixLen; i < first.length(); i++)
+            charSet.add(first.charAt(i));
+        for (int i = prefixLen; i < last.length(); i++)
+            charSet.add(last.charAt(i));
+        char[]  alphabet = new char[charSet.size()];
+        int     index = 0;
+        for (Character c : charSet)
+            alphabet[index++] = c;
+
+        String  prefix = first.substring(0, prefixLen);
+        long    low = toSplitNumber(first, prefixLen, alphabet);
+        long    high = toSplitNumber(last, prefixLen, alphabet);
+        for (int i = 1; i < segments; i++)
+            addSplitPoint(splits, prefix + fromSplitNumber(low + (high - low) * i / segments, alphabet), first);
+        return splits;
+    }
+
+    /** Add the split point if it's above the previous one.  The first segment must not be empty. */
+    private static void addSplitPoint(List<String> splits, String split, String first) {
+        String  previous = splits.size() == 0 ? first : splits.get(splits.size() - 1);
+        if (split.length() > 0 && (previous == null || split.compareTo(previous) > 0))
+            splits.add(split);
+    }
+
+    /** Read SPLIT_DIGITS characters after the prefix as a number in base alphabet size + 1, with 0 for past the end of the name. */
+    private static long toSplitNumber(String name, int prefixLen, char[] alphabet) {
+        long    number = 0;
+        for (int i = prefixLen; i < prefixLen + SPLIT_DIGITS; i++)
+            number = number * (alphabet.length + 1) + (i < name.length() ? Arrays.binarySearch(alphabet, name.charAt(i)) + 1 : 0);
+        return number;
+    }
+
+    private static String fromSplitNumber(long number, char[] alphabet) {
+        char[]  digits = new char[SPLIT_DIGITS];
+        int     len = SPLIT_DIGITS;
+        for (int i = SPLIT_DIGITS - 1; i >= 0; i--) {
+            int digit = (int)(number % (alphabet.length + 1));
+            number /= (alphabet.length + 1);
+            if (digit == 0)
+                len = i;        // past the end of the name
+            else
+                digits[i] = alphabet[digit - 1];
+        }
+        return new String(digits, 0, len);
+    }
+
 
     public String getFieldAttrName(String modelName, String fieldName) {
         // SimpleDB's attribute name for single Id always maps to "itemName()"
@@ -311,21 +606,21 @@ class SimpleDBService implements DbService
     private List<ReplaceableAttribute> buildAttrs(Object dataObj, String modelName)
         throws Exception
     {
-        List<ReplaceableAttribute>  attrs = new ArrayList<ReplaceableAttribute>();
-        for (Map.Entry<String, String> fieldAttr : jsoda.getFieldAttrMap(modelName).entrySet()) {
-            String  fieldName = fieldAttr.getKey();
-            String  attrName  = fieldAttr.getValue();
-            Field   field = jsoda.getField(modelName, fieldName);
-            Object  value = field.get(dataObj);
-            String  fieldValueStr = DataUtil.encodeValueToAttrStr(value, field.getType());
+        ModelAccessor               accessor = jsoda.getModelAccessor(modelName);
+        boolean                     singleId = accessor.rangeField == null;
+        List<ReplaceableAttribute>  attrs = new ArrayList<ReplaceableAttribute>(accessor.dbFields.length);
+        for (ModelAccessor.FieldAccessor fa : accessor.dbFields) {
+            // Skip the single Id field.  Treats single Id field as the itemName key in SimpleDB.
+            if (singleId && fa.isId)
+                continue;
+
+            String  fieldValueStr = fa.codec.encode(fa.get(dataObj));
 
             // Skip null value field.  No attribute stored at db.
             if (fieldValueStr == null)
                 continue;
 
-            // Add attr:fieldValueStr to list.  Skip the single Id field.  Treats single Id field as the itemName key in SimpleDB.
-            if (!(jsoda.getRangeField(modelName) == null && jsoda.isIdField(modelName, fieldName)))
-                attrs.add(new ReplaceableAttribute(attrName, fieldValueStr, true));
+            attrs.add(new ReplaceableAttribute(fa.attrName, fieldValueStr, true));
         }
 
         return attrs;
@@ -362,26 +657,38 @@ class SimpleDBService implements DbService
         return items;
     }
 
+    private List<DeletableItem> buildDeleteItems(String modelName, List idList, List rangeKeyList, int offset)
+        throws Exception
+    {
+        List<DeletableItem> items = new ArrayList<DeletableItem>();
+
+        for (int i = offset; i < idList.size() && items.size() < MAX_DELETE_ITEMS; i++) {
+            String  idValue = makeIdValue(modelName, idList.get(i), rangeKeyList == null ? null : rangeKeyList.get(i));
+            items.add(new DeletableItem().withName(idValue));
+        }
+        return items;
+    }
+
     private <T> T buildLoadObj(Class<T> modelClass, String modelName, String idValue, List<Attribute> attrs, Query query)
         throws Exception
     {
-        T                   obj = modelClass.newInstance();
-        Map<String, Field>  attrFieldMap = jsoda.getAttrFieldMap(modelName);
+        T               obj = modelClass.newInstance();
+        ModelAccessor   accessor = jsoda.getModelAccessor(modelName);
 
         // Set the attr field 
         for (Attribute attr : attrs) {
             String  attrName  = attr.getName();
             String  attrStr = attr.getValue();
-            Field   field = attrFieldMap.get(attrName);
+            ModelAccessor.FieldAccessor fa = accessor.getByAttr(attrName);
 
             //log.debug("attrName " + attrName + " attrStr: " + attrStr);
 
-            if (field == null) {
+            if (fa == null) {
                 log.warn("Attribute " + attrName + " from db has no corresponding field in model class " + modelClass);
                 continue;
             }
 
-            DataUtil.setFieldValueStr(obj, field, attrStr);
+            fa.set(obj, fa.codec.decode(attrStr));
         }
 
         if (query == null) {
@@ -409,25 +716,28 @@ class SimpleDBService implements DbService
     private <T> void backfillIdAndRange(Class<T> modelClass, String modelName, T obj, String idValue)
         throws Exception
     {
-        Field   idField = jsoda.getIdField(modelName);
-        Field   rangeField = jsoda.getRangeField(modelName);
+        ModelAccessor   accessor = jsoda.getModelAccessor(modelName);
 
-        if (jsoda.getRangeField(modelName) == null) {
+        if (accessor.rangeField == null) {
             // Backfill idField with the the item's name as the idValue.
-            DataUtil.setFieldValueStr(obj, idField, idValue);
+            accessor.idField.set(obj, accessor.idField.codec.decode(idValue));
         } else {
             // Decode the idField and rangeField from the idValue
             String[]    pair = parseCompositePk(modelName, idValue);
-            idField.set(obj, DataUtil.decodeAttrStrToValue(pair[0], idField.getType()));
-            rangeField.set(obj, DataUtil.decodeAttrStrToValue(pair[1], rangeField.getType()));
+            accessor.idField.set(obj, accessor.idField.codec.decode(pair[0]));
+            accessor.rangeField.set(obj, accessor.rangeField.codec.decode(pair[1]));
         }
     }
 
     private <T> String toQueryStr(Query<T> query, boolean selectCount) {
+        return toQueryStr(query, selectCount, null);
+    }
+
+    private <T> String toQueryStr(Query<T> query, boolean selectCount, String extraCond) {
         StringBuilder   sb = new StringBuilder();
         addSelectStr(query, selectCount, sb);
         addFromStr(query, sb);
-        addFilterStr(query, sb);
+        addFilterStr(query, extraCond, sb);
         addOrderbyStr(query, sb);
         addLimitStr(query, sb);
         return sb.toString();
@@ -486,12 +796,16 @@ class SimpleDBService implements DbService
         sb.append(" from ").append(SimpleDBUtils.quoteName(jsoda.getModelTable(query.modelName)));
     }
 
-    private <T> void addFilterStr(Query<T> query, StringBuilder sb) {
+    private <T> void addFilterStr(Query<T> query, String extraCond, StringBuilder sb) {
         int index = 0;
         for (Filter filter : query.filters) {
             sb.append(index++ == 0 ? " where " : " and ");
             filter.toSimpleDBConditionStr(sb);
         }
+        if (extraCond != null) {
+            sb.append(index++ == 0 ? " where " : " and ");
+            sb.append(extraCond);
+        }
     }
 
     private <T> void addOrderbyStr(Query<T> query, StringBuilder sb) {
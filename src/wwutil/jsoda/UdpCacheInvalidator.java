@@ -0,0 +1,228 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import wwutil.sys.DaemonThreadFactory;
+
+
+
+/**
+ * UDP transport of the cache invalidation messages.  The published keys are collected and coalesced,
+ * and sent to the peers in batches every flushMillis, packed in datagrams up to MAX_PACKET_SIZE.
+ * Each node listens on its own port.  Send to the other nodes on the LAN, or other processes on the
+ * loopback with different ports.  A broadcast address can also be used as a peer.
+ * <pre>
+ *   packet: int MAGIC, long senderId, short keyCount, (short keyLength, byte[] key (UTF-8))...
+ * </pre>
+ * UDP doesn't guarantee delivery.  A lost packet leaves the stale objects at the peer until they expire,
+ * so keep an expiration in CachePolicy as a safety net.
+ */
+public class UdpCacheInvalidator implements CacheInvalidator
+{
+    private static Log  log = LogFactory.getLog(UdpCacheInvalidator.class);
+
+    public static final int     MAGIC = 0x4A534956;         // "JSIV"
+    public static final int     MAX_PACKET_SIZE = 1400;     // fit in one ethernet frame
+    public static final int     DEFAULT_FLUSH_MILLIS = 50;
+    public static final int     MAX_PENDING_KEYS = 10000;
+
+    private final int                       port;
+    private final List<InetSocketAddress>   peers;
+    private final int                       flushMillis;
+    private final long                      senderId = new Random().nextLong();
+    private final Set<String>               pendingKeys = new LinkedHashSet<String>();
+    private DatagramSocket                  socket;
+    private ScheduledExecutorService        flusher;
+    private Thread                          receiver;
+    private volatile boolean                running;
+
+
+    /**
+     * Create a UDP invalidator.
+     * @param port  the local port to listen on.
+     * @param peers  the addresses of the peers to send to.
+     */
+    public UdpCacheInvalidator(int port, List<InetSocketAddress> peers) {
+        this(port, peers, DEFAULT_FLUSH_MILLIS);
+    }
+
+    /**
+     * Create a UDP invalidator.
+     * @param port  the local port to listen on.
+     * @param peers  the addresses of the peers to send to.
+     * @param flushMillis  the interval to send the pending keys.
+     */
+    public UdpCacheInvalidator(int port, List<InetSocketAddress> peers, int flushMillis) {
+        this.port = port;
+        this.peers = new ArrayList<InetSocketAddress>(peers);
+        this.flushMillis = flushMillis;
+    }
+
+    public synchronized void start(final Listener listener)
+        throws Exception
+    {
+        if (running)
+            throw new IllegalStateException("UdpCacheInvalidator has already started.");
+
+        socket = new DatagramSocket(port);
+        socket.setBroadcast(true);
+        running = true;
+
+        receiver = new DaemonThreadFactory("jsoda-invalidator-recv-").newThread(new Runnable() {
+                public void run() {
+                    receiveLoop(listener);
+                }
+            });
+        receiver.start();
+
+        flusher = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("jsoda-invalidator-send-"));
+        flusher.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            }, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void publish(String key) {
+        boolean full;
+        synchronized(pendingKeys) {
+            pendingKeys.add(key);
+            full = pendingKeys.size() >= MAX_PENDING_KEYS;
+        }
+        if (full)
+            flush();
+    }
+
+    public void shutdown() {
+        synchronized(this) {
+            if (!running)
+                return;
+            running = false;
+        }
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(flushMillis * 10L, TimeUnit.MILLISECONDS);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        socket.close();
+    }
+
+    /** Send out the pending keys. */
+    void flush() {
+        List<String>    keys;
+        synchronized(pendingKeys) {
+            if (pendingKeys.size() == 0)
+                return;
+            keys = new ArrayList<String>(pendingKeys);
+            pendingKeys.clear();
+        }
+
+        try {
+            for (byte[] packet : toPackets(keys)) {
+                for (InetSocketAddress peer : peers)
+                    socket.send(new DatagramPacket(packet, packet.length, peer));
+            }
+        } catch(Exception e) {
+            log.warn("Failed to send cache invalidation.", e);
+        }
+    }
+
+    private List<byte[]> toPackets(List<String> keys)
+        throws IOException
+    {
+        List<byte[]>            packets = new ArrayList<byte[]>();
+        ByteArrayOutputStream   bos = new ByteArrayOutputStream(MAX_PACKET_SIZE);
+        List<byte[]>            batch = new ArrayList<byte[]>();
+        int                     batchSize = 14;         // header size
+
+        for (String key : keys) {
+            byte[]  keyBytes = key.getBytes("UTF-8");
+            if (keyBytes.length + 16 > MAX_PACKET_SIZE || keyBytes.length > Short.MAX_VALUE) {
+                log.warn("Cache key too long to send: " + key);
+                continue;
+            }
+            if (batchSize + 2 + keyBytes.length > MAX_PACKET_SIZE) {
+                packets.add(toPacket(batch, bos));
+                batch.clear();
+                batchSize = 14;
+            }
+            batch.add(keyBytes);
+            batchSize += 2 + keyBytes.length;
+        }
+        if (batch.size() > 0)
+            packets.add(toPacket(batch, bos));
+        return packets;
+    }
+
+    private byte[] toPacket(List<byte[]> batch, ByteArrayOutputStream bos)
+        throws IOException
+    {
+        bos.reset();
+        DataOutputStream    out = new DataOutputStream(bos);
+        out.writeInt(MAGIC);
+        out.writeLong(senderId);
+        out.writeShort(batch.size());
+        for (byte[] keyBytes : batch) {
+            out.writeShort(keyBytes.length);
+            out.write(keyBytes);
+        }
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    private void receiveLoop(Listener listener) {
+        byte[]          buf = new byte[65536];
+        DatagramPacket  packet = new DatagramPacket(buf, buf.length);
+
+        while (running) {
+            try {
+                packet.setLength(buf.length);
+                socket.receive(packet);
+
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf, 0, packet.getLength()));
+                if (in.readInt() != MAGIC)
+                    continue;
+                if (in.readLong() == senderId)
+                    continue;           // skip our own keys, e.g. via broadcast
+                int             count = in.readUnsignedShort();
+                List<String>    keys = new ArrayList<String>(count);
+                for (int i = 0; i < count; i++) {
+                    byte[]  keyBytes = new byte[in.readUnsignedShort()];
+                    in.readFully(keyBytes);
+                    keys.add(new String(keyBytes, "UTF-8"));
+                }
+                listener.invalidate(keys);
+            } catch(SocketException e) {
+                if (running)
+                    log.warn("Cache invalidation receive failed.", e);
+            } catch(Exception e) {
+                log.warn("Bad cache invalidation packet.", e);
+            }
+        }
+    }
+
+}
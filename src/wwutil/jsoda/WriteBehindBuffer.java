@@ -0,0 +1,170 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.jsoda;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+
+/**
+ * Write-behind buffer of a model's put objects.  The objects are held by their primary keys, so that
+ * the repeated puts of the same key are coalesced into one write.  The buffer is flushed to the db in
+ * batch every flushMillis, or right away when FLUSH_TRIGGER objects are pending.  The buffer is bounded
+ * to MAX_PENDING objects.  A put of a new key waits when the buffer is full until a flush frees up room.
+ */
+class WriteBehindBuffer<T>
+{
+    private static Log  log = LogFactory.getLog(WriteBehindBuffer.class);
+
+    public static final int     FLUSH_TRIGGER = 100;
+    public static final int     MAX_PENDING = 10000;
+    public static final int     PUT_WAIT_SECONDS = 30;
+
+    private final Class<T>                  modelClass;
+    private final String                    modelName;
+    private final Jsoda                     jsoda;
+    private final int                       flushMillis;
+    private final LinkedHashMap<String, T>  pending = new LinkedHashMap<String, T>();
+    private final Object                    flushLock = new Object();
+    private boolean                         flushScheduled = false;
+
+
+    WriteBehindBuffer(Class<T> modelClass, Jsoda jsoda, int flushMillis) {
+        this.modelClass = modelClass;
+        this.modelName = jsoda.getModelName(modelClass);
+        this.jsoda = jsoda;
+        this.flushMillis = flushMillis;
+    }
+
+    /** Queue the object for writing.  Wait if the buffer is full. */
+    void add(T dataObj)
+        throws Exception
+    {
+        String  pkKey = jsoda.makePkKey(modelName, dataObj);
+        long    deadline = System.currentTimeMillis() + PUT_WAIT_SECONDS * 1000L;
+
+        synchronized(pending) {
+            while (pending.size() >= MAX_PENDING && !pending.containsKey(pkKey)) {
+                scheduleFlush(0);
+                long    waitMS = deadline - System.currentTimeMillis();
+                if (waitMS <= 0)
+                    throw new JsodaException("Write-behind buffer of " + modelName + " is full.  Timed out waiting for room.");
+                pending.wait(waitMS);
+            }
+
+            pending.put(pkKey, dataObj);
+            if (pending.size() >= FLUSH_TRIGGER)
+                scheduleFlush(0);
+            else
+                scheduleFlush(flushMillis);
+        }
+    }
+
+    /** Return the pending object of the key, for reading back the objects not written yet. */
+    T getPending(String pkKey) {
+        synchronized(pending) {
+            return pending.get(pkKey);
+        }
+    }
+
+    /** Drop the pending object of the key, e.g. when it's deleted.  Wait for the running flush to finish so it won't write the object after. */
+    void cancel(String pkKey) {
+        synchronized(flushLock) {
+            synchronized(pending) {
+                pending.remove(pkKey);
+            }
+        }
+    }
+
+    int size() {
+        synchronized(pending) {
+            return pending.size();
+        }
+    }
+
+    /** Write all pending objects to the db. */
+    void flush()
+        throws Exception
+    {
+        synchronized(flushLock) {
+            LinkedHashMap<String, T>    batch;
+            synchronized(pending) {
+                flushScheduled = false;
+                if (pending.size() == 0)
+                    return;
+                batch = new LinkedHashMap<String, T>(pending);
+                pending.clear();
+                pending.notifyAll();
+            }
+
+            try {
+                List<T> dataObjs = new ArrayList<T>(batch.values());
+                IndexUpdateException    indexFailure = null;
+                try {
+                    jsoda.getDb(modelName).putObjs(modelClass, dataObjs);
+                } catch(IndexUpdateException iue) {
+                    indexFailure = iue;     // The objects are in the db and not to be requeued.  Finish the flush before reporting it.
+                } finally {
+                    jsoda.getObjCacheMgr().modelChanged(modelName);
+                }
+                for (T dataObj : dataObjs) {
+                    jsoda.s3dao(modelClass).saveS3Fields(dataObj);
+                    jsoda.getObjCacheMgr().publishWritten(modelName, dataObj);
+                }
+                if (indexFailure != null)
+                    throw indexFailure;
+            } catch(IndexUpdateException iue) {
+                throw iue;
+            } catch(Exception e) {
+                requeue(batch);
+                throw e;
+            }
+        }
+    }
+
+    /** Put the failed objects back for the next flush, unless newer ones of the same keys have been queued. */
+    private void requeue(Map<String, T> batch) {
+        synchronized(pending) {
+            LinkedHashMap<String, T>    newer = new LinkedHashMap<String, T>(pending);
+            pending.clear();
+            pending.putAll(batch);
+            pending.putAll(newer);
+            scheduleFlush(flushMillis);
+        }
+    }
+
+    /** Called with the pending lock held. */
+    private void scheduleFlush(int delayMillis) {
+        if (flushScheduled && delayMillis > 0)
+            return;
+        flushScheduled = true;
+        jsoda.getScheduler().schedule(new Runnable() {
+            public void run() {
+                try {
+                    flush();
+                } catch(Exception e) {
+                    log.warn("Write-behind flush of " + modelName + " failed.  Will retry.", e);
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+}
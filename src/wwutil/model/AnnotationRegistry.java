@@ -26,6 +26,11 @@ import java.util.concurrent.*;
 
 /**
  * Annotation handlers registry
+ *
+ * The (field, annotation, handler) triples that apply to a model class are compiled into a flat
+ * handler plan on first use or via prepareModel(), so that applying the handlers on an object
+ * doesn't scan all the fields and their annotations every time.  Registering a handler drops the
+ * compiled plans.
  */
 public class AnnotationRegistry
 {
@@ -33,14 +38,53 @@ public class AnnotationRegistry
     private Map<Class, AnnotationClassHandler>  classHandlers = new ConcurrentHashMap<Class, AnnotationClassHandler>();   // map of annotation to Handlers
     private Map<Class, AnnotationFieldHandler>  fieldHandlers = new ConcurrentHashMap<Class, AnnotationFieldHandler>();   // map of annotation to Handlers
 
+    // Compiled handler plans
+    private Map<Class, ClassHandlerStep[]>      classPlans = new ConcurrentHashMap<Class, ClassHandlerStep[]>();         // map of object class to class handler steps
+    private Map<Class, FieldHandlerPlan>        fieldPlans = new ConcurrentHashMap<Class, FieldHandlerPlan>();           // map of object class to field handler plan
+
+
+    private static class ClassHandlerStep {
+        final Annotation                annObj;
+        final AnnotationClassHandler    handler;
+
+        ClassHandlerStep(Annotation annObj, AnnotationClassHandler handler) {
+            this.annObj = annObj;
+            this.handler = handler;
+        }
+    }
+
+    private static class FieldHandlerStep {
+        final Field                     field;
+        final Annotation                annObj;
+        final AnnotationFieldHandler    handler;
+
+        FieldHandlerStep(Field field, Annotation annObj, AnnotationFieldHandler handler) {
+            this.field = field;
+            this.annObj = annObj;
+            this.handler = handler;
+        }
+    }
+
+    private static class FieldHandlerPlan {
+        final Map<String, Field>        allFieldMap;        // the field map the plan is compiled from
+        final FieldHandlerStep[]        steps;
+
+        FieldHandlerPlan(Map<String, Field> allFieldMap, FieldHandlerStep[] steps) {
+            this.allFieldMap = allFieldMap;
+            this.steps = steps;
+        }
+    }
+
 
     public AnnotationRegistry register(Class annotationClass, AnnotationClassHandler handler) {
         classHandlers.put(annotationClass, handler);
+        classPlans.clear();
         return this;
     }
 
     public AnnotationRegistry register(Class annotationClass, AnnotationFieldHandler handler) {
         fieldHandlers.put(annotationClass, handler);
+        fieldPlans.clear();
         return this;
     }
 
@@ -56,17 +100,13 @@ public class AnnotationRegistry
         if (obj == null)
             return;
 
-        Class   objClass = obj.getClass();
-        for (Annotation annObj : objClass.getAnnotations()) {
-            AnnotationClassHandler  handler = classHandlers.get(annObj.annotationType());
-            if (handler != null) {
-                try {
-                    handler.handle(annObj, obj);
-                } catch (ValidationException ve) {
-                    throw ve;
-                } catch (Exception e) {
-                    throw new ValidationException("Class annotation handler failed", e);
-                }
+        for (ClassHandlerStep step : getClassPlan(obj.getClass())) {
+            try {
+                step.handler.handle(step.annObj, obj);
+            } catch (ValidationException ve) {
+                throw ve;
+            } catch (Exception e) {
+                throw new ValidationException("Class annotation handler failed", e);
             }
         }
     }
@@ -82,26 +122,61 @@ public class AnnotationRegistry
         }
     }
 
+    /** Compile the handler plans of a model class ahead of applying the handlers on its objects. */
+    public void prepareModel(Class modelClass, Map<String, Field> allFieldMap) {
+        getClassPlan(modelClass);
+        fieldPlans.put(modelClass, compileFieldPlan(allFieldMap));
+    }
+
     public void applyFieldHandlers(Object obj, Map<String, Field> allFieldMap) {
         if (obj == null)
             return;
 
+        FieldHandlerPlan    plan = fieldPlans.get(obj.getClass());
+        if (plan == null || plan.allFieldMap != allFieldMap) {
+            // Not prepared or the field map has been changed, e.g. re-registered model.
+            plan = compileFieldPlan(allFieldMap);
+            fieldPlans.put(obj.getClass(), plan);
+        }
+
+        for (FieldHandlerStep step : plan.steps) {
+            try {
+                step.handler.handle(step.annObj, obj, step.field, allFieldMap);
+            } catch (ValidationException ve) {
+                throw ve;
+            } catch (Exception e) {
+                throw new ValidationException("Field annotation handler failed", e);
+            }
+        }
+    }
+
+    private ClassHandlerStep[] getClassPlan(Class objClass) {
+        ClassHandlerStep[]  steps = classPlans.get(objClass);
+        if (steps == null) {
+            List<ClassHandlerStep>  list = new ArrayList<ClassHandlerStep>();
+            for (Annotation annObj : objClass.getAnnotations()) {
+                AnnotationClassHandler  handler = classHandlers.get(annObj.annotationType());
+                if (handler != null)
+                    list.add(new ClassHandlerStep(annObj, handler));
+            }
+            steps = list.toArray(new ClassHandlerStep[list.size()]);
+            classPlans.put(objClass, steps);
+        }
+        return steps;
+    }
+
+    private FieldHandlerPlan compileFieldPlan(Map<String, Field> allFieldMap) {
+        List<FieldHandlerStep>  list = new ArrayList<FieldHandlerStep>();
         for (Field field : allFieldMap.values()) {
-        	field.setAccessible(true);
-        	for (Annotation annObj : field.getDeclaredAnnotations()) {
+            for (Annotation annObj : field.getDeclaredAnnotations()) {
                 AnnotationFieldHandler  handler = fieldHandlers.get(annObj.annotationType());
                 if (handler != null) {
-                    try {
-                        handler.handle(annObj, obj, field, allFieldMap);
-                    } catch (ValidationException ve) {
-                        throw ve;
-                    } catch (Exception e) {
-                        throw new ValidationException("Field annotation handler failed", e);
-                    }
+                    field.setAccessible(true);
+                    list.add(new FieldHandlerStep(field, annObj, handler));
                 }
             }
         }
+        return new FieldHandlerPlan(allFieldMap, list.toArray(new FieldHandlerStep[list.size()]));
     }
 
 }
-
@@ -0,0 +1,197 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.model;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.io.Serializable;
+
+import wwutil.sys.IOUtil;
+
+
+
+/**
+ * Snapshot file of cache entries.  The file has a header followed by the entry records:
+ * <pre>
+ *   header: int MAGIC, int VERSION
+ *   record: int keyLength, byte[] key (UTF-8), long expirationMS (0 for no expiration), int dataLength, byte[] data (serialized object)
+ *   end:    int -1
+ * </pre>
+ * The file is read with memory mapped windows, so that a large snapshot loads without going through the heap in a stream.
+ */
+public class CacheSnapshot
+{
+    public static final int     MAGIC = 0x4A534E50;     // "JSNP"
+    public static final int     VERSION = 1;
+    public static final int     MAP_WINDOW = 64 * 1024 * 1024;
+
+
+    /** Callback to receive the unexpired entries from the snapshot file. */
+    public static interface Loader {
+        public void load(String key, long expirationMS, byte[] data) throws Exception;
+    }
+
+
+    /** Writer to write the entries to a temp file, which replaces the snapshot file on close. */
+    public static class Writer {
+        private File                file;
+        private File                tempFile;
+        private DataOutputStream    out;
+
+        public Writer(File file) throws IOException {
+            this.file = file;
+            this.tempFile = new File(file.getPath() + ".tmp");
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+
+        public void write(String key, long expirationMS, byte[] data) throws IOException {
+            byte[]  keyBytes = key.getBytes("UTF-8");
+            out.writeInt(keyBytes.length);
+            out.write(keyBytes);
+            out.writeLong(expirationMS);
+            out.writeInt(data.length);
+            out.write(data);
+        }
+
+        /** Serialize and write the object.  Objects failed to serialize are skipped. */
+        public void write(String key, long expirationMS, Serializable obj) throws IOException {
+            byte[]  data;
+            try {
+                data = IOUtil.objToBytes(obj);
+            } catch(NotSerializableException e) {
+                return;
+            }
+            write(key, expirationMS, data);
+        }
+
+        public void close() throws IOException {
+            out.writeInt(-1);
+            out.close();
+            if (file.exists() && !file.delete())
+                throw new IOException("Failed to replace the snapshot file " + file);
+            if (!tempFile.renameTo(file))
+                throw new IOException("Failed to rename " + tempFile + " to " + file);
+        }
+
+        /** Close and discard the temp file after a failure. */
+        public void abort() {
+            IOUtil.close(out);
+            tempFile.delete();
+        }
+    }
+
+
+    /** Read the snapshot file, passing the unexpired entries to the loader.  Return the number of entries loaded. */
+    public static int read(File file, Loader loader)
+        throws IOException
+    {
+        RandomAccessFile    raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel     channel = raf.getChannel();
+            long            fileSize = channel.size();
+            long            now = System.currentTimeMillis();
+            long            windowStart = 0;
+            MappedByteBuffer buf = map(channel, 0, fileSize, MAP_WINDOW);
+            int             count = 0;
+
+            if (buf.remaining() < 8 || buf.getInt() != MAGIC)
+                throw new IOException("Not a cache snapshot file: " + file);
+            if (buf.getInt() != VERSION)
+                throw new IOException("Unsupported cache snapshot version in " + file);
+
+            while (true) {
+                // Remap the window at the record start if the record header is not entirely in the window.
+                if (buf.remaining() < 4) {
+                    windowStart += buf.position();
+                    buf = map(channel, windowStart, fileSize, MAP_WINDOW);
+                    if (buf.remaining() < 4)
+                        throw new IOException("Truncated cache snapshot file: " + file);
+                }
+
+                int     recordPos = buf.position();
+                int     keyLength = buf.getInt();
+                if (keyLength < 0)
+                    break;
+                if (buf.remaining() < keyLength + 12) {
+                    windowStart += recordPos;
+                    buf = map(channel, windowStart, fileSize, Math.max(MAP_WINDOW, keyLength + 16));
+                    buf.getInt();
+                    if (buf.remaining() < keyLength + 12)
+                        throw new IOException("Truncated cache snapshot file: " + file);
+                    recordPos = 0;
+                }
+
+                byte[]  keyBytes = new byte[keyLength];
+                buf.get(keyBytes);
+                long    expirationMS = buf.getLong();
+                int     dataLength = buf.getInt();
+                if (buf.remaining() < dataLength) {
+                    windowStart += recordPos;
+                    long    recordSize = 16L + keyLength + dataLength;
+                    buf = map(channel, windowStart, fileSize, (int)Math.max(MAP_WINDOW, recordSize));
+                    if (buf.remaining() < recordSize)
+                        throw new IOException("Truncated cache snapshot file: " + file);
+                    buf.position((int)(recordSize - dataLength));
+                }
+
+                if (expirationMS != 0 && expirationMS - now <= 0) {
+                    buf.position(buf.position() + dataLength);      // expired, skip it
+                    continue;
+                }
+
+                byte[]  data = new byte[dataLength];
+                buf.get(data);
+                try {
+                    loader.load(new String(keyBytes, "UTF-8"), expirationMS, data);
+                    count++;
+                } catch(Exception ignored) {
+                    // Skip the entry failed to load, e.g. its class has changed.
+                }
+            }
+
+            return count;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long start, long fileSize, int windowSize)
+        throws IOException
+    {
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, fileSize - start));
+    }
+
+    /** Return the expireInSeconds for put() from the absolute expiration time.  0 for no expiration. */
+    public static int remainingSeconds(long expirationMS) {
+        if (expirationMS == 0)
+            return 0;
+        long    remaining = (expirationMS - System.currentTimeMillis() + 999) / 1000;
+        return (int)Math.max(1, Math.min(Integer.MAX_VALUE, remaining));
+    }
+
+    /** Deserialize the data of an entry. */
+    public static Serializable toObj(byte[] data)
+        throws IOException, ClassNotFoundException
+    {
+        return (Serializable)IOUtil.objFromBytes(data);
+    }
+
+}
@@ -0,0 +1,308 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.model;
+
+import java.util.*;
+import java.util.concurrent.locks.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+
+import wwutil.sys.StripedCounter;
+
+
+
+/**
+ * Concurrent cache service for single process JVM.  Thread-safe.
+ * The entries are spread over lock-striped segments, each one a LRU cache with its own lock,
+ * so that the threads accessing different keys rarely contend on the same lock.
+ * The LRU eviction is per segment, with the maxEntries divided evenly among the segments.
+ */
+public class MemCacheableConcurrent implements MemCacheable, Peekable, Snapshotable {
+
+    public static final int     DEFAULT_CONCURRENCY = 16;
+
+    private final Segment[]         segments;
+    private final int               segmentMask;
+    private StripedCounter          hits = new StripedCounter();
+    private StripedCounter          misses = new StripedCounter();
+    private int                     defaultExpirationSec = 0;
+    private MemCacheableSimple.Loadable objectLoader;
+
+
+    /**
+     * Create a segmented LRU cache.
+     * @param maxEntries  the maximum entries in the cache.  Oldest entries in a segment will be removed when the segment's capacity exceeded.
+     */
+    public MemCacheableConcurrent(int maxEntries) {
+        this(maxEntries, DEFAULT_CONCURRENCY, null, 0);
+    }
+
+    /**
+     * Create a segmented LRU cache.
+     * @param maxEntries  the maximum entries in the cache.  Oldest entries in a segment will be removed when the segment's capacity exceeded.
+     * @param objectLoader  the callback interface to load object if it can't be found in the cache.
+     * @param defaultExpirationSec  the expiration for cached objects when loading via objectLoader.
+     */
+    public MemCacheableConcurrent(int maxEntries, MemCacheableSimple.Loadable objectLoader, int defaultExpirationSec) {
+        this(maxEntries, DEFAULT_CONCURRENCY, objectLoader, defaultExpirationSec);
+    }
+
+    /**
+     * Create a segmented LRU cache.
+     * @param maxEntries  the maximum entries in the cache.  Oldest entries in a segment will be removed when the segment's capacity exceeded.
+     * @param concurrency  the number of segments, rounded up to power of 2.
+     * @param objectLoader  the callback interface to load object if it can't be found in the cache.
+     * @param defaultExpirationSec  the expiration for cached objects when loading via objectLoader.
+     */
+    public MemCacheableConcurrent(int maxEntries, int concurrency, MemCacheableSimple.Loadable objectLoader, int defaultExpirationSec) {
+        int     count = 1;
+        while (count < concurrency && count < maxEntries)
+            count <<= 1;
+        int     segmentMaxEntries = (maxEntries + count - 1) / count;
+
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++)
+            this.segments[i] = new Segment(segmentMaxEntries);
+        this.segmentMask = count - 1;
+        this.objectLoader = objectLoader;
+        this.defaultExpirationSec = defaultExpirationSec;
+    }
+
+    /**
+     * Get an object from the cache.  If it doesn't exist, load it via the objectLoader.  If objectLoader is not set, return null.
+     * @param key  Unique key of the object.
+     */
+    public Serializable get(String key) {
+        Serializable    obj = getFromCache(key);
+        if (obj == null && objectLoader != null) {
+            obj = objectLoader.load(key);
+            put(key, defaultExpirationSec, obj);
+        }
+        return obj;
+    }
+
+    private Serializable getFromCache(String key) {
+        Serializable    obj = segmentFor(key).get(key);
+        if (obj == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return obj;
+    }
+
+    public Serializable peek(String key) {
+        return segmentFor(key).get(key);
+    }
+
+    /**
+     * Put an object into the cache.
+     * @param key  Unique key of the object.
+     * @param expireInSeconds  time to let object stay in cache before eviction.
+     * @param obj  Object to cache.
+     */
+    public void put(String key, int expireInSeconds, Serializable obj) {
+        segmentFor(key).put(key, new CacheEntry(expireInSeconds, obj));
+    }
+
+    /**
+     * Remove an object from the cache.
+     * @param key  Unique key of the object.
+     */
+    public void delete(String key) {
+        segmentFor(key).remove(key);
+    }
+
+    /**
+     * Clear all objects in cache.
+     */
+    public void clearAll() {
+        resetStats();
+        for (Segment segment : segments)
+            segment.clear();
+    }
+
+    public int size() {
+        int     size = 0;
+        for (Segment segment : segments)
+            size += segment.size();
+        return size;
+    }
+    
+    public void shutdown() {
+        clearAll();
+    }
+
+    /** Save the live entries to the snapshot file.  Each segment is copied under its lock in turn. */
+    public void saveSnapshot(File file) throws IOException {
+        CacheSnapshot.Writer    writer = new CacheSnapshot.Writer(file);
+        try {
+            for (Segment segment : segments) {
+                for (Map.Entry<String, CacheEntry> mapEntry : segment.entries()) {
+                    CacheEntry  entry = mapEntry.getValue();
+                    if (!entry.hasExpired())
+                        writer.write(mapEntry.getKey(), entry.expirationMS, entry.obj);
+                }
+            }
+            writer.close();
+        } catch(IOException e) {
+            writer.abort();
+            throw e;
+        }
+    }
+
+    public int loadSnapshot(File file) throws IOException {
+        return CacheSnapshot.read(file, new CacheSnapshot.Loader() {
+            public void load(String key, long expirationMS, byte[] data) throws Exception {
+                put(key, CacheSnapshot.remainingSeconds(expirationMS), CacheSnapshot.toObj(data));
+            }
+        });
+    }
+
+    /**
+     * Reset caching statistics.
+     */
+    public void resetStats() {
+        hits.reset();
+        misses.reset();
+    }
+
+    /**
+     * Get the number of cache hits.
+     */
+    public int getHits() {
+        return hits.intValue();
+    }
+
+    /**
+     * Get the number cache misses.
+     */
+    public int getMisses() {
+        return misses.intValue();
+    }
+
+    /**
+     * Dump caching statistics.
+     */
+    public String dumpStats() {
+        int     hits = getHits();
+        int     misses = getMisses();
+        int     total =  hits + misses;
+        int     total2 = total == 0 ? 1 : total;
+        return "total: " + total + "  hits: " + hits + " " + (hits*100/total2) + "%  misses: " + misses + " " + (misses*100/total2) + "%" +
+            "  size: " + size() + "  segments: " + segments.length;
+    }
+
+
+    private Segment segmentFor(String key) {
+        int     h = key.hashCode();
+        h ^= (h >>> 16);                // spread the high bits to the segment index
+        return segments[h & segmentMask];
+    }
+
+
+    private static class CacheEntry {
+        final long          expirationMS;
+        final Serializable  obj;
+
+        CacheEntry(int expireInSeconds, Serializable obj) {
+            this.expirationMS = expireInSeconds == 0 ? 0 : System.currentTimeMillis() + expireInSeconds*1000L;
+            this.obj = obj;
+        }
+
+        boolean hasExpired() {
+            return expirationMS != 0 && (expirationMS - System.currentTimeMillis()) < 0;
+        }
+    }
+
+    /** One LRU segment guarded by its own lock. */
+    private static class Segment {
+        private final Lock                              lock = new ReentrantLock();
+        private final LinkedHashMap<String, CacheEntry> lruMap;
+
+        Segment(final int maxEntries) {
+            this.lruMap = new LinkedHashMap<String, CacheEntry>(maxEntries + 1, 1.0f, true) {
+                @Override protected boolean removeEldestEntry(final Map.Entry<String, CacheEntry> eldest) {
+                    return size() > maxEntries;
+                }
+            };
+        }
+
+        Serializable get(String key) {
+            lock.lock();
+            try {
+                CacheEntry  entry = lruMap.get(key);
+                if (entry == null)
+                    return null;
+                if (entry.hasExpired()) {
+                    lruMap.remove(key);
+                    return null;
+                }
+                return entry.obj;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void put(String key, CacheEntry entry) {
+            lock.lock();
+            try {
+                lruMap.put(key, entry);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void remove(String key) {
+            lock.lock();
+            try {
+                lruMap.remove(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void clear() {
+            lock.lock();
+            try {
+                lruMap.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        List<Map.Entry<String, CacheEntry>> entries() {
+            lock.lock();
+            try {
+                return new ArrayList<Map.Entry<String, CacheEntry>>(lruMap.entrySet());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int size() {
+            lock.lock();
+            try {
+                return lruMap.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,530 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.model;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.security.MessageDigest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import wwutil.sys.IOUtil;
+import wwutil.sys.StripedCounter;
+
+
+
+/**
+ * Memcached cache service client, using the memcached text protocol.  Thread-safe.
+ * The keys are distributed over the servers by consistent hashing, so adding or removing a server only
+ * moves a small portion of the keys.  Each server has a pool of connections.  The multiple keys of
+ * getMulti() are fetched with one "get" command per chunk of keys.  The commands are pipelined: the
+ * commands to all the servers are sent before any reply is read, so the round trips overlap.
+ * An optional small near cache (MemCacheableConcurrent) keeps the recently used objects locally for a short time.
+ *
+ * A failed server call is logged and treated as a cache miss, so that the cache failure won't fail the db access.
+ * Keys longer than 250 bytes or having space or control characters are replaced with their MD5 hash.
+ */
+public class MemCacheableMemcached implements MemCacheable, MultiGettable, Peekable {
+
+    private static Log  log = LogFactory.getLog(MemCacheableMemcached.class);
+
+    public static final int     DEFAULT_POOL_SIZE = 8;
+    public static final int     DEFAULT_TIMEOUT_MS = 1000;
+    public static final int     VIRTUAL_NODES = 160;            // points per server on the hash ring
+    public static final int     MAX_KEY_LENGTH = 250;
+    public static final int     MULTI_GET_CHUNK = 100;          // keys per get command
+    public static final int     PIPELINE_DEPTH = 4;             // get commands sent to a server before reading their replies
+    public static final int     MAX_RELATIVE_EXPIRATION = 60*60*24*30;  // memcached treats larger expiration as unix time
+
+    private final List<Server>          servers = new ArrayList<Server>();
+    private final TreeMap<Long, Server> ring = new TreeMap<Long, Server>();
+    private final MemCacheableConcurrent nearCache;
+    private final int                   nearCacheSeconds;
+    private StripedCounter              hits = new StripedCounter();
+    private StripedCounter              misses = new StripedCounter();
+
+
+    /**
+     * Create a memcached client.
+     * @param serverAddrs  the addresses of the memcached servers.
+     */
+    public MemCacheableMemcached(List<InetSocketAddress> serverAddrs) {
+        this(serverAddrs, DEFAULT_POOL_SIZE, DEFAULT_TIMEOUT_MS, 0, 0);
+    }
+
+    /**
+     * Create a memcached client.
+     * @param serverAddrs  the addresses of the memcached servers.
+     * @param poolSize  the maximum connections per server.
+     * @param timeoutMS  the connect and read timeout.
+     * @param nearCacheEntries  the maximum entries of the local near cache.  0 for no near cache.
+     * @param nearCacheSeconds  the expiration of the objects in the near cache, capped by their own expiration.
+     */
+    public MemCacheableMemcached(List<InetSocketAddress> serverAddrs, int poolSize, int timeoutMS, int nearCacheEntries, int nearCacheSeconds) {
+        if (serverAddrs.size() == 0)
+            throw new IllegalArgumentException("Need at least one memcached server.");
+        if (nearCacheEntries > 0 && nearCacheSeconds <= 0)
+            throw new IllegalArgumentException("The near cache needs an expiration.");
+
+        for (InetSocketAddress addr : serverAddrs) {
+            Server  server = new Server(addr, poolSize, timeoutMS);
+            servers.add(server);
+            for (int i = 0; i < VIRTUAL_NODES; i++)
+                ring.put(hash(addr.toString() + "-" + i), server);
+        }
+        this.nearCache = nearCacheEntries > 0 ? new MemCacheableConcurrent(nearCacheEntries) : null;
+        this.nearCacheSeconds = nearCacheSeconds;
+    }
+
+    public Serializable get(String key) {
+        Map<String, Serializable>   objs = getMulti(Collections.singletonList(key));
+        return objs.get(key);
+    }
+
+    public Map<String, Serializable> getMulti(Collection<String> keys) {
+        return getMulti(keys, true);
+    }
+
+    public Serializable peek(String key) {
+        return getMulti(Collections.singletonList(key), false).get(key);
+    }
+
+    private Map<String, Serializable> getMulti(Collection<String> keys, boolean countStats) {
+        Map<String, Serializable>   objs = new HashMap<String, Serializable>();
+        Map<Server, List<String>>   serverKeys = new LinkedHashMap<Server, List<String>>();
+
+        for (String key : keys) {
+            if (nearCache != null) {
+                Serializable    obj = countStats ? nearCache.get(key) : nearCache.peek(key);
+                if (obj != null) {
+                    objs.put(key, obj);
+                    continue;
+                }
+            }
+            Server          server = serverOf(key);
+            List<String>    list = serverKeys.get(server);
+            if (list == null) {
+                list = new ArrayList<String>();
+                serverKeys.put(server, list);
+            }
+            list.add(key);
+        }
+
+        List<Fetch>     fetches = new ArrayList<Fetch>();
+        for (Map.Entry<Server, List<String>> entry : serverKeys.entrySet())
+            fetches.add(new Fetch(entry.getKey(), entry.getValue()));
+        try {
+            boolean     pending = fetches.size() > 0;
+            while (pending) {
+                // Send the next window of get commands to all the servers before reading any reply.
+                for (Fetch fetch : fetches)
+                    fetch.send();
+                pending = false;
+                for (Fetch fetch : fetches)
+                    pending |= fetch.receive(objs);
+            }
+        } finally {
+            for (Fetch fetch : fetches)
+                fetch.close();
+        }
+
+        if (countStats) {
+            for (String key : keys) {
+                if (objs.containsKey(key))
+                    hits.increment();
+                else
+                    misses.increment();
+            }
+        }
+        return objs;
+    }
+
+    public void put(String key, int expireInSeconds, Serializable obj) {
+        try {
+            byte[]  data = IOUtil.objToBytes(obj);
+            int     exptime = expireInSeconds <= MAX_RELATIVE_EXPIRATION ? expireInSeconds :
+                              (int)(System.currentTimeMillis() / 1000) + expireInSeconds;
+            String  reply = call(serverOf(key), "set " + toServerKey(key) + " 0 " + exptime + " " + data.length, data);
+            if (!reply.equals("STORED"))
+                log.warn("Failed to store " + key + " in memcached: " + reply);
+        } catch(Exception e) {
+            log.warn("Failed to put to memcached for " + key, e);
+        }
+        if (nearCache != null)
+            nearCache.put(key, nearExpiration(expireInSeconds), obj);
+    }
+
+    public void delete(String key) {
+        if (nearCache != null)
+            nearCache.delete(key);
+        try {
+            call(serverOf(key), "delete " + toServerKey(key), null);
+        } catch(Exception e) {
+            log.warn("Failed to delete from memcached for " + key, e);
+        }
+    }
+
+    public void clearAll() {
+        resetStats();
+        if (nearCache != null)
+            nearCache.clearAll();
+        for (Server server : servers) {
+            try {
+                call(server, "flush_all", null);
+            } catch(Exception e) {
+                log.warn("Failed to flush memcached " + server.addr, e);
+            }
+        }
+    }
+
+    /** Return the total number of items in the memcached servers. */
+    public int size() {
+        long    total = 0;
+        for (Server server : servers) {
+            try {
+                total += stats(server, "curr_items");
+            } catch(Exception e) {
+                log.warn("Failed to get stats from memcached " + server.addr, e);
+            }
+        }
+        return (int)Math.min(Integer.MAX_VALUE, total);
+    }
+
+    public void shutdown() {
+        if (nearCache != null)
+            nearCache.shutdown();
+        for (Server server : servers)
+            server.close();
+    }
+
+    public void resetStats() {
+        hits.reset();
+        misses.reset();
+    }
+
+    public int getHits() {
+        return hits.intValue();
+    }
+
+    public int getMisses() {
+        return misses.intValue();
+    }
+
+    public String dumpStats() {
+        int     hits = getHits();
+        int     misses = getMisses();
+        int     total =  hits + misses;
+        int     total2 = total == 0 ? 1 : total;
+        return "total: " + total + "  hits: " + hits + " " + (hits*100/total2) + "%  misses: " + misses + " " + (misses*100/total2) + "%" +
+            "  servers: " + servers.size() + (nearCache == null ? "" : "  near cache: [" + nearCache.dumpStats() + "]");
+    }
+
+
+    private int nearExpiration(int expireInSeconds) {
+        return expireInSeconds == 0 ? nearCacheSeconds : Math.min(expireInSeconds, nearCacheSeconds);
+    }
+
+    private Server serverOf(String key) {
+        Map.Entry<Long, Server> entry = ring.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    /** The keys of getMulti() on one server, fetched over one connection in windows of pipelined get commands.
+     * A failed server is logged and its remaining keys are left as misses.
+     */
+    private class Fetch {
+        final Server                server;
+        final List<String>          keys;
+        final Map<String, String>   serverKeyMap = new HashMap<String, String>();
+        Connection                  conn;
+        int                         offset;
+        int                         sentCommands;
+        boolean                     ok = true;
+
+        Fetch(Server server, List<String> keys) {
+            this.server = server;
+            this.keys = keys;
+        }
+
+        void send() {
+            if (!ok || offset >= keys.size())
+                return;
+            try {
+                if (conn == null)
+                    conn = server.borrow();
+                for (int i = 0; i < PIPELINE_DEPTH && offset < keys.size(); i++) {
+                    StringBuilder   cmd = new StringBuilder("get");
+                    int             end = Math.min(offset + MULTI_GET_CHUNK, keys.size());
+                    for (String key : keys.subList(offset, end)) {
+                        String  serverKey = toServerKey(key);
+                        serverKeyMap.put(serverKey, key);
+                        cmd.append(" ").append(serverKey);
+                    }
+                    conn.writeLine(cmd.toString());
+                    offset = end;
+                    sentCommands++;
+                }
+                conn.flush();
+            } catch(Exception e) {
+                fail(e);
+            }
+        }
+
+        /** Read the replies of the commands sent.  Return true if there are more keys to send. */
+        boolean receive(Map<String, Serializable> objs) {
+            if (!ok)
+                return false;
+            try {
+                for (; sentCommands > 0; sentCommands--)
+                    readValues(objs);
+            } catch(Exception e) {
+                fail(e);
+                return false;
+            }
+            return offset < keys.size();
+        }
+
+        private void readValues(Map<String, Serializable> objs)
+            throws IOException
+        {
+            String  line;
+            while (!(line = conn.readLine()).equals("END")) {
+                // VALUE <key> <flags> <bytes>
+                String[]    parts = line.split(" ");
+                if (parts.length < 4 || !parts[0].equals("VALUE"))
+                    throw new IOException("Unexpected memcached reply: " + line);
+                byte[]      data = conn.readData(Integer.parseInt(parts[3]));
+                String      key = serverKeyMap.get(parts[1]);
+                if (key == null)
+                    continue;
+                try {
+                    Serializable    obj = (Serializable)IOUtil.objFromBytes(data);
+                    objs.put(key, obj);
+                    if (nearCache != null)
+                        nearCache.put(key, nearCacheSeconds, obj);
+                } catch(Exception e) {
+                    log.warn("Failed to deserialize memcached value of " + key, e);
+                }
+            }
+        }
+
+        private void fail(Exception e) {
+            log.warn("Failed to get from memcached " + server.addr, e);
+            ok = false;
+            close();
+        }
+
+        void close() {
+            if (conn != null)
+                server.release(conn, ok && sentCommands == 0);
+            conn = null;
+        }
+    }
+
+    /** Send a command and return the one line reply. */
+    private String call(Server server, String cmd, byte[] data)
+        throws Exception
+    {
+        Connection  conn = server.borrow();
+        boolean     ok = false;
+        try {
+            conn.writeCommand(cmd, data);
+            String  reply = conn.readLine();
+            ok = true;
+            return reply;
+        } finally {
+            server.release(conn, ok);
+        }
+    }
+
+    private long stats(Server server, String statName)
+        throws Exception
+    {
+        Connection  conn = server.borrow();
+        boolean     ok = false;
+        try {
+            long    value = 0;
+            conn.writeCommand("stats", null);
+            String  line;
+            while (!(line = conn.readLine()).equals("END")) {
+                String[]    parts = line.split(" ");
+                if (parts.length == 3 && parts[1].equals(statName))
+                    value = Long.parseLong(parts[2]);
+            }
+            ok = true;
+            return value;
+        } finally {
+            server.release(conn, ok);
+        }
+    }
+
+    /** Memcached key can't exceed 250 bytes or have space and control characters.  Hash the offending keys, and the non-ASCII ones. */
+    static String toServerKey(String key) {
+        boolean valid = key.length() <= MAX_KEY_LENGTH;
+        for (int i = 0; valid && i < key.length(); i++) {
+            char    ch = key.charAt(i);
+            if (ch <= ' ' || ch >= 0x7f)
+                valid = false;
+        }
+        return valid ? key : "md5:" + toHex(md5(toBytes(key)));
+    }
+
+    private static long hash(String key) {
+        byte[]  digest = md5(toBytes(key));
+        return  ((long)(digest[3] & 0xFF) << 24) |
+                ((long)(digest[2] & 0xFF) << 16) |
+                ((long)(digest[1] & 0xFF) << 8) |
+                ((long)(digest[0] & 0xFF));
+    }
+
+    private static byte[] md5(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(bytes);
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] toBytes(String str) {
+        try {
+            return str.getBytes("UTF-8");
+        } catch(UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder   sb = new StringBuilder();
+        for (byte b : bytes)
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+
+
+    /** A memcached server with its pool of idle connections. */
+    private static class Server {
+        final InetSocketAddress                 addr;
+        final int                               timeoutMS;
+        final Semaphore                         permits;
+        final ConcurrentLinkedQueue<Connection> idle = new ConcurrentLinkedQueue<Connection>();
+
+        Server(InetSocketAddress addr, int poolSize, int timeoutMS) {
+            this.addr = addr;
+            this.timeoutMS = timeoutMS;
+            this.permits = new Semaphore(poolSize);
+        }
+
+        Connection borrow() throws IOException, InterruptedException {
+            if (!permits.tryAcquire(timeoutMS, TimeUnit.MILLISECONDS))
+                throw new IOException("Timed out waiting for a connection to memcached " + addr);
+            try {
+                Connection  conn = idle.poll();
+                return conn != null ? conn : new Connection(addr, timeoutMS);
+            } catch(IOException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        void release(Connection conn, boolean reusable) {
+            if (reusable)
+                idle.offer(conn);
+            else
+                conn.close();
+            permits.release();
+        }
+
+        void close() {
+            Connection  conn;
+            while ((conn = idle.poll()) != null)
+                conn.close();
+        }
+    }
+
+    /** A connection to a memcached server. */
+    private static class Connection {
+        final Socket                socket;
+        final BufferedInputStream   in;
+        final BufferedOutputStream  out;
+
+        Connection(InetSocketAddress addr, int timeoutMS) throws IOException {
+            socket = new Socket();
+            socket.connect(addr, timeoutMS);
+            socket.setSoTimeout(timeoutMS);
+            socket.setTcpNoDelay(true);
+            in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+            out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+        }
+
+        void writeCommand(String cmd, byte[] data) throws IOException {
+            writeLine(cmd);
+            if (data != null) {
+                out.write(data);
+                out.write('\r');
+                out.write('\n');
+            }
+            out.flush();
+        }
+
+        /** Buffer a command line without sending it, for pipelining the commands. */
+        void writeLine(String cmd) throws IOException {
+            out.write(toBytes(cmd));
+            out.write('\r');
+            out.write('\n');
+        }
+
+        void flush() throws IOException {
+            out.flush();
+        }
+
+        String readLine() throws IOException {
+            StringBuilder   sb = new StringBuilder();
+            int             ch;
+            while ((ch = in.read()) != '\n') {
+                if (ch < 0)
+                    throw new EOFException("Memcached connection closed.");
+                if (ch != '\r')
+                    sb.append((char)ch);
+            }
+            return sb.toString();
+        }
+
+        byte[] readData(int length) throws IOException {
+            byte[]  data = new byte[length];
+            int     offset = 0;
+            while (offset < length) {
+                int n = in.read(data, offset, length - offset);
+                if (n < 0)
+                    throw new EOFException("Memcached connection closed.");
+                offset += n;
+            }
+            readLine();     // the trailing \r\n
+            return data;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch(IOException ignored) {
+            }
+        }
+    }
+
+}
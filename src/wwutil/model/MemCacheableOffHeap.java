@@ -0,0 +1,392 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.model;
+
+import java.util.*;
+import java.nio.ByteBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+
+import wwutil.sys.IOUtil;
+import wwutil.sys.StripedCounter;
+
+
+
+/**
+ * Off-heap cache service for single process JVM.  Thread-safe.
+ * The objects are serialized and stored in direct ByteBuffer slabs outside of the Java heap,
+ * so that a large cache doesn't add to the GC work.  Only the LRU index of the entries is kept on heap.
+ * The slabs are divided into fixed size blocks.  An entry takes a chain of blocks, which need not be contiguous.
+ * The slabs are allocated as needed, up to the maxBytes budget.  The least recently used entries are evicted
+ * to free up blocks when the budget is reached.
+ *
+ * An optional on-heap hot tier (MemCacheableConcurrent) keeps the most recently used objects deserialized.
+ */
+public class MemCacheableOffHeap implements MemCacheable, Peekable, Snapshotable {
+
+    public static final int     DEFAULT_BLOCK_SIZE = 512;
+    public static final int     DEFAULT_SLAB_SIZE = 64 * 1024 * 1024;
+
+    private final int                       blockSize;
+    private final int                       blocksPerSlab;
+    private final int                       maxBlocks;
+    private final List<ByteBuffer>          slabs = new ArrayList<ByteBuffer>();
+    private int[]                           freeBlocks;         // stack of free block numbers
+    private int                             freeCount;
+    private final LinkedHashMap<String, Slot>   lruIndex = new LinkedHashMap<String, Slot>(1024, 0.75f, true);
+    private long                            usedBytes;
+
+    private final MemCacheableConcurrent    hotTier;
+    private StripedCounter                  hits = new StripedCounter();
+    private StripedCounter                  misses = new StripedCounter();
+
+
+    /** Location of an entry's bytes in the slabs. */
+    private static class Slot {
+        final int[]     blocks;
+        final int       length;
+        final long      expirationMS;
+
+        Slot(int[] blocks, int length, long expirationMS) {
+            this.blocks = blocks;
+            this.length = length;
+            this.expirationMS = expirationMS;
+        }
+
+        boolean hasExpired(long now) {
+            return expirationMS != 0 && expirationMS - now < 0;
+        }
+    }
+
+
+    /**
+     * Create an off-heap cache.
+     * @param maxBytes  the byte budget of the off-heap slabs.
+     */
+    public MemCacheableOffHeap(long maxBytes) {
+        this(maxBytes, 0);
+    }
+
+    /**
+     * Create an off-heap cache with an on-heap hot tier.
+     * @param maxBytes  the byte budget of the off-heap slabs.
+     * @param hotEntries  the maximum entries in the on-heap hot tier.  0 for no hot tier.
+     */
+    public MemCacheableOffHeap(long maxBytes, int hotEntries) {
+        this(maxBytes, hotEntries, DEFAULT_BLOCK_SIZE, DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * Create an off-heap cache with an on-heap hot tier.
+     * @param maxBytes  the byte budget of the off-heap slabs.
+     * @param hotEntries  the maximum entries in the on-heap hot tier.  0 for no hot tier.
+     * @param blockSize  the size of the storage block.  Entries are stored in whole blocks.
+     * @param slabSize  the size of each direct ByteBuffer allocated.  Rounded down to whole blocks.
+     */
+    public MemCacheableOffHeap(long maxBytes, int hotEntries, int blockSize, int slabSize) {
+        if (blockSize <= 0 || slabSize < blockSize || maxBytes < blockSize)
+            throw new IllegalArgumentException("Invalid sizes.  maxBytes: " + maxBytes + " blockSize: " + blockSize + " slabSize: " + slabSize);
+        this.blockSize = blockSize;
+        this.blocksPerSlab = slabSize / blockSize;
+        this.maxBlocks = (int)Math.min(Integer.MAX_VALUE, maxBytes / blockSize);
+        this.freeBlocks = new int[Math.min(maxBlocks, blocksPerSlab)];
+        this.hotTier = hotEntries > 0 ? new MemCacheableConcurrent(hotEntries) : null;
+    }
+
+    public Serializable get(String key) {
+        return lookup(key, true);
+    }
+
+    public Serializable peek(String key) {
+        return lookup(key, false);
+    }
+
+    private Serializable lookup(String key, boolean countStats) {
+        if (hotTier != null) {
+            Serializable    obj = countStats ? hotTier.get(key) : hotTier.peek(key);
+            if (obj != null) {
+                synchronized(this) {
+                    // Mark the entry used in the off-heap LRU as well, which decides the eviction of both tiers.
+                    lruIndex.get(key);
+                }
+                if (countStats)
+                    hits.increment();
+                return obj;
+            }
+        }
+
+        byte[]  bytes;
+        Slot    slot;
+        synchronized(this) {
+            slot = lruIndex.get(key);
+            if (slot == null) {
+                if (countStats)
+                    misses.increment();
+                return null;
+            }
+            if (slot.hasExpired(System.currentTimeMillis())) {
+                removeSlot(key);
+                if (countStats)
+                    misses.increment();
+                return null;
+            }
+            bytes = readBytes(slot);
+        }
+
+        try {
+            Serializable    obj = (Serializable)IOUtil.objFromBytes(bytes);
+            if (countStats)
+                hits.increment();
+            if (hotTier != null) {
+                synchronized(this) {
+                    // Promote only if the entry hasn't been replaced while deserializing.
+                    if (lruIndex.get(key) == slot)
+                        hotTier.put(key, remainingSeconds(slot.expirationMS), obj);
+                }
+            }
+            return obj;
+        } catch(Exception e) {
+            delete(key);
+            if (countStats)
+                misses.increment();
+            return null;
+        }
+    }
+
+    public void put(String key, int expireInSeconds, Serializable obj) {
+        byte[]  bytes;
+        try {
+            bytes = IOUtil.objToBytes(obj);
+        } catch(Exception e) {
+            throw new IllegalArgumentException("Failed to serialize the object of " + key, e);
+        }
+
+        long    expirationMS = expireInSeconds == 0 ? 0 : System.currentTimeMillis() + expireInSeconds * 1000L;
+
+        synchronized(this) {
+            if (putBytes(key, expirationMS, bytes) && hotTier != null)
+                hotTier.put(key, expireInSeconds, obj);
+        }
+    }
+
+    private boolean putBytes(String key, long expirationMS, byte[] bytes) {
+        int     blockCount = (bytes.length + blockSize - 1) / blockSize;
+
+        removeSlot(key);
+        if (hotTier != null)
+            hotTier.delete(key);
+        if (blockCount > maxBlocks)
+            return false;           // too big to cache
+        if (!reserveBlocks(blockCount))
+            return false;
+
+        int[]   blocks = new int[blockCount];
+        for (int i = 0; i < blockCount; i++)
+            blocks[i] = freeBlocks[--freeCount];
+        Slot    slot = new Slot(blocks, bytes.length, expirationMS);
+        writeBytes(slot, bytes);
+        lruIndex.put(key, slot);
+        usedBytes += bytes.length;
+        return true;
+    }
+
+    public synchronized void delete(String key) {
+        removeSlot(key);
+        if (hotTier != null)
+            hotTier.delete(key);
+    }
+
+    public void clearAll() {
+        resetStats();
+        if (hotTier != null)
+            hotTier.clearAll();
+        synchronized(this) {
+            for (String key : new ArrayList<String>(lruIndex.keySet()))
+                removeSlot(key);
+        }
+    }
+
+    public int size() {
+        synchronized(this) {
+            return lruIndex.size();
+        }
+    }
+
+    /** Return the number of serialized bytes stored. */
+    public long sizeInBytes() {
+        synchronized(this) {
+            return usedBytes;
+        }
+    }
+
+    /** Release the slabs.  The direct memory is freed when the slabs are garbage collected. */
+    public void shutdown() {
+        clearAll();
+        synchronized(this) {
+            slabs.clear();
+            freeCount = 0;
+        }
+    }
+
+    /** Save the live entries to the snapshot file, oldest first.  The stored bytes are written as is, without deserializing. */
+    public void saveSnapshot(File file) throws IOException {
+        List<String>    keys;
+        synchronized(this) {
+            keys = new ArrayList<String>(lruIndex.keySet());
+        }
+
+        CacheSnapshot.Writer    writer = new CacheSnapshot.Writer(file);
+        try {
+            long    now = System.currentTimeMillis();
+            for (String key : keys) {
+                byte[]  bytes;
+                long    expirationMS;
+                synchronized(this) {
+                    // Touching the keys in their LRU order leaves the order unchanged.
+                    Slot    slot = lruIndex.get(key);
+                    if (slot == null || slot.hasExpired(now))
+                        continue;
+                    bytes = readBytes(slot);
+                    expirationMS = slot.expirationMS;
+                }
+                writer.write(key, expirationMS, bytes);
+            }
+            writer.close();
+        } catch(IOException e) {
+            writer.abort();
+            throw e;
+        }
+    }
+
+    /** Load the entries from the snapshot file.  The bytes are stored as is, without deserializing. */
+    public int loadSnapshot(File file) throws IOException {
+        return CacheSnapshot.read(file, new CacheSnapshot.Loader() {
+            public void load(String key, long expirationMS, byte[] data) throws Exception {
+                synchronized(MemCacheableOffHeap.this) {
+                    putBytes(key, expirationMS, data);
+                }
+            }
+        });
+    }
+
+    public void resetStats() {
+        hits.reset();
+        misses.reset();
+    }
+
+    public int getHits() {
+        return hits.intValue();
+    }
+
+    public int getMisses() {
+        return misses.intValue();
+    }
+
+    public String dumpStats() {
+        int     hits = getHits();
+        int     misses = getMisses();
+        int     total =  hits + misses;
+        int     total2 = total == 0 ? 1 : total;
+        synchronized(this) {
+            return "total: " + total + "  hits: " + hits + " " + (hits*100/total2) + "%  misses: " + misses + " " + (misses*100/total2) + "%" +
+                "  size: " + lruIndex.size() + "  bytes: " + usedBytes + "  slabs: " + slabs.size() +
+                "  free blocks: " + (freeCount + (maxBlocks - slabs.size() * blocksPerSlab > 0 ? maxBlocks - slabs.size() * blocksPerSlab : 0));
+        }
+    }
+
+
+    /** Make sure blockCount blocks are on the free stack, by allocating a new slab or evicting the LRU entries. */
+    private boolean reserveBlocks(int blockCount) {
+        while (freeCount < blockCount) {
+            if (!allocateSlab()) {
+                Iterator<Map.Entry<String, Slot>>   itr = lruIndex.entrySet().iterator();
+                if (!itr.hasNext())
+                    return false;
+                Map.Entry<String, Slot> eldest = itr.next();
+                itr.remove();
+                freeSlot(eldest.getValue());
+                if (hotTier != null)
+                    hotTier.delete(eldest.getKey());
+            }
+        }
+        return true;
+    }
+
+    private boolean allocateSlab() {
+        int     allocated = slabs.size() * blocksPerSlab;
+        int     count = Math.min(blocksPerSlab, maxBlocks - allocated);
+        if (count <= 0)
+            return false;
+
+        slabs.add(ByteBuffer.allocateDirect(count * blockSize));
+        // The free stack must be able to hold all the allocated blocks.
+        if (freeBlocks.length < allocated + count)
+            freeBlocks = Arrays.copyOf(freeBlocks, Math.min(maxBlocks, Math.max(freeBlocks.length * 2, allocated + count)));
+        for (int i = count - 1; i >= 0; i--)
+            freeBlocks[freeCount++] = allocated + i;
+        return true;
+    }
+
+    private void removeSlot(String key) {
+        Slot    slot = lruIndex.remove(key);
+        if (slot != null)
+            freeSlot(slot);
+    }
+
+    private void freeSlot(Slot slot) {
+        for (int block : slot.blocks)
+            freeBlocks[freeCount++] = block;
+        usedBytes -= slot.length;
+    }
+
+    private void writeBytes(Slot slot, byte[] bytes) {
+        int     offset = 0;
+        for (int block : slot.blocks) {
+            int         len = Math.min(blockSize, bytes.length - offset);
+            ByteBuffer  buf = blockBuffer(block);
+            buf.put(bytes, offset, len);
+            offset += len;
+        }
+    }
+
+    private byte[] readBytes(Slot slot) {
+        byte[]  bytes = new byte[slot.length];
+        int     offset = 0;
+        for (int block : slot.blocks) {
+            int         len = Math.min(blockSize, bytes.length - offset);
+            ByteBuffer  buf = blockBuffer(block);
+            buf.get(bytes, offset, len);
+            offset += len;
+        }
+        return bytes;
+    }
+
+    private ByteBuffer blockBuffer(int block) {
+        ByteBuffer  buf = slabs.get(block / blocksPerSlab).duplicate();
+        buf.position((block % blocksPerSlab) * blockSize);
+        return buf;
+    }
+
+    private static int remainingSeconds(long expirationMS) {
+        if (expirationMS == 0)
+            return 0;
+        long    remaining = (expirationMS - System.currentTimeMillis() + 999) / 1000;
+        return (int)Math.max(1, remaining);
+    }
+
+}
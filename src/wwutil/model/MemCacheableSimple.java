@@ -19,16 +19,39 @@ package wwutil.model;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 
+import wwutil.sys.IOUtil;
+
 
 
 /**
  * Simple cache service for single process JVM.  Thread-safe.
+ * The capacity is bounded by the number of entries, and optionally by the total weight in bytes of the entries
+ * as measured by a Weigher.  Sub-budgets in bytes can be set on the key prefixes, e.g. the "dbId/modelName/" prefix
+ * of the objects of a model, to keep one model from taking up the whole cache.
  */
-public class MemCacheableSimple implements MemCacheable {
-
-    private Map<String, CacheEntry> lruCache;
+public class MemCacheableSimple implements MemCacheable, Peekable, Snapshotable {
+
+    /** Weigher measuring an object by its serialized size. */
+    public static final Weigher SERIALIZED_SIZE = new Weigher() {
+            public int weigh(String key, Serializable obj) {
+                try {
+                    return key.length() * 2 + IOUtil.objToBytes(obj).length;
+                } catch(Exception e) {
+                    return key.length() * 2;
+                }
+            }
+        };
+
+    private LinkedHashMap<String, CacheEntry>   lruCache;
+    private int                     maxEntries;
+    private long                    maxBytes;
+    private Weigher                 weigher;
+    private Map<String, Budget>     prefixBudgets = new ConcurrentHashMap<String, Budget>();
+    private long                    totalBytes;
     private AtomicInteger           hits = new AtomicInteger();
     private AtomicInteger           misses = new AtomicInteger();
     private int                     defaultExpirationSec = 0;
@@ -40,7 +63,7 @@ public class MemCacheableSimple implements MemCacheable {
      * @param maxEntries  the maximum entries in the cache.  Oldest entries will be removed when capacity exceeded.
      */
     public MemCacheableSimple(int maxEntries) {
-        this.lruCache = Collections.synchronizedMap(new LruCache<String, CacheEntry>(maxEntries));
+        this(maxEntries, 0, null);
     }
 
     /**
@@ -50,11 +73,54 @@ public class MemCacheableSimple implements MemCacheable {
      * @param defaultExpirationSec  the expiration for cached objects when loading via objectLoader.
      */
     public MemCacheableSimple(int maxEntries, Loadable objectLoader, int defaultExpirationSec) {
-        this.lruCache = Collections.synchronizedMap(new LruCache<String, CacheEntry>(maxEntries));
+        this(maxEntries, 0, null);
         this.objectLoader = objectLoader;
         this.defaultExpirationSec = defaultExpirationSec;
     }
 
+    /**
+     * Create a LRU cache bounded by bytes.
+     * @param maxEntries  the maximum entries in the cache.  Oldest entries will be removed when capacity exceeded.
+     * @param maxBytes  the maximum total weight of the entries.  Oldest entries will be removed when exceeded.  0 for no limit.
+     * @param weigher  measure the weight of an entry in bytes, e.g. SERIALIZED_SIZE.  Null to weigh nothing.
+     */
+    public MemCacheableSimple(int maxEntries, long maxBytes, Weigher weigher) {
+        if (maxBytes > 0 && weigher == null)
+            throw new IllegalArgumentException("A weigher is needed when maxBytes is set.");
+        this.lruCache = new LinkedHashMap<String, CacheEntry>(maxEntries + 1, 1.0f, true);
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.weigher = weigher;
+    }
+
+    /**
+     * Set a byte budget for the entries with keys starting with the prefix.  The oldest entries of the prefix
+     * are removed when its budget is exceeded.  The keys of a model's objects start with "dbId/modelName/".
+     * The budgets of the prefixes should not overlap.
+     */
+    public MemCacheableSimple setPrefixBudget(String keyPrefix, long maxBytes) {
+        if (weigher == null)
+            throw new IllegalArgumentException("A weigher is needed for the prefix budget.");
+        synchronized(lruCache) {
+            prefixBudgets.put(keyPrefix, new Budget(keyPrefix, maxBytes));
+
+            // Account the existing entries under the new budgets.
+            for (Budget budget : prefixBudgets.values())
+                budget.bytes = 0;
+            for (Map.Entry<String, CacheEntry> mapEntry : lruCache.entrySet()) {
+                CacheEntry  entry = mapEntry.getValue();
+                entry.budget = findBudget(mapEntry.getKey());
+                if (entry.budget != null)
+                    entry.budget.bytes += entry.weight;
+            }
+            for (Budget budget : prefixBudgets.values()) {
+                if (budget.bytes > budget.maxBytes)
+                    evictPrefix(budget);
+            }
+        }
+        return this;
+    }
+
     /**
      * Get an object from the cache.  If it doesn't exist, load it via the objectLoader.  If objectLoader is not set, return null.
      * @param key  Unique key of the object.
@@ -68,9 +134,11 @@ public class MemCacheableSimple implements MemCacheable {
         return obj;
     }
 
-    @SuppressWarnings("unchecked")
     private Serializable getFromCache(String key) {
-        CacheEntry<Serializable>    entry = (CacheEntry<Serializable>)lruCache.get(key);
+        CacheEntry  entry;
+        synchronized(lruCache) {
+            entry = lruCache.get(key);
+        }
         if (entry == null) {
             misses.incrementAndGet();
             return null;
@@ -84,6 +152,14 @@ public class MemCacheableSimple implements MemCacheable {
         return entry.obj;
     }
 
+    public Serializable peek(String key) {
+        CacheEntry  entry;
+        synchronized(lruCache) {
+            entry = lruCache.get(key);
+        }
+        return entry == null || entry.hasExpired() ? null : entry.obj;
+    }
+
     /**
      * Put an object into the cache.
      * @param key  Unique key of the object.
@@ -91,7 +167,26 @@ public class MemCacheableSimple implements MemCacheable {
      * @param obj  Object to cache.
      */
     public void put(String key, int expireInSeconds, Serializable obj) {
-        lruCache.put(key, new CacheEntry<Serializable>(expireInSeconds, obj));
+        int         weight = weigher == null ? 0 : weigher.weigh(key, obj);
+        CacheEntry  entry = new CacheEntry(expireInSeconds, obj, weight);
+
+        synchronized(lruCache) {
+            removeEntry(key);
+            entry.budget = findBudget(key);
+            if ((maxBytes > 0 && weight > maxBytes) ||
+                (entry.budget != null && weight > entry.budget.maxBytes))
+                return;     // too big to cache
+
+            lruCache.put(key, entry);
+            totalBytes += weight;
+            if (entry.budget != null)
+                entry.budget.bytes += weight;
+
+            if (entry.budget != null && entry.budget.bytes > entry.budget.maxBytes)
+                evictPrefix(entry.budget);
+            while (lruCache.size() > maxEntries || (maxBytes > 0 && totalBytes > maxBytes))
+                evictEldest();
+        }
     }
 
     /**
@@ -99,7 +194,9 @@ public class MemCacheableSimple implements MemCacheable {
      * @param key  Unique key of the object.
      */
     public void delete(String key) {
-        lruCache.remove(key);
+        synchronized(lruCache) {
+            removeEntry(key);
+        }
     }
 
     /**
@@ -107,17 +204,68 @@ public class MemCacheableSimple implements MemCacheable {
      */
     public void clearAll() {
         resetStats();
-        lruCache.clear();
+        synchronized(lruCache) {
+            lruCache.clear();
+            totalBytes = 0;
+            for (Budget budget : prefixBudgets.values())
+                budget.bytes = 0;
+        }
     }
 
     public int size() {
-        return lruCache.size();
+        synchronized(lruCache) {
+            return lruCache.size();
+        }
+    }
+
+    /** Return the total weight in bytes of the entries, as measured by the weigher. */
+    public long sizeInBytes() {
+        synchronized(lruCache) {
+            return totalBytes;
+        }
+    }
+
+    /** Return the total weight in bytes of the entries under the prefix budget. */
+    public long sizeInBytes(String keyPrefix) {
+        synchronized(lruCache) {
+            Budget  budget = prefixBudgets.get(keyPrefix);
+            return budget == null ? 0 : budget.bytes;
+        }
     }
     
     public void shutdown() {
         clearAll();
     }
 
+    /** Save the live entries to the snapshot file, oldest first so that loading them back keeps the LRU order. */
+    public void saveSnapshot(File file) throws IOException {
+        List<Map.Entry<String, CacheEntry>> entries;
+        synchronized(lruCache) {
+            entries = new ArrayList<Map.Entry<String, CacheEntry>>(lruCache.entrySet());
+        }
+
+        CacheSnapshot.Writer    writer = new CacheSnapshot.Writer(file);
+        try {
+            for (Map.Entry<String, CacheEntry> mapEntry : entries) {
+                CacheEntry  entry = mapEntry.getValue();
+                if (!entry.hasExpired())
+                    writer.write(mapEntry.getKey(), entry.expirationMS, entry.obj);
+            }
+            writer.close();
+        } catch(IOException e) {
+            writer.abort();
+            throw e;
+        }
+    }
+
+    public int loadSnapshot(File file) throws IOException {
+        return CacheSnapshot.read(file, new CacheSnapshot.Loader() {
+            public void load(String key, long expirationMS, byte[] data) throws Exception {
+                put(key, CacheSnapshot.remainingSeconds(expirationMS), CacheSnapshot.toObj(data));
+            }
+        });
+    }
+
     /**
      * Reset caching statistics.
      */
@@ -148,7 +296,53 @@ public class MemCacheableSimple implements MemCacheable {
         int     misses = getMisses();
         int     total =  hits + misses;
         int     total2 = total == 0 ? 1 : total;
-        return "total: " + total + "  hits: " + hits + " " + (hits*100/total2) + "%  misses: " + misses + " " + (misses*100/total2) + "%";
+        StringBuilder   sb = new StringBuilder();
+        sb.append("total: " + total + "  hits: " + hits + " " + (hits*100/total2) + "%  misses: " + misses + " " + (misses*100/total2) + "%");
+        synchronized(lruCache) {
+            sb.append("  size: ").append(lruCache.size()).append("  bytes: ").append(totalBytes);
+            for (Budget budget : prefixBudgets.values())
+                sb.append("  [").append(budget.keyPrefix).append(" bytes: ").append(budget.bytes).append("/").append(budget.maxBytes).append("]");
+        }
+        return sb.toString();
+    }
+
+
+    private Budget findBudget(String key) {
+        for (Budget budget : prefixBudgets.values()) {
+            if (key.startsWith(budget.keyPrefix))
+                return budget;
+        }
+        return null;
+    }
+
+    private void removeEntry(String key) {
+        CacheEntry  entry = lruCache.remove(key);
+        if (entry != null)
+            unaccount(entry);
+    }
+
+    private void unaccount(CacheEntry entry) {
+        totalBytes -= entry.weight;
+        if (entry.budget != null)
+            entry.budget.bytes -= entry.weight;
+    }
+
+    private void evictEldest() {
+        Iterator<CacheEntry>    itr = lruCache.values().iterator();
+        CacheEntry              entry = itr.next();
+        itr.remove();
+        unaccount(entry);
+    }
+
+    private void evictPrefix(Budget budget) {
+        Iterator<CacheEntry>    itr = lruCache.values().iterator();
+        while (budget.bytes > budget.maxBytes && itr.hasNext()) {
+            CacheEntry  entry = itr.next();
+            if (entry.budget == budget) {
+                itr.remove();
+                unaccount(entry);
+            }
+        }
     }
 
 
@@ -159,34 +353,40 @@ public class MemCacheableSimple implements MemCacheable {
         public Serializable load(String key);
     }
 
+    /**
+     * Interface to measure the weight of a cache entry in bytes.
+     */
+    public static interface Weigher {
+        public int weigh(String key, Serializable obj);
+    }
 
-    private static class CacheEntry<B> {
-        long    expirationMS;
-        B       obj;
 
-        CacheEntry(int expireInSeconds, B obj) {
-            this.expirationMS = expireInSeconds == 0 ? 0 : System.currentTimeMillis() + expireInSeconds*1000L;
-            this.obj = obj;
-        }
+    private static class Budget {
+        final String    keyPrefix;
+        final long      maxBytes;
+        long            bytes;
 
-        boolean hasExpired() {
-            return expirationMS != 0 && (expirationMS - System.currentTimeMillis()) < 0;
+        Budget(String keyPrefix, long maxBytes) {
+            this.keyPrefix = keyPrefix;
+            this.maxBytes = maxBytes;
         }
     }
 
-    private static class LruCache<A, B> extends LinkedHashMap<A, B> {
-
-        private final int maxEntries;
+    private static class CacheEntry {
+        long            expirationMS;
+        Serializable    obj;
+        int             weight;
+        Budget          budget;
 
-        public LruCache(final int maxEntries) {
-            super(maxEntries + 1, 1.0f, true);
-            this.maxEntries = maxEntries;
+        CacheEntry(int expireInSeconds, Serializable obj, int weight) {
+            this.expirationMS = expireInSeconds == 0 ? 0 : System.currentTimeMillis() + expireInSeconds*1000L;
+            this.obj = obj;
+            this.weight = weight;
         }
 
-        @Override protected boolean removeEldestEntry(final Map.Entry<A, B> eldest) {
-            return super.size() > maxEntries;
+        boolean hasExpired() {
+            return expirationMS != 0 && (expirationMS - System.currentTimeMillis()) < 0;
         }
     }
 
 }
-
@@ -0,0 +1,32 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.model;
+
+import java.util.Collection;
+import java.util.Map;
+import java.io.Serializable;
+
+
+/**
+ * Cache service able to look up multiple keys in one call, e.g. a remote cache fetching them in one round trip.
+ */
+public interface MultiGettable {
+
+    /** Get the objects of the keys.  The keys not found are left out of the returned map. */
+    public Map<String, Serializable> getMulti(Collection<String> keys);
+
+}
@@ -0,0 +1,35 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.model;
+
+import java.io.File;
+import java.io.IOException;
+
+
+/**
+ * Cache service able to save its live entries to a snapshot file and load them back, for warm start.
+ * See CacheSnapshot for the file format.
+ */
+public interface Snapshotable {
+
+    /** Save the live entries to the file.  The file is replaced as a whole when done. */
+    public void saveSnapshot(File file) throws IOException;
+
+    /** Load the entries from the snapshot file, skipping the expired ones.  Return the number of entries loaded. */
+    public int loadSnapshot(File file) throws IOException;
+
+}
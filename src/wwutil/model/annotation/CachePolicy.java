@@ -37,4 +37,10 @@ public @interface CachePolicy {
      * Cached objects are removed as a policy of capacity restriction.
      */
     public int expireInSeconds() default 0;
+
+    /** Cache the not-found result of get() and findBy() for the number of seconds, to avoid reading the db again for the missing objects.
+     * The default value (0) means not caching the not-found results.
+     * Putting the object replaces its not-found entry.  Only findBy() on the @CacheByField fields caches its not-found result.
+     */
+    public int notFoundExpireInSeconds() default 0;
 }
@@ -0,0 +1,31 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.model.annotation;
+
+
+import java.lang.annotation.*;
+
+
+/** Model field annotation.
+ * Marks a field of a DynamoDB model to be indexed in a companion index table, named as the model table plus "_idx_" plus the field name.
+ * The index table is updated on every put and delete of the model.  A query with a single eq, begins with, or between
+ * condition on the field is run on the index table instead of scanning the model table.
+ * Ignored for SimpleDB, which indexes all attributes.  The Id, RangeKey, and Set fields cannot be indexed.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Indexed {
+}
@@ -43,4 +43,11 @@ public @interface Model{
      */
     public long writeThroughput() default 5;
 
+    /** Optional write-behind delay in milliseconds.  When set, Dao.put() applies the preStoreSteps and updates the cache right away,
+     * but queues the object and writes it to the db in batch later.  Repeated puts of the same key before the write are coalesced into one.
+     * Call Dao.flush() or Jsoda.flush() to write out the queued objects.  Jsoda.shutdown() flushes them as well.
+     * Objects not yet written are lost if the process dies.  Cannot be used with VersionLocking.  Default is 0 for writing right away.
+     */
+    public int writeBehindMillis() default 0;
+
 }
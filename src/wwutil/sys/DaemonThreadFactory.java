@@ -0,0 +1,44 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.sys;
+
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Thread factory creating named daemon threads, so that the background threads won't hold up the JVM exit.
+ */
+public class DaemonThreadFactory implements ThreadFactory
+{
+    private final String        namePrefix;
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    public DaemonThreadFactory(String namePrefix)
+    {
+        this.namePrefix = namePrefix;
+    }
+
+    public Thread newThread(Runnable r)
+    {
+        Thread  thread = new Thread(r, namePrefix + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+
+}
@@ -0,0 +1,78 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS" basis, 
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for 
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: Jsoda
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2012 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package wwutil.sys;
+
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Counter striped over padded cells to avoid contention when many threads are incrementing it.
+ * The threads are spread over the cells by their thread id.  Reading the count sums up the cells.
+ */
+public class StripedCounter
+{
+    private static final int    PADDING = 8;        // 8 longs per cell to keep the cells on separate cache lines.
+
+    private final int               mask;
+    private final AtomicLongArray   cells;
+
+
+    public StripedCounter()
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public StripedCounter(int stripes)
+    {
+        int n = 1;
+        while (n < stripes)
+            n <<= 1;
+        this.mask = n - 1;
+        this.cells = new AtomicLongArray(n * PADDING);
+    }
+
+    public void increment()
+    {
+        add(1);
+    }
+
+    public void add(long x)
+    {
+        cells.addAndGet(((int)Thread.currentThread().getId() & mask) * PADDING, x);
+    }
+
+    public long sum()
+    {
+        long    sum = 0;
+        for (int i = 0; i < cells.length(); i += PADDING)
+            sum += cells.get(i);
+        return sum;
+    }
+
+    public int intValue()
+    {
+        return (int)sum();
+    }
+
+    public void reset()
+    {
+        for (int i = 0; i < cells.length(); i += PADDING)
+            cells.set(i, 0);
+    }
+
+}
@@ -19,6 +19,9 @@ package wwutil.jsoda;
 import java.io.*;
 import java.util.*;
 import java.lang.reflect.*;
+import java.util.concurrent.*;
+import java.net.*;
+import java.util.concurrent.atomic.*;
 import org.apache.commons.lang.builder.ReflectionToStringBuilder;
 
 import static org.junit.Assert.assertThat;
@@ -33,11 +36,45 @@ import static org.hamcrest.core.AnyOf.anyOf;
 import junit.framework.*;
 
 import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.dynamodb.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodb.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodb.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodb.model.WriteRequest;
+import com.amazonaws.services.dynamodb.model.GetItemRequest;
+import com.amazonaws.services.dynamodb.model.GetItemResult;
+import com.amazonaws.services.dynamodb.model.AttributeValue;
+import com.amazonaws.services.dynamodb.model.PutItemRequest;
+import com.amazonaws.services.dynamodb.model.PutItemResult;
+import com.amazonaws.services.dynamodb.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodb.model.UpdateItemResult;
+import com.amazonaws.services.dynamodb.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodb.model.DeleteItemResult;
+import com.amazonaws.services.dynamodb.model.ScanRequest;
+import com.amazonaws.services.dynamodb.model.ScanResult;
+import com.amazonaws.services.dynamodb.model.DescribeTableRequest;
+import com.amazonaws.services.dynamodb.model.DescribeTableResult;
+import com.amazonaws.services.dynamodb.model.TableDescription;
+import com.amazonaws.services.dynamodb.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodb.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodb.model.BatchResponse;
+import com.amazonaws.services.dynamodb.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodb.model.QueryRequest;
+import com.amazonaws.services.dynamodb.model.QueryResult;
+import com.amazonaws.services.dynamodb.model.AttributeValueUpdate;
+import com.amazonaws.services.dynamodb.model.AttributeAction;
+import com.amazonaws.services.dynamodb.model.ReturnValue;
 
 import wwutil.sys.ReflectUtil;
 import wwutil.sys.FnUtil;
 import wwutil.model.MemCacheableSimple;
+import wwutil.model.MemCacheableOffHeap;
+import wwutil.model.MemCacheableConcurrent;
+import wwutil.model.ValidationException;
+import wwutil.model.AnnotationFieldHandler;
+import wwutil.model.MemCacheableMemcached;
 import wwutil.model.annotation.Key;
 import wwutil.model.annotation.PrePersist;
 import wwutil.model.annotation.PreValidation;
@@ -67,6 +104,7 @@ import wwutil.model.annotation.MaskMatch;
 import wwutil.model.annotation.EmailMatch;
 import wwutil.model.annotation.S3Field;
 import wwutil.model.annotation.FormatMsg;
+import wwutil.model.annotation.Indexed;
 
 import static wwutil.jsoda.Query.*;
 
@@ -562,7 +600,55 @@ public class JsodaTest extends TestCase
         } catch(JsodaException expected) {
             System.out.println("Expected: " + expected);
         }
-        
+
+	}
+
+    public void xx_test_batchGet() throws Exception {
+        System.out.println("test_batchGet");
+
+        List<Model1>    objs1 = jsodaSdb.dao(Model1.class).batchGet("aa", "abc_non_existed", "bb", "aa");
+        assertThat(objs1.size(), is(4));
+        assertThat(objs1.get(1), nullValue());
+        dump(objs1);
+        dump( jsodaDyn.dao(Model1.class).batchGet("aa", "abc_non_existed", "bb", "aa") );
+
+        dump( jsodaSdb.dao(Model3.class).batchGet(Arrays.asList(2, 2), Arrays.asList("item1", "item2")) );
+        dump( jsodaDyn.dao(Model3.class).batchGet(Arrays.asList(2, 2), Arrays.asList("item1", "item2")) );
+
+        try {
+            jsodaDyn.dao(Model3.class).batchGet(2, 2);
+            assertThat(false, is(true));
+        } catch(JsodaException expected) {
+            System.out.println("Expected: " + expected);
+        }
+	}
+
+    public void xx_test_async() throws Exception {
+        System.out.println("test_async");
+
+        Future<Void>        f1 = jsodaSdb.dao(Model1.class).async().putAsync(new Model1("async1", 61));
+        Future<Void>        f2 = jsodaDyn.dao(Model1.class).async().putAsync(new Model1("async1", 61));
+        f1.get();
+        f2.get();
+
+        Future<Model1>      g1 = jsodaSdb.dao(Model1.class).async().getAsync("async1");
+        Future<Model1>      g2 = jsodaDyn.dao(Model1.class).async().getAsync("async1");
+        Future<List<Model1>> q1 = jsodaSdb.query(Model1.class).eq("name", "async1").runAsync();
+        assertThat(g1.get().age, is(61));
+        assertThat(g2.get().age, is(61));
+        assertThat(q1.get().size(), is(1));
+
+        jsodaSdb.dao(Model1.class).async().deleteAsync("async1").get();
+        jsodaDyn.dao(Model1.class).async().deleteAsync("async1").get();
+        assertThat(jsodaSdb.dao(Model1.class).async().getAsync("async1").get(), nullValue());
+
+        try {
+            jsodaDyn.dao(Model3.class).async().getAsync(31).get();
+            assertThat(false, is(true));
+        } catch(ExecutionException expected) {
+            assertThat(expected.getCause(), instanceOf(JsodaException.class));
+            System.out.println("Expected: " + expected);
+        }
 	}
 
     public void xx_test_batchPut() throws Exception {
@@ -643,6 +729,982 @@ public class JsodaTest extends TestCase
 
 	}
 
+    public void test_cache_concurrent() throws Exception {
+        System.out.println("test_cache_concurrent");
+
+        // Get and put, with the stats.
+        MemCacheableConcurrent  cache = new MemCacheableConcurrent(64, 4, null, 0);
+        assertThat( cache.get("a"), nullValue() );
+        cache.put("a", 0, new Model1("a", 1));
+        assertThat( ((Model1)cache.get("a")).age, is(1) );
+        cache.put("a", 0, new Model1("a", 2));
+        assertThat( ((Model1)cache.get("a")).age, is(2) );
+        assertThat( cache.getHits(), is(2) );
+        assertThat( cache.getMisses(), is(1) );
+        cache.delete("a");
+        assertThat( cache.get("a"), nullValue() );
+
+        // Expiry.
+        cache.put("exp", 1, new Model1("exp", 1));
+        assertThat( cache.get("exp"), notNullValue() );
+        Thread.sleep(1100);
+        assertThat( cache.get("exp"), nullValue() );
+        assertThat( cache.size(), is(0) );
+
+        // Eviction: each segment keeps its most recently used entries within its share of maxEntries.
+        cache = new MemCacheableConcurrent(4, 1, null, 0);
+        for (int i = 0; i < 4; i++)
+            cache.put("key" + i, 0, new Model1("name" + i, i));
+        cache.get("key0");
+        cache.put("key4", 0, new Model1("name4", 4));
+        assertThat( cache.size(), is(4) );
+        assertThat( cache.get("key0"), notNullValue() );
+        assertThat( cache.get("key1"), nullValue() );
+        cache = new MemCacheableConcurrent(1000, 16, null, 0);
+        for (int i = 0; i < 5000; i++)
+            cache.put("key" + i, 0, new Model1("name" + i, i));
+        assertThat( cache.size() <= 1008, is(true) );
+        assertThat( ((Model1)cache.get("key4999")).age, is(4999) );
+
+        // Loader fills the misses.
+        cache = new MemCacheableConcurrent(100, new MemCacheableSimple.Loadable() {
+            public Serializable load(String key) {
+                return new Model1(key, 7);
+            }
+        }, 0);
+        assertThat( ((Model1)cache.get("loaded")).age, is(7) );
+        assertThat( cache.size(), is(1) );
+
+        // Concurrent access over overlapping keys.
+        final MemCacheableConcurrent    cache2 = new MemCacheableConcurrent(500);
+        final AtomicInteger             errors = new AtomicInteger();
+        ExecutorService                 executor = Executors.newFixedThreadPool(8);
+        List<Future<?>>                 futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < 8; t++) {
+            final int   seed = t;
+            futures.add(executor.submit(new Runnable() {
+                public void run() {
+                    Random  random = new Random(seed);
+                    for (int i = 0; i < 20000; i++) {
+                        int     n = random.nextInt(1000);
+                        String  key = "key" + n;
+                        switch (random.nextInt(3)) {
+                        case 0:
+                            cache2.put(key, 0, new Model1(key, n));
+                            break;
+                        case 1:
+                            Model1  obj = (Model1)cache2.get(key);
+                            if (obj != null && obj.age != n)
+                                errors.incrementAndGet();
+                            break;
+                        default:
+                            cache2.delete(key);
+                        }
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures)
+            future.get();
+        executor.shutdown();
+        assertThat( errors.get(), is(0) );
+        assertThat( cache2.size() <= 512, is(true) );
+        assertThat( cache2.getHits() + cache2.getMisses() > 0, is(true) );
+    }
+
+    public void xx_test_cache_not_found() throws Exception {
+        System.out.println("test_cache_not_found");
+
+        jsoda = new Jsoda(new BasicAWSCredentials(key, secret), new MemCacheableSimple(1000))
+            .setDbEndpoint(DbType.DynamoDB, awsUrl);
+        jsoda.registerModel(NotFoundCacheModel1.class, DbType.SimpleDB);
+        jsoda.createModelTable(NotFoundCacheModel1.class);
+        jsoda.dao(NotFoundCacheModel1.class).delete("nf1");
+        jsoda.getMemCacheable().clearAll();
+
+        Dao<NotFoundCacheModel1>    dao = jsoda.dao(NotFoundCacheModel1.class);
+        assertThat( dao.get("nf1"), nullValue() );
+        assertThat( dao.get("nf1"), nullValue() );
+        assertThat( dao.get("nf1"), nullValue() );
+        assertThat( dao.getNotFoundCacheHits(), is(2L) );
+
+        // Put replaces the not-found entry.
+        NotFoundCacheModel1 obj = new NotFoundCacheModel1();
+        obj.name = "nf1";
+        obj.age = 1;
+        dao.put(obj);
+        assertThat( dao.get("nf1").age, is(1) );
+        assertThat( dao.getNotFoundCacheHits(), is(2L) );
+        dao.delete("nf1");
+    }
+
+    public void test_cache_not_found_race() throws Exception {
+        System.out.println("test_cache_not_found_race");
+
+        Jsoda       jsoda1 = new Jsoda(new BasicAWSCredentials(key, secret), new MemCacheableSimple(100));
+        jsoda1.registerModel(NotFoundCacheModel1.class, DbType.SimpleDB);
+        final String        modelName = jsoda1.getModelName(NotFoundCacheModel1.class);
+        final ObjCacheMgr   cacheMgr = jsoda1.getObjCacheMgr();
+        final Callable<NotFoundCacheModel1> notFoundLoader = new Callable<NotFoundCacheModel1>() {
+            public NotFoundCacheModel1 call() throws Exception {
+                return null;
+            }
+        };
+
+        // A not-found load leaves the marker.
+        assertThat( cacheMgr.loadByPk(modelName, "nf1", null, notFoundLoader), nullValue() );
+        assertThat( ObjCacheMgr.isNotFound(cacheMgr.cacheGet(modelName, "nf1", null)), is(true) );
+
+        // A write while the load is running keeps its cached object.
+        NotFoundCacheModel1 obj = cacheMgr.loadByPk(modelName, "nf2", null, new Callable<NotFoundCacheModel1>() {
+            public NotFoundCacheModel1 call() throws Exception {
+                NotFoundCacheModel1 written = new NotFoundCacheModel1();
+                written.name = "nf2";
+                written.age = 2;
+                cacheMgr.modelChanged(modelName);
+                cacheMgr.cachePutWritten(modelName, written);
+                return null;
+            }
+        });
+        assertThat( obj, nullValue() );
+        assertThat( ((NotFoundCacheModel1)cacheMgr.cacheGet(modelName, "nf2", null)).age, is(2) );
+
+        // A write after the load began but before the marker leaves no marker.
+        long    generation = cacheMgr.getGeneration(modelName);
+        cacheMgr.modelChanged(modelName);
+        cacheMgr.cachePutNotFound(modelName, "nf3", null, generation);
+        assertThat( cacheMgr.cacheGet(modelName, "nf3", null), nullValue() );
+    }
+
+    public void test_query_cache_copies() throws Exception {
+        System.out.println("test_query_cache_copies");
+
+        StubDynamoDBClient          client = stubDynamoDB(jsodaDyn);
+        Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+        item.put("name", new AttributeValue().withS("q1"));
+        item.put("age", new AttributeValue().withN("5"));
+        client.items.put("q1", item);
+
+        List<Model1>    items1 = jsodaDyn.query(Model1.class).eq("name", "q1").cached(60).run();
+        items1.get(0).age = 99;
+        List<Model1>    items2 = jsodaDyn.query(Model1.class).eq("name", "q1").cached(60).run();
+        List<Model1>    items3 = jsodaDyn.query(Model1.class).eq("name", "q1").cached(60).run();
+        assertThat( client.getCount, is(1) );
+        assertThat( jsodaDyn.getObjCacheMgr().getQueryCache().getHits(), is(2L) );
+
+        // Each run gets its own copies, unaffected by the changes of the other callers.
+        assertThat( items2.get(0).age, is(5) );
+        assertThat( items2.get(0) == items3.get(0), is(false) );
+    }
+
+    public void xx_test_query_cache() throws Exception {
+        System.out.println("test_query_cache");
+
+        QueryCache  queryCache = jsodaSdb.getObjCacheMgr().getQueryCache();
+        long        hits = queryCache.getHits();
+
+        List<Model1>    items1 = jsodaSdb.query(Model1.class).gt("age", 10).eq("name", "abc").cached(60).run();
+        List<Model1>    items2 = jsodaSdb.query(Model1.class).eq("name", "abc").gt("age", 10).cached(60).run();
+        assertThat( queryCache.getHits(), is(hits + 1) );
+        assertThat( items2.size(), is(items1.size()) );
+
+        // A put on the model invalidates its cached results.
+        jsodaSdb.dao(Model1.class).put(new Model1("abc", 25));
+        jsodaSdb.query(Model1.class).eq("name", "abc").gt("age", 10).cached(60).run();
+        assertThat( queryCache.getHits(), is(hits + 1) );
+
+        long    count1 = jsodaSdb.query(Model1.class).gt("age", 10).cached(60).count();
+        long    count2 = jsodaSdb.query(Model1.class).gt("age", 10).cached(60).count();
+        assertThat( count2, is(count1) );
+        assertThat( queryCache.getHits(), is(hits + 2) );
+    }
+
+    public void test_cache_offheap() throws Exception {
+        System.out.println("test_cache_offheap");
+
+        // 64K budget in 128-byte blocks, with a small hot tier.
+        MemCacheableOffHeap cache = new MemCacheableOffHeap(64 * 1024, 10, 128, 8 * 1024);
+        for (int i = 0; i < 2000; i++)
+            cache.put("key" + i, 0, new Model1("name" + i, i));
+        System.out.println(cache.dumpStats());
+        assertThat( cache.sizeInBytes() <= 64 * 1024, is(true) );
+        assertThat( ((Model1)cache.get("key1999")).age, is(1999) );
+        assertThat( cache.get("key0"), nullValue() );
+
+        cache.put("exp", 1, new Model1("exp", 1));
+        Thread.sleep(1100);
+        assertThat( cache.get("exp"), nullValue() );
+
+        cache.delete("key1999");
+        assertThat( cache.get("key1999"), nullValue() );
+
+        // An entry kept being read from the hot tier is not evicted as the least recently used one.
+        cache = new MemCacheableOffHeap(64 * 1024, 1000, 128, 8 * 1024);
+        cache.put("hot", 0, new Model1("hot", 1));
+        for (int i = 0; i < 2000; i++) {
+            cache.put("key" + i, 0, new Model1("name" + i, i));
+            assertThat( cache.get("hot"), notNullValue() );
+        }
+    }
+
+    public void xx_test_cache_offheap_jsoda() throws Exception {
+        System.out.println("test_cache_offheap_jsoda");
+
+        jsoda = new Jsoda(new BasicAWSCredentials(key, secret), new MemCacheableOffHeap(64 * 1024 * 1024));
+        jsoda.registerModel(Model1.class, DbType.SimpleDB);
+        dump( jsoda.dao(Model1.class).get("abc") );
+        dump( jsoda.dao(Model1.class).get("abc") );
+        assertThat( jsoda.getMemCacheable().getHits(), is(1) );
+    }
+
+    public void test_cache_bytes() throws Exception {
+        System.out.println("test_cache_bytes");
+
+        MemCacheableSimple  cache = new MemCacheableSimple(1000, 20000, MemCacheableSimple.SERIALIZED_SIZE);
+        cache.setPrefixBudget("sdb/Big/", 5000);
+        for (int i = 0; i < 100; i++)
+            cache.put("sdb/Big/pk/" + i, 0, new Model1(new String(new char[1000]), i));
+        assertThat( cache.sizeInBytes("sdb/Big/") <= 5000, is(true) );
+        assertThat( ((Model1)cache.get("sdb/Big/pk/99")).age, is(99) );
+        assertThat( cache.get("sdb/Big/pk/0"), nullValue() );
+
+        for (int i = 0; i < 200; i++)
+            cache.put("sdb/Small/pk/" + i, 0, new Model1("name" + i, i));
+        System.out.println(cache.dumpStats());
+        assertThat( cache.sizeInBytes() <= 20000, is(true) );
+        assertThat( ((Model1)cache.get("sdb/Small/pk/199")).age, is(199) );
+    }
+
+    public void test_cache_snapshot() throws Exception {
+        System.out.println("test_cache_snapshot");
+
+        File                    file = File.createTempFile("jsoda-cache", ".snapshot");
+        MemCacheableConcurrent  cache1 = new MemCacheableConcurrent(1000);
+        for (int i = 0; i < 100; i++)
+            cache1.put("key" + i, 0, new Model1("name" + i, i));
+        cache1.put("exp", 1, new Model1("exp", 1));
+        Thread.sleep(1100);
+        cache1.saveSnapshot(file);
+
+        MemCacheableOffHeap     cache2 = new MemCacheableOffHeap(1024 * 1024);
+        assertThat( cache2.loadSnapshot(file), is(100) );
+        assertThat( ((Model1)cache2.get("key99")).age, is(99) );
+        assertThat( cache2.get("exp"), nullValue() );
+
+        // Warm start a Jsoda object from the snapshot, and save it again on shutdown.
+        Jsoda   jsoda = new Jsoda(new BasicAWSCredentials(key, secret), new MemCacheableSimple(1000))
+            .setCacheSnapshotFile(file);
+        assertThat( jsoda.getMemCacheable().size(), is(100) );
+        jsoda.getMemCacheable().put("key100", 0, new Model1("name100", 100));
+        jsoda.shutdown();
+        assertThat( new MemCacheableSimple(1000).loadSnapshot(file), is(101) );
+        file.delete();
+    }
+
+    public void test_cache_invalidator() throws Exception {
+        System.out.println("test_cache_invalidator");
+
+        FakeInvalidatorHub  hub = new FakeInvalidatorHub();
+        Jsoda               jsoda1 = new Jsoda(new BasicAWSCredentials(key, secret), new MemCacheableSimple(1000));
+        Jsoda               jsoda2 = new Jsoda(new BasicAWSCredentials(key, secret), new MemCacheableSimple(1000));
+        jsoda1.registerModel(Model2.class, DbType.SimpleDB);
+        jsoda2.registerModel(Model2.class, DbType.SimpleDB);
+        jsoda1.setCacheInvalidator(hub.newInvalidator());
+        jsoda2.setCacheInvalidator(hub.newInvalidator());
+
+        Model2  obj = new Model2();
+        obj.id = 1;
+        obj.name = "abc";
+        jsoda2.getObjCacheMgr().cachePut(jsoda2.getModelName(Model2.class), obj);
+        assertThat( jsoda2.dao(Model2.class).findBy("name", "abc"), notNullValue() );
+
+        // A write at jsoda1 evicts the object and its CacheByField entry at jsoda2.
+        jsoda1.getObjCacheMgr().cachePutWritten(jsoda1.getModelName(Model2.class), obj);
+        assertThat( jsoda1.getMemCacheable().size(), is(2) );
+        assertThat( jsoda2.getMemCacheable().size(), is(0) );
+
+        jsoda1.shutdown();
+        jsoda2.shutdown();
+    }
+
+    public void test_udp_invalidator() throws Exception {
+        System.out.println("test_udp_invalidator");
+
+        final List<String>      received = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch    latch = new CountDownLatch(1);
+        InetAddress             localhost = InetAddress.getByName("127.0.0.1");
+        UdpCacheInvalidator     node1 = new UdpCacheInvalidator(47001, Arrays.asList(new InetSocketAddress(localhost, 47002)));
+        UdpCacheInvalidator     node2 = new UdpCacheInvalidator(47002, Arrays.asList(new InetSocketAddress(localhost, 47001)));
+        node1.start(new CacheInvalidator.Listener() {
+            public void invalidate(Collection<String> keys) {}
+        });
+        node2.start(new CacheInvalidator.Listener() {
+            public void invalidate(Collection<String> keys) {
+                received.addAll(keys);
+                latch.countDown();
+            }
+        });
+
+        node1.publish("SDB/Model1/pk/abc");
+        node1.publish("SDB/Model1/pk/abc");     // coalesced
+        node1.publish("SDB/Model1/pk/def");
+        latch.await(5, TimeUnit.SECONDS);
+        assertThat( received, is(Arrays.asList("SDB/Model1/pk/abc", "SDB/Model1/pk/def")) );
+
+        node1.shutdown();
+        node2.shutdown();
+    }
+
+    public void test_cache_memcached() throws Exception {
+        System.out.println("test_cache_memcached");
+
+        FakeMemcachedServer     server1 = new FakeMemcachedServer();
+        FakeMemcachedServer     server2 = new FakeMemcachedServer();
+        MemCacheableMemcached   cache = new MemCacheableMemcached(Arrays.asList(server1.getAddress(), server2.getAddress()));
+
+        List<String>    keys = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            keys.add("SDB/Model1/pk/name" + i);
+            cache.put(keys.get(i), 0, new Model1("name" + i, i));
+        }
+        assertThat( server1.getItemCount() > 0 && server2.getItemCount() > 0, is(true) );
+        assertThat( cache.size(), is(100) );
+        assertThat( ((Model1)cache.get("SDB/Model1/pk/name5")).age, is(5) );
+
+        // One get command per server for the multi-get.
+        int     getCommands = server1.getGetCommands() + server2.getGetCommands();
+        Map<String, Serializable>   objs = cache.getMulti(keys);
+        assertThat( objs.size(), is(100) );
+        assertThat( server1.getGetCommands() + server2.getGetCommands(), is(getCommands + 2) );
+
+        // The get commands are sent to all the servers before reading the replies.  Each server
+        // replies only after both have received their get, which would time out the reads one server after another.
+        CountDownLatch  getLatch = new CountDownLatch(2);
+        server1.setGetLatch(getLatch);
+        server2.setGetLatch(getLatch);
+        assertThat( cache.getMulti(keys).size(), is(100) );
+        server1.setGetLatch(null);
+        server2.setGetLatch(null);
+
+        // More keys than a pipeline window of get commands.
+        List<String>    manyKeys = new ArrayList<String>(keys);
+        for (int i = 0; i < 1000; i++)
+            manyKeys.add("SDB/Model1/pk/missing" + i);
+        assertThat( cache.getMulti(manyKeys).size(), is(100) );
+
+        // Keys with space are hashed.
+        cache.put("SDB/Model1/name/has space", 0, new Model1("has space", 1));
+        assertThat( ((Model1)cache.get("SDB/Model1/name/has space")).name, is("has space") );
+
+        cache.delete("SDB/Model1/pk/name5");
+        assertThat( cache.get("SDB/Model1/pk/name5"), nullValue() );
+        cache.clearAll();
+        assertThat( cache.size(), is(0) );
+
+        // Near cache serves the object without going to the server.
+        MemCacheableMemcached   nearCache = new MemCacheableMemcached(Arrays.asList(server1.getAddress()), 2, 1000, 100, 60);
+        nearCache.put("key1", 0, new Model1("key1", 1));
+        getCommands = server1.getGetCommands();
+        assertThat( ((Model1)nearCache.get("key1")).age, is(1) );
+        assertThat( server1.getGetCommands(), is(getCommands) );
+
+        cache.shutdown();
+        nearCache.shutdown();
+        server1.close();
+        server2.close();
+    }
+
+    public void xx_test_write_behind() throws Exception {
+        System.out.println("test_write_behind");
+
+        jsodaSdb.registerModel(WriteBehindModel1.class, DbType.SimpleDB);
+        Dao<WriteBehindModel1>  dao = jsodaSdb.dao(WriteBehindModel1.class);
+
+        // Repeated puts of the same key are coalesced and readable before the write.
+        for (int i = 0; i < 10; i++)
+            dao.put(new WriteBehindModel1("beat1", i));
+        dao.put(new WriteBehindModel1("beat2", 1));
+        assertThat( dao.getPendingWrites(), is(2) );
+        assertThat( dao.get("beat1").count, is(9) );
+
+        // Deleting drops the queued write.
+        dao.delete("beat2");
+        assertThat( dao.getPendingWrites(), is(1) );
+
+        dao.flush();
+        assertThat( dao.getPendingWrites(), is(0) );
+        jsodaSdb.getMemCacheable().clearAll();
+        assertThat( dao.get("beat1").count, is(9) );
+        assertThat( dao.get("beat2"), nullValue() );
+
+        // VersionLocking cannot be used with write-behind.
+        try {
+            jsodaSdb.registerModel(InvalidWriteBehindModel1.class, DbType.SimpleDB);
+            assertThat("Should not return", true, is(false));
+        } catch(Exception expected) {
+            System.out.println("Expected: " + expected);
+        }
+    }
+
+    public void test_write_behind_shared() throws Exception {
+        System.out.println("test_write_behind_shared");
+
+        Jsoda               jsoda1 = new Jsoda(new BasicAWSCredentials(key, secret), new MemCacheableSimple(1000))
+            .setDbEndpoint(DbType.DynamoDB, awsUrl);
+        jsoda1.registerModel(WriteBehindModel1.class, DbType.DynamoDB);
+        StubDynamoDBClient  client = stubDynamoDB(jsoda1);
+
+        // A Dao constructed by the caller queues into the model's buffer, seen by the Jsoda's own Dao.
+        Dao<WriteBehindModel1>  ownDao = new Dao<WriteBehindModel1>(WriteBehindModel1.class, jsoda1);
+        ownDao.put(new WriteBehindModel1("shared1", 1));
+        assertThat( jsoda1.dao(WriteBehindModel1.class).getPendingWrites(), is(1) );
+
+        // The flush of the Jsoda writes it out.
+        jsoda1.flush();
+        assertThat( client.putCount, is(1) );
+        assertThat( ownDao.getPendingWrites(), is(0) );
+
+        ownDao.put(new WriteBehindModel1("shared2", 2));
+        jsoda1.shutdown();
+        assertThat( client.putCount, is(2) );
+    }
+
+    public void test_write_behind_invalidation() throws Exception {
+        System.out.println("test_write_behind_invalidation");
+
+        FakeInvalidatorHub  hub = new FakeInvalidatorHub();
+        Jsoda               jsoda1 = new Jsoda(new BasicAWSCredentials(key, secret), new MemCacheableSimple(1000))
+            .setDbEndpoint(DbType.DynamoDB, awsUrl);
+        Jsoda               jsoda2 = new Jsoda(new BasicAWSCredentials(key, secret), new MemCacheableSimple(1000));
+        jsoda1.registerModel(WriteBehindModel1.class, DbType.DynamoDB);
+        jsoda2.registerModel(WriteBehindModel1.class, DbType.DynamoDB);
+        jsoda1.setCacheInvalidator(hub.newInvalidator());
+        jsoda2.setCacheInvalidator(hub.newInvalidator());
+        StubDynamoDBClient  client = stubDynamoDB(jsoda1);
+
+        jsoda2.getObjCacheMgr().cachePut(jsoda2.getModelName(WriteBehindModel1.class), new WriteBehindModel1("wb1", 0));
+        Dao<WriteBehindModel1>  dao = jsoda1.dao(WriteBehindModel1.class);
+        dao.put(new WriteBehindModel1("wb1", 1));
+
+        // The peer keeps its object until the queued write is in the db.
+        assertThat( dao.get("wb1").count, is(1) );
+        assertThat( jsoda2.getMemCacheable().size(), is(1) );
+
+        dao.flush();
+        assertThat( client.putCount, is(1) );
+        assertThat( jsoda2.getMemCacheable().size(), is(0) );
+
+        jsoda1.shutdown();
+        jsoda2.shutdown();
+    }
+
+    public void test_delete_invalidation() throws Exception {
+        System.out.println("test_delete_invalidation");
+
+        FakeInvalidatorHub  hub = new FakeInvalidatorHub();
+        Jsoda               jsoda1 = new Jsoda(new BasicAWSCredentials(key, secret), new MemCacheableSimple(1000))
+            .setDbEndpoint(DbType.DynamoDB, awsUrl);
+        final Jsoda         jsoda2 = new Jsoda(new BasicAWSCredentials(key, secret), new MemCacheableSimple(1000));
+        jsoda1.registerModel(Model2.class, DbType.DynamoDB);
+        jsoda2.registerModel(Model2.class, DbType.DynamoDB);
+        jsoda1.setCacheInvalidator(hub.newInvalidator());
+        jsoda2.setCacheInvalidator(hub.newInvalidator());
+        StubDynamoDBClient  client = stubDynamoDB(jsoda1);
+
+        // Record the size of the peer's cache when the delete reaches the db.
+        final List<Integer> peerSizes = new ArrayList<Integer>();
+        client.onWrite = new Runnable() {
+            public void run() {
+                peerSizes.add(jsoda2.getMemCacheable().size());
+            }
+        };
+
+        // The peer keeps its object until the delete is in the db, or it might reload the object in between.
+        String  modelName = jsoda2.getModelName(Model2.class);
+        jsoda2.getObjCacheMgr().cachePut(modelName, newModel2(1, "del1"));
+        jsoda1.dao(Model2.class).delete(1L);
+        assertThat( peerSizes, is(Arrays.asList(2)) );
+        assertThat( jsoda2.getMemCacheable().size(), is(0) );
+
+        peerSizes.clear();
+        jsoda2.getObjCacheMgr().cachePut(modelName, newModel2(1, "del1"));
+        jsoda2.getObjCacheMgr().cachePut(modelName, newModel2(2, "del2"));
+        jsoda1.dao(Model2.class).batchDelete(1L, 2L);
+        assertThat( peerSizes, is(Arrays.asList(4, 4)) );
+        assertThat( jsoda2.getMemCacheable().size(), is(0) );
+
+        jsoda1.shutdown();
+        jsoda2.shutdown();
+    }
+
+    private static Model2 newModel2(long id, String name) {
+        Model2  obj = new Model2();
+        obj.id = id;
+        obj.name = name;
+        return obj;
+    }
+
+    public void test_update_invalidation() throws Exception {
+        System.out.println("test_update_invalidation");
+
+        FakeInvalidatorHub  hub = new FakeInvalidatorHub();
+        Jsoda               jsoda1 = new Jsoda(new BasicAWSCredentials(key, secret), new MemCacheableSimple(1000))
+            .setDbEndpoint(DbType.DynamoDB, awsUrl);
+        Jsoda               jsoda2 = new Jsoda(new BasicAWSCredentials(key, secret), new MemCacheableSimple(1000));
+        jsoda1.registerModel(NotFoundCacheModel2.class, DbType.DynamoDB);
+        jsoda2.registerModel(NotFoundCacheModel2.class, DbType.DynamoDB);
+        jsoda1.setCacheInvalidator(hub.newInvalidator());
+        jsoda2.setCacheInvalidator(hub.newInvalidator());
+        StubDynamoDBClient  client = stubDynamoDB(jsoda1);
+        ObjCacheMgr         cacheMgr1 = jsoda1.getObjCacheMgr();
+        ObjCacheMgr         cacheMgr2 = jsoda2.getObjCacheMgr();
+        String              modelName = jsoda1.getModelName(NotFoundCacheModel2.class);
+
+        // The object changed in place in the reference cache, with the new value cached as not found at both.
+        NotFoundCacheModel2 obj = new NotFoundCacheModel2();
+        obj.id = 1;
+        obj.name = "upd1";
+        cacheMgr1.cachePut(modelName, obj);
+        cacheMgr2.cachePut(modelName, obj);
+        cacheMgr1.cachePutNotFoundByField(modelName, "name", "upd2", cacheMgr1.getGeneration(modelName));
+        cacheMgr2.cachePutNotFoundByField(modelName, "name", "upd2", cacheMgr2.getGeneration(modelName));
+        obj.name = "upd2";
+        jsoda1.dao(NotFoundCacheModel2.class).update(obj, "name");
+        assertThat( client.updateItemCount, is(1) );
+
+        // Neither the old value nor the not-found marker of the new value is left behind.
+        assertThat( cacheMgr1.cacheGetByField(modelName, "name", "upd1"), nullValue() );
+        assertThat( cacheMgr1.cacheGetByField(modelName, "name", "upd2"), nullValue() );
+        assertThat( cacheMgr2.cacheGetByField(modelName, "name", "upd2"), nullValue() );
+        assertThat( jsoda1.getMemCacheable().size(), is(0) );
+
+        jsoda1.shutdown();
+        jsoda2.shutdown();
+    }
+
+    public void test_session_find_by() throws Exception {
+        System.out.println("test_session_find_by");
+
+        JsodaSession    session = jsodaSdb.openSession();
+        try {
+            // The session's object is found by its field without going to the cache or the db.
+            Model2  obj = new Model2();
+            obj.id = 1;
+            obj.name = "session2";
+            jsodaSdb.dao(Model2.class).put(obj);
+            assertThat( jsodaSdb.dao(Model2.class).findBy("name", "session2") == obj, is(true) );
+            assertThat( session.getHits(), is(1) );
+        } finally {
+            session.close();
+        }
+    }
+
+    public void xx_test_session() throws Exception {
+        System.out.println("test_session");
+
+        Dao<Model1>     dao = jsodaSdb.dao(Model1.class);
+        dao.put(new Model1("session1", 1));
+
+        JsodaSession    session = jsodaSdb.openSession();
+        try {
+            // Repeated gets return the same instance.
+            Model1  obj1 = dao.get("session1");
+            Model1  obj2 = dao.get("session1");
+            assertThat( obj1 == obj2, is(true) );
+            assertThat( session.getHits(), is(1) );
+
+            // Puts are deferred and collapsed by key.
+            obj1.age = 2;
+            dao.put(obj1);
+            obj1.age = 3;
+            dao.put(obj1);
+            dao.put(new Model1("session2", 1));
+            assertThat( session.getPendingCount(), is(2) );
+            assertThat( dao.get("session2").age, is(1) );
+
+            session.commit();
+            assertThat( session.getPendingCount(), is(0) );
+        } finally {
+            session.close();
+        }
+        assertThat( jsodaSdb.currentSession(), nullValue() );
+        assertThat( dao.get("session1").age, is(3) );
+        assertThat( dao.get("session2").age, is(1) );
+        dao.delete("session2");
+    }
+
+    public void xx_test_update() throws Exception {
+        System.out.println("test_update");
+
+        for (Jsoda jsoda1 : new Jsoda[] { jsodaSdb, jsodaDyn }) {
+            Dao<Model2> dao = jsoda1.dao(Model2.class);
+            Model2      dataObj2 = new Model2(40, "item40", 40, 4.0);
+            dao.put(dataObj2);
+            Date        mdate = dataObj2.mdate;
+            Thread.sleep(10);
+
+            // Only the named field and the fields changed by the storing steps are updated.
+            dataObj2.count = 41;
+            dataObj2.price = 9.9;
+            dao.update(dataObj2, "count");
+            assertThat( dataObj2.mdate.after(mdate), is(true) );
+
+            jsoda1.getMemCacheable().clearAll();
+            Model2      loaded = dao.get(40L);
+            assertThat( loaded.count, is(41) );
+            assertThat( loaded.price, is(4.0) );
+            assertThat( loaded.mdate, is(dataObj2.mdate) );
+
+            try {
+                dao.update(dataObj2, "id");
+                assertThat("Should not return", true, is(false));
+            } catch(JsodaException expected) {
+                System.out.println("Expected: " + expected);
+            }
+            dao.delete(40L);
+        }
+    }
+
+    public void xx_test_increment() throws Exception {
+        System.out.println("test_increment");
+
+        jsodaSdb.registerModel(CounterModel1.class, DbType.SimpleDB);
+        jsodaDyn.registerModel(CounterModel1.class, DbType.DynamoDB);
+
+        for (Jsoda jsoda1 : new Jsoda[] { jsodaSdb, jsodaDyn }) {
+            final Dao<CounterModel1>    dao = jsoda1.dao(CounterModel1.class);
+            dao.delete("page1");
+
+            // Counter starts at 0 on a new object.
+            assertThat( dao.increment("page1", "views", 1), is(1L) );
+            assertThat( dao.increment("page1", "views", 5), is(6L) );
+            assertThat( dao.increment("page1", "quota", -2), is(-2L) );
+            assertThat( dao.get("page1").views, is(6L) );
+
+            // Concurrent increments are not lost.
+            ExecutorService     pool = Executors.newFixedThreadPool(4);
+            List<Future<Long>>  futures = new ArrayList<Future<Long>>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(pool.submit(new Callable<Long>() {
+                    public Long call() throws Exception {
+                        return dao.increment("page1", "views", 1);
+                    }
+                }));
+            }
+            for (Future<Long> f : futures)
+                f.get();
+            pool.shutdown();
+            assertThat( dao.get("page1").views, is(14L) );
+
+            ShardedCounter<CounterModel1>   counter = dao.shardedCounter("views", 4);
+            for (int i = 0; i < 10; i++)
+                counter.increment("page2", 1);
+            assertThat( counter.get("page2"), is(10L) );
+
+            try {
+                dao.increment("page1", "name", 1);
+                assertThat("Should not return", true, is(false));
+            } catch(ValidationException expected) {
+                System.out.println("Expected: " + expected);
+            }
+
+            dao.delete("page1");
+            for (int i = 0; i < counter.getShards(); i++)
+                dao.delete(ShardedCounter.shardId("page2", i));
+        }
+    }
+
+    public void test_modify_cache() throws Exception {
+        System.out.println("test_modify_cache");
+
+        Jsoda       jsoda1 = new Jsoda(new BasicAWSCredentials(key, secret), new MemCacheableSimple(100))
+            .setDbEndpoint(DbType.DynamoDB, awsUrl);
+        jsoda1.registerModel(Model5.class, DbType.DynamoDB);
+        StubDynamoDBClient          client = stubDynamoDB(jsoda1);
+        Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+        item.put("name", new AttributeValue().withS("5m"));
+        item.put("age", new AttributeValue().withN("5"));
+        item.put("myVersion", new AttributeValue().withN("1"));
+        client.items.put("5m", item);
+        String      modelName = jsoda1.getModelName(Model5.class);
+        Dao<Model5> dao = jsoda1.dao(Model5.class);
+
+        // An aborted modify leaves nothing of its mutated object in the cache.
+        try {
+            dao.modify("5m", new Dao.Mutator<Model5>() {
+                public Model5 mutate(Model5 obj) {
+                    obj.age = 99;
+                    throw new IllegalStateException("abort");
+                }
+            });
+            fail("Mutator exception should propagate");
+        } catch(JsodaException expected) {
+        }
+        assertThat( jsoda1.getObjCacheMgr().cacheGet(modelName, "5m", null), nullValue() );
+
+        // The written object is cached.
+        dao.modify("5m", new Dao.Mutator<Model5>() {
+            public Model5 mutate(Model5 obj) {
+                obj.age++;
+                return obj;
+            }
+        });
+        assertThat( client.putItemCount, is(1) );
+        assertThat( ((Model5)jsoda1.getObjCacheMgr().cacheGet(modelName, "5m", null)).age, is(6) );
+    }
+
+    public void xx_test_modify() throws Exception {
+        System.out.println("test_modify");
+
+        for (Jsoda jsoda1 : new Jsoda[] { jsodaSdb, jsodaDyn }) {
+            final Dao<Model5>   dao = jsoda1.dao(Model5.class);
+            dao.delete("5m");
+
+            // Create the object if not existed.
+            Model5  obj = dao.modify("5m", new Dao.Mutator<Model5>() {
+                public Model5 mutate(Model5 obj) {
+                    return obj != null ? obj : new Model5("5m");
+                }
+            });
+            assertThat( obj.myVersion, is(1) );
+
+            // Concurrent modifies are retried on conflict.  No update is lost.
+            ExecutorService     pool = Executors.newFixedThreadPool(4);
+            List<Future<Model5>>    futures = new ArrayList<Future<Model5>>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(pool.submit(new Callable<Model5>() {
+                    public Model5 call() throws Exception {
+                        return dao.modify("5m", new Dao.Mutator<Model5>() {
+                            public Model5 mutate(Model5 obj) {
+                                obj.age++;
+                                return obj;
+                            }
+                        });
+                    }
+                }));
+            }
+            for (Future<Model5> f : futures)
+                f.get();
+            pool.shutdown();
+
+            jsoda1.getMemCacheable().clearAll();
+            assertThat( dao.get("5m").age, is(8) );
+            assertThat( dao.get("5m").myVersion, is(9) );
+            System.out.println("conflicts: " + dao.getModifyConflicts() + " retries: " + dao.getModifyRetries() + " keys: " + dao.getConflictKeys());
+
+            // Returning null skips the put.
+            assertThat( dao.modify("5m", new Dao.Mutator<Model5>() {
+                public Model5 mutate(Model5 obj) {
+                    return null;
+                }
+            }), nullValue() );
+            dao.delete("5m");
+        }
+    }
+
+    public void test_index_maintenance() throws Exception {
+        System.out.println("test_index_maintenance");
+
+        FakeInvalidatorHub      hub = new FakeInvalidatorHub();
+        Jsoda                   jsoda1 = new Jsoda(new BasicAWSCredentials(key, secret), new MemCacheableSimple(1000))
+            .setDbEndpoint(DbType.DynamoDB, awsUrl);
+        Jsoda                   jsoda2 = new Jsoda(new BasicAWSCredentials(key, secret), new MemCacheableSimple(1000));
+        jsoda1.registerModel(IndexedModel1.class, DbType.DynamoDB);
+        jsoda2.registerModel(IndexedModel1.class, DbType.DynamoDB);
+        jsoda1.setCacheInvalidator(hub.newInvalidator());
+        jsoda2.setCacheInvalidator(hub.newInvalidator());
+        TableStubDynamoDBClient client = stubDynamoDB(jsoda1, new TableStubDynamoDBClient());
+        String                  modelName = jsoda1.getModelName(IndexedModel1.class);
+        String                  colorIndex = jsoda1.getIndexTable(modelName, "color");
+        String                  sizeIndex = jsoda1.getIndexTable(modelName, "size");
+        client.keyAttrs(jsoda1.getModelTable(modelName), jsoda1.getModelAccessor(modelName).idField.attrName, null);
+        client.keyAttrs(colorIndex, DynamoDBService.INDEX_VALUE, DynamoDBService.INDEX_PK);
+        client.keyAttrs(sizeIndex, DynamoDBService.INDEX_VALUE, DynamoDBService.INDEX_PK);
+        Dao<IndexedModel1>      dao = jsoda1.dao(IndexedModel1.class);
+
+        // The puts add the index entries, and the queries on the indexed fields go to the index tables.
+        dao.put(new IndexedModel1("i1", "red", 10));
+        dao.put(new IndexedModel1("i2", "red", 20));
+        dao.batchPut(new IndexedModel1("i3", "blue", 30), new IndexedModel1("i4", "reddish", 40));
+        assertThat( client.table(colorIndex).size(), is(4) );
+        assertThat( client.table(sizeIndex).size(), is(4) );
+        assertThat( jsoda1.query(IndexedModel1.class).eq("color", "red").count(), is(2L) );
+        assertThat( indexedNames(jsoda1.query(IndexedModel1.class).eq("color", "red").run()), is(Arrays.asList("i1", "i2")) );
+        assertThat( indexedNames(jsoda1.query(IndexedModel1.class).begins_with("color", "red").run()), is(Arrays.asList("i1", "i2", "i4")) );
+        assertThat( indexedNames(jsoda1.query(IndexedModel1.class).between("size", 15, 35).run()), is(Arrays.asList("i2", "i3")) );
+
+        // The entries move with the field value on put, update, and increment.
+        dao.put(new IndexedModel1("i1", "blue", 10));
+        assertThat( indexedNames(jsoda1.query(IndexedModel1.class).eq("color", "red").run()), is(Arrays.asList("i2")) );
+        assertThat( indexedNames(jsoda1.query(IndexedModel1.class).eq("color", "blue").run()), is(Arrays.asList("i1", "i3")) );
+        IndexedModel1   obj = dao.get("i2");
+        obj.color = "green";
+        dao.update(obj, "color");
+        assertThat( indexedNames(jsoda1.query(IndexedModel1.class).eq("color", "green").run()), is(Arrays.asList("i2")) );
+        assertThat( dao.increment("i3", "size", 100), is(130L) );
+        assertThat( indexedNames(jsoda1.query(IndexedModel1.class).eq("size", 130).run()), is(Arrays.asList("i3")) );
+        assertThat( client.table(colorIndex).size(), is(4) );
+        assertThat( client.table(sizeIndex).size(), is(4) );
+
+        // The deletes remove the entries.
+        dao.delete("i1");
+        dao.batchDelete("i2", "i3", "i4");
+        assertThat( client.table(colorIndex).size(), is(0) );
+        assertThat( client.table(sizeIndex).size(), is(0) );
+
+        // The stale entries of the changed and the deleted items are filtered out of the results.
+        dao.put(new IndexedModel1("i5", "reddish", 50));
+        client.table(colorIndex).put("stale1", indexEntry("red", "i5"));
+        client.table(colorIndex).put("stale2", indexEntry("red", "i6"));
+        assertThat( jsoda1.query(IndexedModel1.class).eq("color", "red").run().size(), is(0) );
+
+        // A failed index update is reported after the object is written, cached, and invalidated at the peers.
+        jsoda2.getObjCacheMgr().cachePut(modelName, new IndexedModel1("i5", "reddish", 50));
+        client.failTables.add(colorIndex);
+        try {
+            dao.put(new IndexedModel1("i5", "pink", 50));
+            fail("Should not return");
+        } catch(IndexUpdateException expected) {
+            System.out.println("Expected: " + expected);
+        }
+        assertThat( ((IndexedModel1)jsoda1.getObjCacheMgr().cacheGet(modelName, "i5", null)).color, is("pink") );
+        assertThat( jsoda2.getMemCacheable().size(), is(0) );
+
+        jsoda1.shutdown();
+        jsoda2.shutdown();
+    }
+
+    private static List<String> indexedNames(List<IndexedModel1> objs) {
+        List<String>    names = new ArrayList<String>();
+        for (IndexedModel1 obj : objs)
+            names.add(obj.name);
+        Collections.sort(names);
+        return names;
+    }
+
+    private static Map<String, AttributeValue> indexEntry(String value, String id) {
+        Map<String, AttributeValue> entry = new HashMap<String, AttributeValue>();
+        entry.put(DynamoDBService.INDEX_VALUE, new AttributeValue().withS(value));
+        entry.put(DynamoDBService.INDEX_PK, new AttributeValue().withS(id));
+        entry.put(DynamoDBService.INDEX_ID, new AttributeValue().withS(id));
+        return entry;
+    }
+
+    public void xx_test_indexed() throws Exception {
+        System.out.println("test_indexed");
+
+        jsodaDyn.registerModel(IndexedModel1.class);
+        jsodaDyn.createModelTable(IndexedModel1.class);
+        Dao<IndexedModel1>  dao = jsodaDyn.dao(IndexedModel1.class);
+
+        dao.put(new IndexedModel1("i1", "red", 10));
+        dao.put(new IndexedModel1("i2", "red", 20));
+        dao.batchPut(new IndexedModel1("i3", "blue", 30), new IndexedModel1("i4", "reddish", 40));
+
+        assertThat( jsodaDyn.query(IndexedModel1.class).eq("color", "red").count(), is(2L) );
+        assertThat( jsodaDyn.query(IndexedModel1.class).eq("color", "red").run().size(), is(2) );
+        assertThat( jsodaDyn.query(IndexedModel1.class).begins_with("color", "red").run().size(), is(3) );
+        assertThat( jsodaDyn.query(IndexedModel1.class).between("size", 15, 35).run().size(), is(2) );
+
+        // The index entries move with the field value.
+        dao.put(new IndexedModel1("i1", "blue", 10));
+        assertThat( jsodaDyn.query(IndexedModel1.class).eq("color", "red").run().size(), is(1) );
+        assertThat( jsodaDyn.query(IndexedModel1.class).eq("color", "blue").run().size(), is(2) );
+        IndexedModel1   obj = dao.get("i2");
+        obj.color = "green";
+        dao.update(obj, "color");
+        assertThat( jsodaDyn.query(IndexedModel1.class).eq("color", "green").run().get(0).name, is("i2") );
+        dao.increment("i3", "size", 100);
+        assertThat( jsodaDyn.query(IndexedModel1.class).eq("size", 130).run().get(0).name, is("i3") );
+
+        dao.delete("i1");
+        dao.batchDelete("i2", "i3", "i4");
+        assertThat( jsodaDyn.query(IndexedModel1.class).eq("color", "blue").run().size(), is(0) );
+
+        try {
+            jsodaDyn.registerModel(InvalidIndexedModel1.class);
+            assertThat("Should not return", true, is(false));
+        } catch(JsodaException expected) {
+            System.out.println("Expected: " + expected);
+        }
+
+        jsodaDyn.deleteModelTable(IndexedModel1.class);
+    }
+
+    public void test_explain() throws Exception {
+        System.out.println("test_explain");
+
+        StubDynamoDBClient          client = stubDynamoDB(jsodaDyn);
+        Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+        item.put("name", new AttributeValue().withS("explain1"));
+        item.put("age", new AttributeValue().withN("30"));
+        client.items.put("explain1", item);
+        client.tableItemCount = 1000;
+
+        assertThat( jsodaDyn.query(Model1.class).eq("name", "abc").explain().getType(), is(QueryPlan.KEY_LOOKUP) );
+        assertThat( jsodaDyn.query(Model1.class).gt("age", 10).explain().getType(), is(QueryPlan.SCAN) );
+        assertThat( jsodaDyn.query(Model3.class).eq("id", 2).explain().getType(), is(QueryPlan.RANGE_QUERY) );
+        assertThat( jsodaDyn.query(Model3.class).eq("id", 2).gt("name", "item1").explain().getType(), is(QueryPlan.RANGE_QUERY) );
+        assertThat( jsodaDyn.query(Model3.class).eq("id", 2).eq("name", "item2").explain().getType(), is(QueryPlan.KEY_LOOKUP) );
+        assertThat( jsodaSdb.getQueryPlanner().classify(jsodaSdb.query(Model1.class).eq("name", "abc")).getType(), is(QueryPlan.KEY_LOOKUP) );
+        assertThat( jsodaSdb.getQueryPlanner().classify(jsodaSdb.query(Model1.class).gt("age", 10)).getType(), is(QueryPlan.INDEX_QUERY) );
+        assertThat( jsodaSdb.getQueryPlanner().classify(jsodaSdb.query(Model1.class).ne("age", 10)).getType(), is(QueryPlan.SCAN) );
+        assertThat( jsodaDyn.query(Model1.class).gt("age", 10).explain().getEstimatedItems(), is(1000L) );
+        assertThat( jsodaDyn.query(Model1.class).gt("age", 10).limit(20).explain().getEstimatedItems(), is(20L) );
+        System.out.println(jsodaDyn.query(Model1.class).gt("age", 10).explain());
+
+        // Key lookup is run as a get.
+        List<Model1>    items = jsodaDyn.query(Model1.class).eq("name", "explain1").consistentRead(true).run();
+        assertThat( items.size(), is(1) );
+        assertThat( items.get(0).age, is(30) );
+        assertThat( jsodaDyn.query(Model1.class).eq("name", "explain1").consistentRead(true).count(), is(1L) );
+        assertThat( jsodaDyn.query(Model1.class).eq("name", "explain2").run().size(), is(0) );
+
+        // Scan above the limit is refused, in run(), count(), and parallelScan().  Key lookup is not limited.
+        jsodaDyn.setMaxScanItems(100);
+        assertThat( jsodaDyn.query(Model1.class).eq("name", "explain1").run().size(), is(1) );
+        try {
+            jsodaDyn.query(Model1.class).gt("age", 10).run();
+            fail("Scan above maxScanItems should be refused");
+        } catch(JsodaException expected) {
+        }
+        try {
+            jsodaDyn.query(Model1.class).gt("age", 10).limit(20).count();
+            fail("Count of a scan above maxScanItems should be refused");
+        } catch(JsodaException expected) {
+        }
+        try {
+            jsodaDyn.query(Model1.class).gt("age", 10).parallelScan(2);
+            fail("Parallel scan above maxScanItems should be refused");
+        } catch(JsodaException expected) {
+        }
+
+        // The limit caps the scan of a run() page.
+        assertThat( jsodaDyn.query(Model1.class).gt("age", 10).limit(20).run().size(), is(0) );
+        assertThat( client.scanCount, is(1) );
+
+        // Without the table statistics, only a scan with a limit within maxScanItems runs.
+        client.tableItemCount = -1;
+        jsodaDyn.getQueryPlanner().clearStats();
+        try {
+            jsodaDyn.query(Model1.class).gt("age", 10).run();
+            fail("Scan of unknown size should be refused");
+        } catch(JsodaException expected) {
+        }
+        assertThat( jsodaDyn.query(Model1.class).gt("age", 10).limit(20).run().size(), is(0) );
+        assertThat( client.scanCount, is(2) );
+        jsodaDyn.setMaxScanItems(0);
+
+        // Key conditions mixed with a non-key condition are still a query, which rejects the non-key condition.
+        assertThat( jsodaDyn.query(Model3.class).eq("id", 31).eq("name", "item31").eq("age", 310).explain().getType(), is(QueryPlan.RANGE_QUERY) );
+        try {
+            jsodaDyn.query(Model3.class).eq("id", 31).eq("name", "item31").eq("age", 310).run();
+            fail("Non-key condition in a DynamoDB query should be rejected");
+        } catch(JsodaException expected) {
+        }
+        assertThat( client.scanCount, is(2) );
+    }
+
     public void xx_test_cache2() throws Exception {
         System.out.println("test_cache2");
 
@@ -877,6 +1939,584 @@ public class JsodaTest extends TestCase
         }
     }
 
+    public void test_query_iterator_prefetch() throws Exception {
+        System.out.println("test_query_iterator_prefetch");
+
+        // Iterate all the pages of a stub query.
+        int     count = 0;
+        for (Iterator<Model1> it = new QueryIterator<Model1>(new StubQuery(jsodaSdb, 3), 1, Executors.newCachedThreadPool()); it.hasNext(); it.next())
+            count++;
+        assertThat( count, is(3) );
+
+        // The prefetch of an abandoned iterator stops and frees its thread.
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        QueryIterator<Model1>   it = new QueryIterator<Model1>(new StubQuery(jsodaSdb, -1), 1, executor);
+        assertThat( it.hasNext(), is(true) );
+        it = null;
+        Future<Boolean> queued = executor.submit(new Callable<Boolean>() {
+            public Boolean call() { return true; }
+        });
+        for (int i = 0; i < 30 && !queued.isDone(); i++) {
+            System.gc();
+            Thread.sleep(500);
+        }
+        assertThat( queued.isDone(), is(true) );
+
+        // The prefetch of a closed iterator stops right away.
+        it = new QueryIterator<Model1>(new StubQuery(jsodaSdb, -1), 1, executor);
+        assertThat( it.hasNext(), is(true) );
+        it.close();
+        assertThat( executor.submit(new Callable<Boolean>() {
+            public Boolean call() { return true; }
+        }).get(5, TimeUnit.SECONDS), is(true) );
+        executor.shutdown();
+    }
+
+    /** Query returning a page of one item on each run, for pages times or forever if negative, without the database. */
+    private static class StubQuery extends Query<Model1> {
+        private int pages;
+
+        StubQuery(Jsoda jsoda, int pages) {
+            super(Model1.class, jsoda);
+            this.pages = pages;
+        }
+
+        public boolean hasNext() {
+            return pages != 0;
+        }
+
+        public List<Model1> run() {
+            pages--;
+            return Arrays.asList(new Model1("stub", pages));
+        }
+    }
+
+    public void test_batch_put_chunks() throws Exception {
+        System.out.println("test_batch_put_chunks");
+
+        StubDynamoDBClient  client = stubDynamoDB(jsodaDyn);
+        List<Model1>        objs = new ArrayList<Model1>();
+        for (int i = 0; i < 60; i++)
+            objs.add(new Model1("chunk" + i, i));
+        jsodaDyn.dao(Model1.class).batchPut(objs);
+
+        // 3 BatchWriteItem chunks of at most 25 items, plus a retry of the one unprocessed item.
+        assertThat( client.batchSizes, is(Arrays.asList(25, 1, 25, 10)) );
+        assertThat( client.putCount, is(60) );
+    }
+
+    public void test_batch_delete_cache() throws Exception {
+        System.out.println("test_batch_delete_cache");
+
+        StubDynamoDBClient  client = stubDynamoDB(jsodaDyn);
+        Dao<Model1>         dao = jsodaDyn.dao(Model1.class);
+        for (int i = 0; i < 30; i++)
+            jsodaDyn.getObjCacheMgr().cachePut(jsodaDyn.getModelName(Model1.class), new Model1("del" + i, i));
+        assertThat( dao.get("del0").age, is(0) );          // served from cache
+
+        List<String>    ids = new ArrayList<String>();
+        for (int i = 0; i < 30; i++)
+            ids.add("del" + i);
+        dao.batchDelete(ids);
+
+        assertThat( client.batchSizes, is(Arrays.asList(25, 1, 5)) );
+        assertThat( client.deleteCount, is(30) );
+        assertThat( dao.get("del0"), nullValue() );       // evicted, and not found by the stub
+        assertThat( dao.get("del29"), nullValue() );
+    }
+
+    public void test_annotation_plans() throws Exception {
+        System.out.println("test_annotation_plans");
+
+        Model6  model6 = new Model6();
+        model6.guidUpper = "abc";
+        jsodaSdb.preStoreSteps(model6);
+        assertThat( model6.guidUpper, is("ABC") );
+
+        // A handler registered after the plans are compiled takes effect.
+        jsodaSdb.registerPreStore1Handler(ToUpper.class, new AnnotationFieldHandler() {
+            public void checkModel(java.lang.annotation.Annotation fieldAnnotation, Field field, Map<String, Field> allFieldMap) {}
+            public void handle(java.lang.annotation.Annotation fieldAnnotation, Object object, Field field, Map<String, Field> allFieldMap) throws Exception {
+                field.set(object, "replaced");
+            }
+        });
+        model6 = new Model6();
+        model6.guidUpper = "abc";
+        jsodaSdb.preStoreSteps(model6);
+        assertThat( model6.guidUpper, is("replaced") );
+
+        // Re-registration recompiles the plans for the new field map.
+        jsodaSdb.registerModel(Model6.class, DbType.SimpleDB);
+        model6 = new Model6();
+        model6.guidUpper = "abc";
+        jsodaSdb.preStoreSteps(model6);
+        assertThat( model6.guidUpper, is("replaced") );
+    }
+
+    /** Replace the DynamoDB client of the Jsoda object with a stub. */
+    private StubDynamoDBClient stubDynamoDB(Jsoda jsoda1) throws Exception {
+        return stubDynamoDB(jsoda1, new StubDynamoDBClient());
+    }
+
+    private <C extends AmazonDynamoDBClient> C stubDynamoDB(Jsoda jsoda1, C client) throws Exception {
+        Field   mgrField = Jsoda.class.getDeclaredField("ddbMgr");
+        mgrField.setAccessible(true);
+        Field   clientField = DynamoDBService.class.getDeclaredField("ddbClient");
+        clientField.setAccessible(true);
+        clientField.set(mgrField.get(jsoda1), client);
+        return client;
+    }
+
+    /** DynamoDB client recording the batch writes, without the service.  The first batch leaves its last item unprocessed.
+     * The gets are served from the items map, keyed by the hash key, and the deletes remove from it.  The scans return nothing.
+     */
+    private static class StubDynamoDBClient extends AmazonDynamoDBClient {
+        List<Integer>   batchSizes = new ArrayList<Integer>();
+        int             putCount = 0;
+        int             deleteCount = 0;
+        int             getCount = 0;
+        int             putItemCount = 0;
+        int             scanCount = 0;
+        int             updateItemCount = 0;
+        long            tableItemCount = -1;        // -1 for the table statistics not available
+        Map<String, Map<String, AttributeValue>>    items = new HashMap<String, Map<String, AttributeValue>>();
+        Runnable        onWrite;                    // Called on each delete and batch write reaching the stub
+
+        StubDynamoDBClient() {
+            super(new BasicAWSCredentials("stub", "stub"));
+        }
+
+        public BatchWriteItemResult batchWriteItem(BatchWriteItemRequest req) {
+            String              table = req.getRequestItems().keySet().iterator().next();
+            List<WriteRequest>  writes = req.getRequestItems().get(table);
+            BatchWriteItemResult    result = new BatchWriteItemResult();
+            if (onWrite != null)
+                onWrite.run();
+            batchSizes.add(writes.size());
+            if (batchSizes.size() == 1) {
+                result.setUnprocessedItems(Collections.singletonMap(table, Collections.singletonList(writes.get(writes.size() - 1))));
+                writes = writes.subList(0, writes.size() - 1);
+            }
+            for (WriteRequest write : writes) {
+                if (write.getPutRequest() != null)
+                    putCount++;
+                else
+                    deleteCount++;
+            }
+            return result;
+        }
+
+        public GetItemResult getItem(GetItemRequest req) {
+            getCount++;
+            return new GetItemResult().withItem(items.get(req.getKey().getHashKeyElement().getS()));
+        }
+
+        public PutItemResult putItem(PutItemRequest req) {
+            putItemCount++;
+            return new PutItemResult();
+        }
+
+        public UpdateItemResult updateItem(UpdateItemRequest req) {
+            updateItemCount++;
+            return new UpdateItemResult();
+        }
+
+        public DeleteItemResult deleteItem(DeleteItemRequest req) {
+            if (onWrite != null)
+                onWrite.run();
+            deleteCount++;
+            items.remove(req.getKey().getHashKeyElement().getS());
+            return new DeleteItemResult();
+        }
+
+        public ScanResult scan(ScanRequest req) {
+            scanCount++;
+            return new ScanResult().withItems(new ArrayList<Map<String, AttributeValue>>());
+        }
+
+        public DescribeTableResult describeTable(DescribeTableRequest req) {
+            if (tableItemCount < 0)
+                throw new AmazonClientException("Stub has no table statistics.");
+            return new DescribeTableResult().withTable(new TableDescription().withItemCount(tableItemCount).withTableSizeBytes(tableItemCount * 100));
+        }
+    }
+
+    /** DynamoDB client keeping the items of the tables in memory, without the service.  The key attributes of
+     * each table are set with keyAttrs().  A query matches the hash key only and a scan returns all the items,
+     * ignoring the filters.  The batch writes to the tables in failTables throw.
+     */
+    private static class TableStubDynamoDBClient extends AmazonDynamoDBClient {
+        Map<String, String[]>   keyAttrs = new HashMap<String, String[]>();
+        Map<String, Map<String, Map<String, AttributeValue>>>  tables = new HashMap<String, Map<String, Map<String, AttributeValue>>>();
+        Set<String>             failTables = new HashSet<String>();
+
+        TableStubDynamoDBClient() {
+            super(new BasicAWSCredentials("stub", "stub"));
+        }
+
+        void keyAttrs(String table, String hashAttr, String rangeAttr) {
+            keyAttrs.put(table, new String[] {hashAttr, rangeAttr});
+        }
+
+        Map<String, Map<String, AttributeValue>> table(String table) {
+            Map<String, Map<String, AttributeValue>>    items = tables.get(table);
+            if (items == null) {
+                items = new LinkedHashMap<String, Map<String, AttributeValue>>();
+                tables.put(table, items);
+            }
+            return items;
+        }
+
+        private static String keyStr(com.amazonaws.services.dynamodb.model.Key key) {
+            return key.getHashKeyElement() + "|" + key.getRangeKeyElement();
+        }
+
+        private String itemKeyStr(String table, Map<String, AttributeValue> item) {
+            String[]    attrs = keyAttrs.get(table);
+            return item.get(attrs[0]) + "|" + (attrs[1] == null ? null : item.get(attrs[1]));
+        }
+
+        public PutItemResult putItem(PutItemRequest req) {
+            Map<String, AttributeValue> item = new HashMap<String, AttributeValue>(req.getItem());
+            return new PutItemResult().withAttributes(table(req.getTableName()).put(itemKeyStr(req.getTableName(), item), item));
+        }
+
+        public UpdateItemResult updateItem(UpdateItemRequest req) {
+            String                      keyStr = keyStr(req.getKey());
+            String[]                    attrs = keyAttrs.get(req.getTableName());
+            Map<String, AttributeValue> oldItem = table(req.getTableName()).get(keyStr);
+            Map<String, AttributeValue> newItem = (oldItem == null ? new HashMap<String, AttributeValue>() : new HashMap<String, AttributeValue>(oldItem));
+            newItem.put(attrs[0], req.getKey().getHashKeyElement());
+            if (attrs[1] != null)
+                newItem.put(attrs[1], req.getKey().getRangeKeyElement());
+            for (Map.Entry<String, AttributeValueUpdate> entry : req.getAttributeUpdates().entrySet()) {
+                AttributeValueUpdate    update = entry.getValue();
+                AttributeValue          oldValue = newItem.get(entry.getKey());
+                if (AttributeAction.DELETE.toString().equals(update.getAction()))
+                    newItem.remove(entry.getKey());
+                else if (AttributeAction.ADD.toString().equals(update.getAction()))
+                    newItem.put(entry.getKey(), new AttributeValue().withN(Long.toString(
+                        (oldValue == null ? 0 : Long.parseLong(oldValue.getN())) + Long.parseLong(update.getValue().getN()))));
+                else
+                    newItem.put(entry.getKey(), update.getValue());
+            }
+            table(req.getTableName()).put(keyStr, newItem);
+            return new UpdateItemResult().withAttributes(ReturnValue.UPDATED_NEW.toString().equals(req.getReturnValues()) ? newItem : oldItem);
+        }
+
+        public DeleteItemResult deleteItem(DeleteItemRequest req) {
+            return new DeleteItemResult().withAttributes(table(req.getTableName()).remove(keyStr(req.getKey())));
+        }
+
+        public GetItemResult getItem(GetItemRequest req) {
+            return new GetItemResult().withItem(table(req.getTableName()).get(keyStr(req.getKey())));
+        }
+
+        public BatchWriteItemResult batchWriteItem(BatchWriteItemRequest req) {
+            for (Map.Entry<String, List<WriteRequest>> entry : req.getRequestItems().entrySet()) {
+                String  table = entry.getKey();
+                if (failTables.contains(table))
+                    throw new AmazonServiceException("Stub fails the writes to " + table + ".");
+                for (WriteRequest write : entry.getValue()) {
+                    if (write.getPutRequest() != null)
+                        table(table).put(itemKeyStr(table, write.getPutRequest().getItem()), new HashMap<String, AttributeValue>(write.getPutRequest().getItem()));
+                    else
+                        table(table).remove(keyStr(write.getDeleteRequest().getKey()));
+                }
+            }
+            return new BatchWriteItemResult();
+        }
+
+        public BatchGetItemResult batchGetItem(BatchGetItemRequest req) {
+            Map<String, BatchResponse>  responses = new HashMap<String, BatchResponse>();
+            for (Map.Entry<String, KeysAndAttributes> entry : req.getRequestItems().entrySet()) {
+                List<Map<String, AttributeValue>>   items = new ArrayList<Map<String, AttributeValue>>();
+                for (com.amazonaws.services.dynamodb.model.Key key : entry.getValue().getKeys()) {
+                    Map<String, AttributeValue> item = table(entry.getKey()).get(keyStr(key));
+                    if (item != null)
+                        items.add(item);
+                }
+                responses.put(entry.getKey(), new BatchResponse().withItems(items));
+            }
+            return new BatchGetItemResult().withResponses(responses);
+        }
+
+        public QueryResult query(QueryRequest req) {
+            String                              hashAttr = keyAttrs.get(req.getTableName())[0];
+            List<Map<String, AttributeValue>>   items = new ArrayList<Map<String, AttributeValue>>();
+            for (Map<String, AttributeValue> item : table(req.getTableName()).values()) {
+                if (req.getHashKeyValue().equals(item.get(hashAttr)))
+                    items.add(item);
+            }
+            return Boolean.TRUE.equals(req.getCount()) ? new QueryResult().withCount(items.size()) : new QueryResult().withItems(items);
+        }
+
+        public ScanResult scan(ScanRequest req) {
+            List<Map<String, AttributeValue>>   items = new ArrayList<Map<String, AttributeValue>>(table(req.getTableName()).values());
+            return Boolean.TRUE.equals(req.getCount()) ? new ScanResult().withCount(items.size()) : new ScanResult().withItems(items);
+        }
+
+        public DescribeTableResult describeTable(DescribeTableRequest req) {
+            throw new AmazonClientException("Stub has no table statistics.");
+        }
+    }
+
+    public void xx_test_select_iterator() throws Exception {
+        System.out.println("\n test_select_iterator");
+
+        // Run after test_put_loop to have multiple pages.
+        int     count = 0;
+        for (Model1 item : jsodaSdb.query(Model1.class))
+            count++;
+        System.out.println("---- SimpleDB iterated: " + count);
+        assertThat((long)count, is(jsodaSdb.query(Model1.class).count()));
+
+        count = 0;
+        for (Model1 item : jsodaDyn.query(Model1.class).limit(100))
+            count++;
+        System.out.println("---- DynamoDB iterated: " + count);
+
+        QueryIterator<Model1>   it = jsodaSdb.query(Model1.class).iterator(1);
+        assertThat(it.hasNext(), is(true));
+        dump(it.next());
+        it.close();
+        assertThat(it.hasNext(), is(false));
+    }
+
+    public void test_split_points() throws Exception {
+        System.out.println("test_split_points");
+
+        // Small table split on the quantiles.
+        List<String>    names = Arrays.asList("a", "b", "c", "d", "e", "f", "g", "h");
+        assertThat( SimpleDBService.computeSplitPoints(names, null, null, 4), is(Arrays.asList("c", "e", "g")) );
+        assertThat( SimpleDBService.computeSplitPoints(Arrays.asList("a"), null, null, 4).size(), is(0) );
+
+        // Zero-padded numbers and GUIDs are spread over all the segments, with the sample from the low end only.
+        List<String>    padded = new ArrayList<String>();
+        for (int i = 0; i < 100000; i++)
+            padded.add(String.format("%010d", i));
+        assertSplitBalanced(padded, 8);
+
+        List<String>    guids = new ArrayList<String>();
+        for (int i = 0; i < 100000; i++)
+            guids.add(UUID.randomUUID().toString());
+        assertSplitBalanced(guids, 8);
+    }
+
+    private void assertSplitBalanced(List<String> allNames, int segments) {
+        List<String>    sorted = new ArrayList<String>(allNames);
+        Collections.sort(sorted);
+        List<String>    splits = SimpleDBService.computeSplitPoints(sorted.subList(0, SimpleDBService.SAMPLE_ITEMS),
+                                                                    sorted.get(0), sorted.get(sorted.size() - 1), segments);
+        assertThat( splits.size(), is(segments - 1) );
+
+        int[]   counts = new int[segments];
+        for (String name : sorted) {
+            int segment = 0;
+            while (segment < splits.size() && name.compareTo(splits.get(segment)) >= 0)
+                segment++;
+            counts[segment]++;
+        }
+        for (int count : counts)
+            assertThat( "Segment counts " + Arrays.toString(counts), count < 2 * sorted.size() / segments, is(true) );
+    }
+
+    public void xx_test_parallelScan() throws Exception {
+        System.out.println("\n test_parallelScan");
+
+        // Run after test_put_loop to have enough items.
+        long            countSdb = jsodaSdb.query(Model1.class).count();
+        List<Model1>    itemsSdb = jsodaSdb.query(Model1.class).parallelScan(8);
+        System.out.println("---- SimpleDB count: " + countSdb + "  scanned: " + itemsSdb.size());
+        assertThat((long)itemsSdb.size(), is(countSdb));
+
+        List<Model1>    itemsDyn = jsodaDyn.query(Model1.class).parallelScan(4);
+        System.out.println("---- DynamoDB scanned: " + itemsDyn.size());
+
+        final int[]     batches = new int[1];
+        jsodaSdb.query(Model1.class).ge("age", 1000).parallelScan(4, new Query.ScanHandler<Model1>() {
+            public void handle(List<Model1> items) {
+                synchronized(batches) {
+                    batches[0]++;
+                }
+                for (Model1 item : items)
+                    assertThat(item.age >= 1000, is(true));
+            }
+        });
+        System.out.println("---- SimpleDB batches: " + batches[0]);
+    }
+
+    public void xx_test_accessor_perf() throws Exception {
+        System.out.println("\n test_accessor_perf");
+
+        // Compare reading the db fields through the field maps (the old marshalling path) vs the ModelAccessor table.
+        String          modelName = jsodaDyn.getModelName(Model3.class);
+        Model3          dataObj = new Model3(31, "item31", 310,
+                                             new HashSet<String>(Arrays.asList("sock1", "sock2")),
+                                             new HashSet<Long>(Arrays.asList(101L, 102L)));
+        ModelAccessor   accessor = jsodaDyn.getModelAccessor(modelName);
+        int             n = 1000000;
+        long            sum = 0;
+
+        for (int round = 0; round < 3; round++) {
+            long    start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                for (Map.Entry<String, String> fieldAttr : jsodaDyn.getFieldAttrMap(modelName).entrySet()) {
+                    Field   field = jsodaDyn.getField(modelName, fieldAttr.getKey());
+                    field.setAccessible(true);
+                    if (Set.class.isAssignableFrom(field.getType()))
+                        sum += ReflectUtil.getGenericParamType1(field.getGenericType()).hashCode() & 1;
+                    sum += field.get(dataObj) == null ? 0 : 1;
+                }
+            }
+            long    mapTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                for (ModelAccessor.FieldAccessor fa : accessor.dbFields) {
+                    if (fa.setParamType != null)
+                        sum += fa.setParamType.hashCode() & 1;
+                    sum += fa.get(dataObj) == null ? 0 : 1;
+                }
+            }
+            long    accessorTime = System.nanoTime() - start;
+
+            System.out.println("Field maps: " + (mapTime / 1000000) + "ms  ModelAccessor: " + (accessorTime / 1000000) + "ms");
+        }
+        System.out.println(sum);
+    }
+
+    public void test_attr_codec() throws Exception {
+        System.out.println("\n test_attr_codec");
+
+        // The encoding must stay the same as the existing data for sorting.
+        assertThat(DataUtil.encodeValueToAttrStr(123, int.class), is("0000000123"));
+        assertThat(DataUtil.encodeValueToAttrStr(-5, int.class), is("00000000-5"));
+        assertThat(DataUtil.encodeValueToAttrStr(123L, long.class), is("0000000000000000123"));
+        assertThat(DataUtil.encodeValueToAttrStr(7, byte.class), is("007"));
+        assertThat(DataUtil.encodeValueToAttrStr(7, short.class), is("00007"));
+        assertThat(DataUtil.encodeValueToAttrStr("42", Integer.class), is("0000000042"));
+        assertThat(DataUtil.encodeValueToAttrStr(1.5f, float.class), is("0000000000000001.5"));
+        assertThat(DataUtil.encodeValueToAttrStr(1.5, double.class), is("1.5"));
+
+        assertThat((Integer)DataUtil.decodeAttrStrToValue("0000000123", int.class), is(123));
+        assertThat((Long)DataUtil.decodeAttrStrToValue("0000000000000000123", Long.class), is(123L));
+        assertThat(DataUtil.decodeAttrStrToValue("", int.class), nullValue());
+        assertThat((String)DataUtil.decodeAttrStrToValue("", String.class), is(""));
+        assertThat(DataUtil.canBeEncoded(Arrays.asList(1, 2), List.class), is(false));
+    }
+
+    public void test_load_coalescer() throws Exception {
+        System.out.println("\n test_load_coalescer");
+
+        final LoadCoalescer     coalescer = new LoadCoalescer();
+        final AtomicInteger     loadCount = new AtomicInteger();
+        final CountDownLatch    started = new CountDownLatch(1);
+        final CountDownLatch    release = new CountDownLatch(1);
+        final Callable<String>  loader = new Callable<String>() {
+            public String call() throws Exception {
+                loadCount.incrementAndGet();
+                started.countDown();
+                release.await();
+                return "value1";
+            }
+        };
+
+        ExecutorService         executor = Executors.newFixedThreadPool(8);
+        List<Future<String>>    futures = new ArrayList<Future<String>>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(executor.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    return coalescer.load("key1", loader);
+                }
+            }));
+            if (i == 0)
+                started.await();
+        }
+        Thread.sleep(200);
+        release.countDown();
+        for (Future<String> f : futures)
+            assertThat(f.get(), is("value1"));
+        executor.shutdown();
+
+        assertThat(loadCount.get(), is(1));
+        assertThat(coalescer.inFlightCount(), is(0));
+    }
+
+    public void test_load_coalescer_recheck() throws Exception {
+        System.out.println("\n test_load_coalescer_recheck");
+
+        Jsoda       jsoda1 = new Jsoda(new BasicAWSCredentials(key, secret), new MemCacheableSimple(100));
+        jsoda1.registerModel(Model1.class, DbType.SimpleDB);
+        String      modelName = jsoda1.getModelName(Model1.class);
+        ObjCacheMgr cacheMgr = jsoda1.getObjCacheMgr();
+
+        // The re-check finds the object cached by the previous load, without counting in the cache stats.
+        cacheMgr.cachePut(modelName, new Model1("k1", 1));
+        Model1      obj = cacheMgr.loadByPk(modelName, "k1", null, new Callable<Model1>() {
+            public Model1 call() throws Exception {
+                throw new Exception("Should not load the cached object");
+            }
+        });
+        assertThat(obj.age, is(1));
+
+        obj = cacheMgr.loadByPk(modelName, "k2", null, new Callable<Model1>() {
+            public Model1 call() throws Exception {
+                return new Model1("k2", 2);
+            }
+        });
+        assertThat(obj.age, is(2));
+        assertThat(jsoda1.getMemCacheable().getHits(), is(0));
+        assertThat(jsoda1.getMemCacheable().getMisses(), is(0));
+    }
+
+    public void test_load_coalescer_copies() throws Exception {
+        System.out.println("\n test_load_coalescer_copies");
+
+        Jsoda                   jsoda1 = new Jsoda(new BasicAWSCredentials(key, secret), new MemCacheableSimple(100));
+        jsoda1.registerModel(Model1.class, DbType.SimpleDB);
+        final String            modelName = jsoda1.getModelName(Model1.class);
+        final ObjCacheMgr       cacheMgr = jsoda1.getObjCacheMgr();
+        final AtomicInteger     loadCount = new AtomicInteger();
+        final CountDownLatch    started = new CountDownLatch(1);
+        final CountDownLatch    release = new CountDownLatch(1);
+        final Callable<Model1>  loader = new Callable<Model1>() {
+            public Model1 call() throws Exception {
+                loadCount.incrementAndGet();
+                started.countDown();
+                release.await();
+                return new Model1("k1", 1);
+            }
+        };
+
+        // The callers of one coalesced load each get their own instance, free to change.
+        ExecutorService         executor = Executors.newFixedThreadPool(4);
+        List<Future<Model1>>    futures = new ArrayList<Future<Model1>>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(executor.submit(new Callable<Model1>() {
+                public Model1 call() throws Exception {
+                    Model1  obj = cacheMgr.loadByPk(modelName, "k1", null, loader);
+                    obj.age++;
+                    return obj;
+                }
+            }));
+            if (i == 0)
+                started.await();
+        }
+        Thread.sleep(200);
+        release.countDown();
+        executor.shutdown();
+
+        Set<Model1>     instances = Collections.newSetFromMap(new IdentityHashMap<Model1, Boolean>());
+        for (Future<Model1> f : futures) {
+            Model1  obj = f.get();
+            assertThat(obj.age, is(2));
+            instances.add(obj);
+        }
+        assertThat(instances.size(), is(4));
+        assertThat(loadCount.get(), is(1));
+    }
+
     public void xx_test_select_all() throws Exception {
         System.out.println("\n test_select_all");
 
@@ -2057,6 +3697,210 @@ public class JsodaTest extends TestCase
     }
     
 
+    /** Cache the not-found results for 60 seconds. */
+    @CachePolicy(notFoundExpireInSeconds = 60)
+    public static class NotFoundCacheModel1 implements Serializable {
+        @Key
+        public String   name;
+        public int      age;
+    }
+
+    /** Cache the not-found results of the primary key and the CacheByField for 60 seconds. */
+    @CachePolicy(notFoundExpireInSeconds = 60)
+    public static class NotFoundCacheModel2 implements Serializable {
+        @Key
+        public long     id;
+        @CacheByField
+        public String   name;
+    }
+
+    /** In-process fake transport delivering the published keys to the other invalidators right away. */
+    public static class FakeInvalidatorHub {
+        private List<CacheInvalidator.Listener>     listeners = new CopyOnWriteArrayList<CacheInvalidator.Listener>();
+
+        public CacheInvalidator newInvalidator() {
+            return new CacheInvalidator() {
+                private CacheInvalidator.Listener   myListener;
+
+                public void start(CacheInvalidator.Listener listener) {
+                    myListener = listener;
+                    listeners.add(listener);
+                }
+
+                public void publish(String key) {
+                    for (CacheInvalidator.Listener listener : listeners) {
+                        if (listener != myListener)
+                            listener.invalidate(Arrays.asList(key));
+                    }
+                }
+
+                public void shutdown() {
+                    listeners.remove(myListener);
+                }
+            };
+        }
+    }
+
+    /** In-process fake memcached server supporting get, set, delete, flush_all, and stats of the text protocol. */
+    public static class FakeMemcachedServer implements Runnable {
+        private ServerSocket                    serverSocket;
+        private Map<String, byte[]>             store = new ConcurrentHashMap<String, byte[]>();
+        private AtomicInteger                   getCommands = new AtomicInteger();
+        private volatile CountDownLatch         getLatch;
+
+        public FakeMemcachedServer() throws IOException {
+            serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            Thread  thread = new Thread(this);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        public InetSocketAddress getAddress() {
+            return new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+        }
+
+        public int getItemCount() {
+            return store.size();
+        }
+
+        public int getGetCommands() {
+            return getCommands.get();
+        }
+
+        /** Hold each get reply until the latch, shared with other servers, is counted down by their gets. */
+        public void setGetLatch(CountDownLatch getLatch) {
+            this.getLatch = getLatch;
+        }
+
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    final Socket    socket = serverSocket.accept();
+                    Thread          thread = new Thread(new Runnable() {
+                        public void run() {
+                            try {
+                                serve(new DataInputStream(new BufferedInputStream(socket.getInputStream())), socket.getOutputStream());
+                            } catch(Exception ignored) {
+                            }
+                        }
+                    });
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch(IOException ignored) {
+            }
+        }
+
+        @SuppressWarnings("deprecation")
+        private void serve(DataInputStream in, OutputStream out) throws IOException {
+            String  line;
+            while ((line = in.readLine()) != null) {
+                String[]        parts = line.split(" ");
+                StringBuilder   reply = new StringBuilder();
+                if (parts[0].equals("get")) {
+                    getCommands.incrementAndGet();
+                    CountDownLatch  latch = getLatch;
+                    if (latch != null) {
+                        latch.countDown();
+                        try {
+                            latch.await(5, TimeUnit.SECONDS);
+                        } catch(InterruptedException e) {
+                            throw new IOException(e.toString());
+                        }
+                    }
+                    ByteArrayOutputStream   bos = new ByteArrayOutputStream();
+                    for (int i = 1; i < parts.length; i++) {
+                        byte[]  data = store.get(parts[i]);
+                        if (data != null) {
+                            bos.write(("VALUE " + parts[i] + " 0 " + data.length + "\r\n").getBytes("UTF-8"));
+                            bos.write(data);
+                            bos.write("\r\n".getBytes("UTF-8"));
+                        }
+                    }
+                    bos.write("END\r\n".getBytes("UTF-8"));
+                    out.write(bos.toByteArray());
+                } else if (parts[0].equals("set")) {
+                    byte[]  data = new byte[Integer.parseInt(parts[4])];
+                    in.readFully(data);
+                    in.readLine();
+                    store.put(parts[1], data);
+                    out.write("STORED\r\n".getBytes("UTF-8"));
+                } else if (parts[0].equals("delete")) {
+                    out.write((store.remove(parts[1]) != null ? "DELETED\r\n" : "NOT_FOUND\r\n").getBytes("UTF-8"));
+                } else if (parts[0].equals("flush_all")) {
+                    store.clear();
+                    out.write("OK\r\n".getBytes("UTF-8"));
+                } else if (parts[0].equals("stats")) {
+                    out.write(("STAT curr_items " + store.size() + "\r\nEND\r\n").getBytes("UTF-8"));
+                } else {
+                    out.write("ERROR\r\n".getBytes("UTF-8"));
+                }
+                out.flush();
+            }
+        }
+    }
+
+    /** Written to the db in batch every second. */
+    @Model(writeBehindMillis = 1000)
+    public static class WriteBehindModel1 implements Serializable {
+        @Key
+        public String   name;
+        public int      count;
+
+        public WriteBehindModel1() {}
+
+        public WriteBehindModel1(String name, int count) {
+            this.name = name;
+            this.count = count;
+        }
+    }
+
+    /** Invalid write-behind test.  Write-behind cannot check the version */
+    @Model(writeBehindMillis = 1000)
+    public static class InvalidWriteBehindModel1 implements Serializable {
+        @Key
+        public String   name;
+        @VersionLocking
+        public int      myVersion;
+    }
+
+    /** Counter fields for increment */
+    public static class CounterModel1 implements Serializable {
+        @Key
+        public String   name;
+        public long     views;
+        public Integer  quota;
+    }
+
+    /** Fields indexed in the companion index tables */
+    @Model(dbtype = DbType.DynamoDB)
+    public static class IndexedModel1 implements Serializable {
+        @Key
+        public String   name;
+        @Indexed
+        public String   color;
+        @Indexed
+        public int      size;
+
+        public IndexedModel1() {}
+
+        public IndexedModel1(String name, String color, int size) {
+            this.name = name;
+            this.color = color;
+            this.size = size;
+        }
+    }
+
+    @Model(dbtype = DbType.DynamoDB)
+    public static class InvalidIndexedModel1 implements Serializable {
+        @Key @Indexed
+        public String   name;
+    }
+
     /** Invalid CachePolicy test.  CachePolicy by default turns on caching but class is not Serializable */
     @CachePolicy
     public static class InvalidModel1 {